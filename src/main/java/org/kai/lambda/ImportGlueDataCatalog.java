@@ -11,16 +11,40 @@ import com.amazonaws.services.glue.model.Partition;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
 import com.google.gson.Gson;
 import com.jayway.jsonpath.JsonPath;
 import org.kai.util.Constants.AttributeValue;
 import org.kai.util.Constants.MessageType;
+import org.kai.util.Constants.Priority;
+import org.kai.util.CompressionUtil;
+import org.kai.util.DDBUtil;
+import org.kai.util.ExportBatchLedger;
+import org.kai.util.ExportBatchProgress;
 import org.kai.util.GDCUtil;
+import org.kai.util.PartitionReconciler;
+import org.kai.util.PartitionRetention;
+import org.kai.util.PartitionSnapshotReader;
+import org.kai.util.PriorityLanes;
+import org.kai.util.ReplicationLagTracker;
+import org.kai.util.ReplicationStatusWriter;
+import org.kai.util.SQSUtil;
+import org.kai.util.SourceFairScheduler;
+import org.kai.util.TableFormatStrategy;
 import org.kai.util.TableInfo;
+import org.kai.util.TableReplicationStatus;
+import org.kai.util.TargetCatalogCache;
 
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * This class has AWS Lambda Handler method. It long-polls SQS, parse the
@@ -32,6 +56,9 @@ import java.util.stream.Collectors;
  */
 public class ImportGlueDataCatalog implements RequestHandler<SQSEvent, Object> {
 
+	// Lives as long as the Lambda container, so warm invocations reuse what is known about the target catalog
+	private TargetCatalogCache catalogCache;
+
 	public Object handleRequest(SQSEvent event, Context context) {
 		
 		String region = Optional.ofNullable(System.getenv("region")).orElse(Regions.US_WEST_2.getName());
@@ -40,6 +67,38 @@ public class ImportGlueDataCatalog implements RequestHandler<SQSEvent, Object> {
 		String S3SourceToTargetMapListSeparator = Optional.ofNullable(System.getenv("S3SourceToTargetMapListSeparator")).orElse(",");
 		String S3SourceToTargetMapListValuesSeparator = Optional.ofNullable(System.getenv("S3SourceToTargetMapListValuesSeparator")).orElse("|");
 		boolean skipTableArchive = Boolean.parseBoolean(Optional.ofNullable(System.getenv("skip_archive")).orElse("true"));
+		long catalogCacheTtlMillis = Long.parseLong(Optional.ofNullable(System.getenv("catalog_cache_ttl_millis")).orElse("300000"));
+		String ddbTblNameForHighWaterMark = Optional.ofNullable(System.getenv("ddb_name_table_high_water_mark")).orElse("");
+		long partitionSpillThresholdBytes = Long.parseLong(Optional.ofNullable(System.getenv("partition_spill_threshold_bytes")).orElse("0"));
+		String partitionSpillDirectory = Optional.ofNullable(System.getenv("partition_spill_directory")).orElse("/tmp");
+		boolean newestPartitionsFirst = Boolean.parseBoolean(Optional.ofNullable(System.getenv("newest_partitions_first")).orElse("false"));
+		long snapshotStagingThresholdBytes = Long.parseLong(Optional.ofNullable(System.getenv("snapshot_staging_threshold_bytes")).orElse("0"));
+		String snapshotStagingDirectory = Optional.ofNullable(System.getenv("snapshot_staging_directory")).orElse("/tmp");
+		long snapshotRangeSizeBytes = Long.parseLong(Optional.ofNullable(System.getenv("snapshot_range_size_bytes")).orElse("0"));
+		int snapshotRangeParallelism = Integer.parseInt(Optional.ofNullable(System.getenv("snapshot_range_parallelism")).orElse("8"));
+		String snapshotCacheBucket = Optional.ofNullable(System.getenv("snapshot_cache_bucket")).orElse("");
+		String sqsQueueUrlImport = Optional.ofNullable(System.getenv("sqs_queue_url_import")).orElse("");
+		long timeBudgetMarginMillis = Long.parseLong(Optional.ofNullable(System.getenv("time_budget_margin_millis")).orElse("60000"));
+		int maxImportContinuations = Integer.parseInt(Optional.ofNullable(System.getenv("max_import_continuations")).orElse("20"));
+		int maxImportRetries = Integer.parseInt(Optional.ofNullable(System.getenv("max_import_retries")).orElse("0"));
+		int retryBaseDelaySeconds = Integer.parseInt(Optional.ofNullable(System.getenv("retry_base_delay_seconds")).orElse("30"));
+		String sqsQueueUrlImportDlq = Optional.ofNullable(System.getenv("sqs_queue_url_import_dlq")).orElse("");
+		String ddbTblNameForTableStatusTracking = Optional.ofNullable(System.getenv("ddb_name_table_import_status")).orElse("");
+		int statusFlushThreshold = Integer.parseInt(Optional.ofNullable(System.getenv("status_flush_threshold")).orElse("100"));
+		int statusWriteParallelism = Integer.parseInt(Optional.ofNullable(System.getenv("status_write_parallelism")).orElse("4"));
+		String ddbTblNameForExportBatchLedger = Optional.ofNullable(System.getenv("ddb_name_export_batch_ledger")).orElse("");
+		String metricsNamespace = Optional.ofNullable(System.getenv("metrics_namespace")).orElse("");
+		String priorityLaneWeights = Optional.ofNullable(System.getenv("priority_lane_weights")).orElse("");
+		int laneDeferralSeconds = Integer.parseInt(Optional.ofNullable(System.getenv("lane_deferral_seconds")).orElse("30"));
+		Map<Priority, String> laneQueueUrls = new EnumMap<>(Priority.class);
+		laneQueueUrls.put(Priority.High, Optional.ofNullable(System.getenv("sqs_queue_url_import_high")).orElse(""));
+		laneQueueUrls.put(Priority.Normal, sqsQueueUrlImport);
+		laneQueueUrls.put(Priority.Low, Optional.ofNullable(System.getenv("sqs_queue_url_import_low")).orElse(""));
+		String sourceScheduleList = Optional.ofNullable(System.getenv("source_schedule_list")).orElse("");
+		int defaultSourceWeight = Integer.parseInt(Optional.ofNullable(System.getenv("default_source_weight")).orElse("1"));
+		int defaultSourceConcurrency = Integer.parseInt(Optional.ofNullable(System.getenv("default_source_concurrency")).orElse("0"));
+		String ddbTblNameForSourceLeases = Optional.ofNullable(System.getenv("ddb_name_source_lease")).orElse("");
+		String partitionRetentionList = Optional.ofNullable(System.getenv("partition_retention_list")).orElse("");
 
 		// Print environment variables
 		printEnvVariables (region, targetGlueCatalogId, S3SourceToTargetMapList, S3SourceToTargetMapListSeparator, S3SourceToTargetMapListValuesSeparator);
@@ -53,84 +112,424 @@ public class ImportGlueDataCatalog implements RequestHandler<SQSEvent, Object> {
 		AWSGlue glue = AWSGlueClientBuilder.standard().withRegion(region).withClientConfiguration(cc).build();
 
 		GDCUtil gdcUtil = new GDCUtil();
+		DDBUtil ddbUtil = new DDBUtil();
+		long importRunId = System.currentTimeMillis();
+		// Stop starting new work this long before the function times out, and continue in a new message
+		long deadlineMillis = Optional.ofNullable(context).isPresent() && !sqsQueueUrlImport.isEmpty()
+				? System.currentTimeMillis() + context.getRemainingTimeInMillis() - timeBudgetMarginMillis : 0;
+		PartitionReconciler partitionReconciler = new PartitionReconciler(partitionSpillThresholdBytes, partitionSpillDirectory, deadlineMillis,
+				newestPartitionsFirst);
+		AmazonSQS sqs = AmazonSQSClientBuilder.standard().withRegion(region).withClientConfiguration(cc).build();
+		SQSUtil sqsUtil = new SQSUtil();
+		PartitionSnapshotReader snapshotReader = new PartitionSnapshotReader(snapshotStagingThresholdBytes, snapshotStagingDirectory,
+				snapshotRangeSizeBytes, snapshotRangeParallelism, region, snapshotCacheBucket);
+		if (catalogCache == null)
+			catalogCache = new TargetCatalogCache(catalogCacheTtlMillis);
+		ExportBatchLedger exportBatchLedger = new ExportBatchLedger(ddbTblNameForExportBatchLedger, region);
+		ReplicationLagTracker lagTracker = new ReplicationLagTracker(metricsNamespace);
+		PriorityLanes priorityLanes = new PriorityLanes("", ",", "|", priorityLaneWeights, laneQueueUrls);
+		// Leases on sources expire when the function times out
+		String leaseId = Optional.ofNullable(context).map(Context::getAwsRequestId).orElse(String.valueOf(importRunId));
+		long leaseExpiryTime = System.currentTimeMillis() + Optional.ofNullable(context).map(c -> (long) c.getRemainingTimeInMillis()).orElse(900000L);
+		PartitionRetention partitionRetention = new PartitionRetention(partitionRetentionList, S3SourceToTargetMapListSeparator,
+				S3SourceToTargetMapListValuesSeparator);
+		SourceFairScheduler sourceScheduler = new SourceFairScheduler(sourceScheduleList, S3SourceToTargetMapListSeparator,
+				S3SourceToTargetMapListValuesSeparator, defaultSourceWeight, defaultSourceConcurrency, ddbTblNameForSourceLeases, leaseId,
+				leaseExpiryTime);
 
 
 		// Process records
 		/**
 		 * Iterate and process all the messages which are part of SQSEvent
 		 * SNS -> SQS -> Lambda is not the same as SQS -> Lambda.  Using JsonPath to pull the Type and MessageBody and Attributes.
+		 * Messages are grouped by database and table. Messages older than the newest full partition snapshot of a
+		 * table are superseded. Partition deltas after it are applied in ExportBatchId order.
 		 */
-		System.out.println("Number of messages in SQS Event: " + event.getRecords().size());
-		Gson gson = new Gson();
-		for (SQSEvent.SQSMessage msg : event.getRecords()) {
-			String payLoad = msg.getBody();
-			String internalBodyType = JsonPath.read(payLoad, "$.Type");
-			String internalBodyMsg = JsonPath.read(payLoad, "$.Message");
-			Map<String, HashMap> internalBodyMsgAttributes = JsonPath.read(payLoad, "$.MessageAttributes");
-			System.out.println("Type: " + internalBodyType);
-			System.out.println("Message: " + internalBodyMsg);
-			System.out.println("MessageAttributes: " + internalBodyMsgAttributes);
-			String msgExportBatchId = "";
-			String msgSourceGlueCatalogId = "";
-			String msgMessageType = "";
-
-			if (!"Notification".equals(internalBodyType)) {
-				System.out.println("Error: Expected SNS Type Notification.  Received: " + payLoad);
-				return "Failure";
+		// Table import statuses are buffered and written in batches when the buffer fills up and at the end
+		ReplicationStatusWriter statusWriter = new ReplicationStatusWriter(statusFlushThreshold, statusWriteParallelism);
+		// Source leases are released and buffered statuses written however the import ends
+		try {
+			System.out.println("Number of messages in SQS Event: " + event.getRecords().size());
+			// Messages arrive in the queue of their priority lane. Do this lane's share of them while higher
+			// lanes have a backlog, and return the rest to SQS. Continuations stay in the lane.
+			List<SQSEvent.SQSMessage> records = event.getRecords();
+			List<String> deferredMessageIds = new ArrayList<>();
+			Priority eventLane = records.isEmpty() ? Priority.Normal : priorityLanes.laneOfQueue(records.get(0).getEventSourceArn());
+			String laneQueueUrl = Optional.ofNullable(priorityLanes.queueUrl(eventLane)).orElse("");
+			if (!records.isEmpty()) {
+				int numberToProcess = priorityLanes.numberToProcess(sqs, eventLane, records.size());
+				deferredMessageIds = sqsUtil.deferMessages(sqs, laneQueueUrl, records.subList(numberToProcess, records.size()), laneDeferralSeconds);
+				records = records.subList(0, numberToProcess);
 			}
-			// Read SQS Message Attributes
-			for (Map.Entry<String, HashMap> entry : internalBodyMsgAttributes.entrySet()) {
-				if (AttributeValue.ExportBatchId.equalsIgnoreCase(entry.getKey())) {
-					msgExportBatchId = (String) entry.getValue().get("Value");
-					System.out.println("Export Batch Id: " + msgExportBatchId);
-				} else if (AttributeValue.SourceGlueDataCatalogId.equalsIgnoreCase(entry.getKey())) {
-					msgSourceGlueCatalogId = (String) entry.getValue().get("Value");
-					System.out.println("Source Glue Data Catalog Id: " + msgSourceGlueCatalogId);
-				} else if (AttributeValue.MessageType.equalsIgnoreCase(entry.getKey())) {
-					msgMessageType = (String) entry.getValue().get("Value");
-					System.out.println("Message Type " + msgMessageType);
+			Gson gson = new Gson();
+			CompressionUtil compressionUtil = new CompressionUtil();
+			Map<String, List<PendingTableImport>> pendingImports = new LinkedHashMap<>();
+			List<SQSEvent.SQSMessage> sourceCappedMessages = new ArrayList<>();
+			for (SQSEvent.SQSMessage msg : records) {
+				String payLoad = msg.getBody();
+				String internalBodyType = JsonPath.read(payLoad, "$.Type");
+				String internalBodyMsg = JsonPath.read(payLoad, "$.Message");
+				Map<String, HashMap> internalBodyMsgAttributes = JsonPath.read(payLoad, "$.MessageAttributes");
+				System.out.println("Type: " + internalBodyType);
+				System.out.println("MessageAttributes: " + internalBodyMsgAttributes);
+				String msgExportBatchId = "";
+				String msgSourceGlueCatalogId = "";
+				String msgMessageType = "";
+				String msgContentEncoding = "";
+				int msgContinuationCount = 0;
+				int msgRetryCount = 0;
+
+				if (!"Notification".equals(internalBodyType)) {
+					// The import queues have no redrive policy, so a record that can never be imported is dropped
+					System.out.println("Error: Expected SNS Type Notification.  Dropping the record. Received: " + payLoad);
+					continue;
 				}
-			}
-			if (msgMessageType.equalsIgnoreCase(MessageType.TableInfo.toString())) {
-				TableInfo tbi = gson.fromJson(internalBodyMsg, TableInfo.class);
-				if (Optional.ofNullable(tbi).isPresent()) {
-					System.out.println("Info: Deserialized tableinfo" + tbi.toString());
-					List<Partition> partitionInfo = tbi.getPartitionList(); // prime the PartitionInfo, if necessary
-					System.out.println("Info: Deserialized tablepartitioninfo" + partitionInfo);
-					String s3Location = tbi.getTable().getStorageDescriptor().getLocation();
-					String s3Bucket = s3Location.substring(0,ordinalIndexOf(s3Location, "/", 3));
-					String s3BucketShort = s3Bucket.substring(5); // cut the s3://
-					System.out.println("Source S3 Location:" + s3Location + " bucket: " + s3BucketShort);
-
-					if (!s3SourceToTargetMap.containsKey(s3BucketShort)) {
-						System.out.println("Warning: Did not find mapping from S3 Bucket " + s3BucketShort + " to local bucket. Will not copy meta");
-						return "Success";
+				// Read SQS Message Attributes
+				for (Map.Entry<String, HashMap> entry : internalBodyMsgAttributes.entrySet()) {
+					if (AttributeValue.ExportBatchId.equalsIgnoreCase(entry.getKey())) {
+						msgExportBatchId = (String) entry.getValue().get("Value");
+						System.out.println("Export Batch Id: " + msgExportBatchId);
+					} else if (AttributeValue.SourceGlueDataCatalogId.equalsIgnoreCase(entry.getKey())) {
+						msgSourceGlueCatalogId = (String) entry.getValue().get("Value");
+						System.out.println("Source Glue Data Catalog Id: " + msgSourceGlueCatalogId);
+					} else if (AttributeValue.MessageType.equalsIgnoreCase(entry.getKey())) {
+						msgMessageType = (String) entry.getValue().get("Value");
+						System.out.println("Message Type " + msgMessageType);
+					} else if (AttributeValue.ContentEncoding.equalsIgnoreCase(entry.getKey())) {
+						msgContentEncoding = (String) entry.getValue().get("Value");
+						System.out.println("Content Encoding " + msgContentEncoding);
+					} else if (AttributeValue.ContinuationCount.equalsIgnoreCase(entry.getKey())) {
+						msgContinuationCount = Integer.parseInt((String) entry.getValue().get("Value"));
+						System.out.println("Continuation Count " + msgContinuationCount);
+					} else if (AttributeValue.RetryCount.equalsIgnoreCase(entry.getKey())) {
+						msgRetryCount = Integer.parseInt((String) entry.getValue().get("Value"));
+						System.out.println("Retry Count " + msgRetryCount);
 					}
-					String s3TargetBucket = "s3://"+s3SourceToTargetMap.get(s3BucketShort);
-					tbi.getTable().getStorageDescriptor().setLocation(s3Location.replaceFirst(s3Bucket, s3TargetBucket));
-					System.out.println("Replaced Table Location " + tbi.getTable().getStorageDescriptor().getLocation());
-
-					for (Partition p : partitionInfo) {
-						String partitionLocation = p.getStorageDescriptor().getLocation();
-						String partitionBucket = partitionLocation.substring(0,ordinalIndexOf(partitionLocation, "/", 3));
-						String partitionBucketShort = partitionBucket.substring(5); // cut the s3://
-						System.out.println("Source partition Location:" + partitionLocation + " partition Bucket: " + partitionBucketShort);
-						p.getStorageDescriptor().setLocation(partitionLocation.replaceFirst(partitionBucket, s3TargetBucket ));
-						System.out.println("Replaced with target partition Location: " + p.getStorageDescriptor().getLocation());
+				}
+				boolean compressed = CompressionUtil.GZIP_BASE64.equalsIgnoreCase(msgContentEncoding);
+				// A compressed message is a base64 gzip payload, so only its size is logged
+				String loggedPayload = compressed ? payLoad.length() + " characters" : payLoad;
+				if (compressed)
+					System.out.printf("Message: %d characters \n", internalBodyMsg.length());
+				else
+					System.out.println("Message: " + internalBodyMsg);
+				if (compressed) {
+					internalBodyMsg = compressionUtil.decompress(internalBodyMsg);
+					System.out.printf("Decompressed Message: %d characters \n", internalBodyMsg.length());
+				}
+				if (msgMessageType.equalsIgnoreCase(MessageType.TableInfo.toString())) {
+					TableInfo tbi = gson.fromJson(internalBodyMsg, TableInfo.class);
+					if (Optional.ofNullable(tbi).isPresent()) {
+						// A compressed message carries its partitions, which are too many to log
+						if (compressed)
+							System.out.printf("Info: Deserialized tableinfo of table %s.%s from %d characters \n", tbi.getTable().getDatabaseName(),
+									tbi.getTable().getName(), internalBodyMsg.length());
+						else
+							System.out.println("Info: Deserialized tableinfo" + tbi.toString());
+						// Tables of a source that is imported by as many functions as it may be are imported later
+						if (!sourceScheduler.acquire(SourceFairScheduler.sourceKey(msgSourceGlueCatalogId, tbi.getRegion()))) {
+							sourceCappedMessages.add(msg);
+							continue;
+						}
+						String tableKey = tbi.getTable().getDatabaseName() + "." + tbi.getTable().getName();
+						PendingTableImport pending = new PendingTableImport(tbi, msgExportBatchId, internalBodyMsg, msgSourceGlueCatalogId,
+								msgContinuationCount);
+						pending.sentTimestamp = parseTimestamp(msg.getAttributes(), "SentTimestamp");
+						pending.receiveTimestamp = parseTimestamp(msg.getAttributes(), "ApproximateFirstReceiveTimestamp");
+						pending.retryCount = msgRetryCount;
+						pendingImports.computeIfAbsent(tableKey, k -> new ArrayList<>()).add(pending);
+					} else {
+						System.out.println("Error: Could not deserialize payload.  Expected TableInfo, received: " + loggedPayload);
 					}
-					gdcUtil.processTableSchema(glue, targetGlueCatalogId, tbi.getTable(), partitionInfo,  msgExportBatchId, skipTableArchive, tbi.getRegion());
+				} else if (msgMessageType.equalsIgnoreCase(MessageType.ExportBatchProgress.toString())) {
+					ExportBatchProgress exportCounts = gson.fromJson(internalBodyMsg, ExportBatchProgress.class);
+					if (!Optional.ofNullable(exportCounts.getExportBatchId()).isPresent())
+						exportCounts.setExportBatchId(msgExportBatchId);
+					exportBatchLedger.recordExport(exportCounts);
+				} else {
+					System.out.println("Error: Expected to receive SchemaType tableinfo, instead received SchemaType: " + msgMessageType + " body " + loggedPayload);
+				}
+			}
+			deferredMessageIds.addAll(sqsUtil.deferMessages(sqs, laneQueueUrl, sourceCappedMessages, laneDeferralSeconds));
+			List<PendingTableImport> importQueue = new ArrayList<>();
+			for (Map.Entry<String, List<PendingTableImport>> entry : pendingImports.entrySet()) {
+				List<PendingTableImport> tableImports = entry.getValue();
+				tableImports.sort((a, b) -> compareExportBatchIds(a.exportBatchId, b.exportBatchId));
+				int newestFullSnapshot = 0;
+				for (int i = 0; i < tableImports.size(); i++) {
+					if (!tableImports.get(i).tableInfo.isPartitionDelta())
+						newestFullSnapshot = i;
+				}
+				for (int i = 0; i < newestFullSnapshot; i++) {
+					System.out.printf("Info: Export batch %s of table %s is superseded by export batch %s. \n",
+							tableImports.get(i).exportBatchId, entry.getKey(), tableImports.get(newestFullSnapshot).exportBatchId);
+					exportBatchLedger.recordTableSkipped(tableImports.get(i).exportBatchId);
+				}
+				importQueue.addAll(tableImports.subList(newestFullSnapshot, tableImports.size()));
+			}
+			System.out.printf("Number of table imports after coalescing: %d \n", importQueue.size());
+			importQueue = sourceScheduler.interleave(importQueue,
+					pending -> SourceFairScheduler.sourceKey(pending.sourceGlueCatalogId, pending.tableInfo.getRegion()));
 
+			for (PendingTableImport pending : importQueue) {
+				if (partitionReconciler.isDeadlinePassed()) {
+					System.out.println("Info: Time budget used up before the import of the table started.");
+					if (!continueImport(sqs, sqsUtil, laneQueueUrl, pending, maxImportContinuations, false))
+						exportBatchLedger.recordTableFailed(pending.exportBatchId, 0);
+					continue;
+				}
+				TableInfo tbi = pending.tableInfo;
+				String tableId = tbi.getTable().getName().concat("|").concat(tbi.getTable().getDatabaseName());
+				// Any message older than the last applied full snapshot is dropped, also a delta, which would bring back
+				// partitions the snapshot deleted. Continuations and retries of the applied export itself carry its ExportBatchId.
+				boolean trackHighWaterMark = !ddbTblNameForHighWaterMark.isEmpty() && isNumeric(pending.exportBatchId);
+				if (trackHighWaterMark) {
+					long highWaterMark = ddbUtil.getTableHighWaterMark(ddbTblNameForHighWaterMark, tableId);
+					if (Long.parseLong(pending.exportBatchId) < highWaterMark) {
+						System.out.printf("Info: Skipping export batch %s of table %s. Export batch %d was already applied. \n", pending.exportBatchId, tableId, highWaterMark);
+						exportBatchLedger.recordTableSkipped(pending.exportBatchId);
+						continue;
+					}
+				}
+				// Skip downloading and applying a partition snapshot identical to the one last applied
+				boolean partitionsApplied = false;
+				if (!ddbTblNameForHighWaterMark.isEmpty() && Optional.ofNullable(tbi.getPartitionContentHash()).isPresent()) {
+					partitionsApplied = tbi.getPartitionContentHash().equals(ddbUtil.getAppliedPartitionHash(ddbTblNameForHighWaterMark, tableId));
+					if (partitionsApplied)
+						System.out.printf("Info: Partition snapshot %s of table %s was already applied. \n", tbi.getPartitionContentHash(), tableId);
+				}
+				TableFormatStrategy format = TableFormatStrategy.forTable(tbi.getTable());
+				// A full snapshot too large to hold in memory is streamed straight into the on-disk reconciliation
+				boolean streamSnapshot = tbi.isLargeTable() && !partitionsApplied && format.hasGluePartitions() && !tbi.isPartitionDelta()
+						&& partitionReconciler.shouldSpill(snapshotReader.getSnapshotSize(tbi.getRegion(), tbi.getS3BucketName(), tbi.getS3ObjectKey()));
+				List<Partition> partitionInfo = partitionsApplied || !format.hasGluePartitions() || streamSnapshot ? new ArrayList<>()
+						: tbi.getPartitionList(snapshotReader); // prime the PartitionInfo, if necessary
+				// Nothing is applied from a snapshot that could not be read in full. The table is failed and retried.
+				boolean snapshotUnreadable = !Optional.ofNullable(partitionInfo).isPresent();
+				if (snapshotUnreadable)
+					partitionInfo = new ArrayList<>();
+				System.out.println("Info: Deserialized tablepartitioninfo" + partitionInfo);
+				String s3Location = tbi.getTable().getStorageDescriptor().getLocation();
+				String s3Bucket = s3Location.substring(0,ordinalIndexOf(s3Location, "/", 3));
+				String s3BucketShort = s3Bucket.substring(5); // cut the s3://
+				System.out.println("Source S3 Location:" + s3Location + " bucket: " + s3BucketShort);
 
+				// A partition retry carries the target locations it was given in the first attempt
+				boolean locationsMapped = tbi.isLocationsMapped();
+				if (!locationsMapped && !s3SourceToTargetMap.containsKey(s3BucketShort)) {
+					System.out.println("Warning: Did not find mapping from S3 Bucket " + s3BucketShort + " to local bucket. Will not copy meta");
+					exportBatchLedger.recordTableFailed(pending.exportBatchId, partitionInfo.size());
+					continue;
+				}
+				String s3TargetBucket = locationsMapped ? s3Bucket : "s3://" + s3SourceToTargetMap.get(s3BucketShort);
+				Consumer<Partition> partitionLocationRewriter = p -> {
+					String partitionLocation = p.getStorageDescriptor().getLocation();
+					String partitionBucket = partitionLocation.substring(0,ordinalIndexOf(partitionLocation, "/", 3));
+					String partitionBucketShort = partitionBucket.substring(5); // cut the s3://
+					System.out.println("Source partition Location:" + partitionLocation + " partition Bucket: " + partitionBucketShort);
+					p.getStorageDescriptor().setLocation(partitionLocation.replaceFirst(partitionBucket, s3TargetBucket ));
+					System.out.println("Replaced with target partition Location: " + p.getStorageDescriptor().getLocation());
+				};
+				if (locationsMapped) {
+					System.out.println("Info: Locations of the partition retry are already mapped to the target buckets.");
 				} else {
-					System.out.println("Error: Could not deserialize payload.  Expected TableInfo, received: " + payLoad);
+					tbi.getTable().getStorageDescriptor().setLocation(s3Location.replaceFirst(s3Bucket, s3TargetBucket));
+					System.out.println("Replaced Table Location " + tbi.getTable().getStorageDescriptor().getLocation());
+					format.rewriteLocations(tbi.getTable(), location -> replaceBucket(location, s3TargetBucket));
+					partitionInfo.forEach(partitionLocationRewriter);
 				}
-			} else {
-				System.out.println("Error: Expected to receive SchemaType tableinfo, instead received SchemaType: " + msgMessageType + " body " + payLoad);
+				Supplier<Stream<Partition>> partitionSnapshot = streamSnapshot ? () -> {
+					try {
+						return tbi.streamPartitionSnapshot(snapshotReader).peek(partitionLocationRewriter);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				} : null;
+				List<List<String>> deletedPartitionValues = tbi.isPartitionDelta() ? Optional.ofNullable(tbi.getDeletedPartitionValues()).orElse(new ArrayList<>()) : null;
+				TableReplicationStatus tableStatus = snapshotUnreadable ? unreadableSnapshotStatus(tbi)
+						: gdcUtil.processTableSchema(glue, targetGlueCatalogId, tbi.getTable(), partitionsApplied ? null : partitionInfo,  pending.exportBatchId, skipTableArchive, tbi.getRegion(), catalogCache, partitionReconciler,
+						deletedPartitionValues, tbi.getTotalNumberOfPartitions(), partitionRetention, partitionSnapshot);
+				long numberOfPartitions = (streamSnapshot || snapshotUnreadable ? tbi.getNumberOfPartitions() : partitionInfo.size())
+						+ (deletedPartitionValues != null ? deletedPartitionValues.size() : 0);
+				boolean continued = false;
+				if (!tableStatus.isError() && !tableStatus.isPartitionsReplicated() && partitionReconciler.isDeadlinePassed()) {
+					System.out.println("Info: Time budget used up while importing partitions.");
+					continued = continueImport(sqs, sqsUtil, laneQueueUrl, pending, maxImportContinuations, true);
+				} else if (maxImportRetries > 0 && (tableStatus.isError() || !tableStatus.isPartitionsReplicated())) {
+					continued = retryImport(sqs, sqsUtil, laneQueueUrl, sqsQueueUrlImportDlq, pending, tableStatus, maxImportRetries,
+							retryBaseDelaySeconds);
+				}
+				// A continued or retried import is counted when it finishes
+				if (!continued && tableStatus.isError())
+					exportBatchLedger.recordTableFailed(pending.exportBatchId, numberOfPartitions);
+				else if (!continued) {
+					exportBatchLedger.recordTableApplied(pending.exportBatchId,
+							tableStatus.isPartitionsReplicated() ? numberOfPartitions : 0,
+							tableStatus.isPartitionsReplicated() ? 0 : numberOfPartitions);
+					// Measure from the source change only if this import changed the table or its partitions
+					boolean sourceChanged = !tableStatus.isUnchanged() || tableStatus.getPartitionsWritten() > 0;
+					lagTracker.recordTableImport(tbi, pending.sentTimestamp, pending.receiveTimestamp, System.currentTimeMillis(),
+							sourceChanged, pending.continuationCount > 0 || pending.retryCount > 0);
+				}
+				// Move the mark only past a complete full snapshot, so no work of an older export that is still queued is discarded
+				if (trackHighWaterMark && !tbi.isPartitionDelta() && !tableStatus.isError() && tableStatus.isPartitionsReplicated() && !continued)
+					ddbUtil.updateTableHighWaterMark(ddbTblNameForHighWaterMark, tableId, Long.parseLong(pending.exportBatchId));
+				// Record the applied snapshot. Any other partition import leaves the target without a known snapshot.
+				// An unreadable snapshot changed nothing, so the snapshot applied before is still known.
+				if (!ddbTblNameForHighWaterMark.isEmpty() && !partitionsApplied && !snapshotUnreadable) {
+					boolean snapshotApplied = tableStatus.isPartitionsReplicated() && Optional.ofNullable(tbi.getPartitionContentHash()).isPresent();
+					ddbUtil.updateAppliedPartitionHash(ddbTblNameForHighWaterMark, tableId, snapshotApplied ? tbi.getPartitionContentHash() : null);
+				}
+				tableStatus.setTableSchema(gson.toJson(tbi.getTable()));
+				statusWriter.trackTableImportStatus(tableStatus, pending.sourceGlueCatalogId, targetGlueCatalogId, importRunId,
+						pending.exportBatchId, ddbTblNameForTableStatusTracking);
 			}
+			return sqsUtil.createBatchResponse(deferredMessageIds);
+		} finally {
+			statusWriter.close();
+			exportBatchLedger.flush();
+			lagTracker.publish();
+			sourceScheduler.releaseAll();
 		}
-		return "Success";
 	}
 
+	/**
+	 * Get the status of a table whose partition snapshot could not be read. Neither the table nor its partitions are written.
+	 * @param tbi
+	 * @return
+	 */
+	private TableReplicationStatus unreadableSnapshotStatus(TableInfo tbi) {
+		System.out.printf("Error: Unable to read the partition snapshot of table '%s'. \n", tbi.getTable().getName());
+		TableReplicationStatus tableStatus = new TableReplicationStatus();
+		tableStatus.setTableName(tbi.getTable().getName());
+		tableStatus.setDbName(tbi.getTable().getDatabaseName());
+		tableStatus.setReplicationTime(System.currentTimeMillis());
+		tableStatus.setExportHasPartitions(true);
+		tableStatus.setError(true);
+		return tableStatus;
+	}
+
+	/**
+	 * Re-enqueue a table import that did not finish in this invocation. The partitions already written are
+	 * kept; the next invocation reconciles the table again and only writes what is still missing.
+	 * @param sqs
+	 * @param sqsUtil
+	 * @param queueUrl
+	 * @param pending
+	 * @param maxContinuations
+	 * @param started true if the import made progress in this invocation
+	 * @return true if the import continues in a new message
+	 */
+	private boolean continueImport(AmazonSQS sqs, SQSUtil sqsUtil, String queueUrl, PendingTableImport pending,
+			int maxContinuations, boolean started) {
+		// An import that was not started has not used up a continuation
+		int continuationCount = started ? pending.continuationCount + 1 : pending.continuationCount;
+		String tableName = pending.tableInfo.getTable().getDatabaseName() + "." + pending.tableInfo.getTable().getName();
+		if (continuationCount > maxContinuations) {
+			System.out.printf("Error: Import of table %s did not finish after %d continuations. Giving up on export batch %s. \n",
+					tableName, maxContinuations, pending.exportBatchId);
+			return false;
+		}
+		System.out.printf("Info: Continuing import of table %s, export batch %s in a new message. \n", tableName, pending.exportBatchId);
+		return sqsUtil.sendTableInfo(sqs, queueUrl, pending.message, pending.sourceGlueCatalogId,
+				pending.exportBatchId, continuationCount, pending.retryCount, 0);
+	}
+
+	/**
+	 * Re-enqueue a table import that failed, with a delay that doubles with every attempt. If only some partitions
+	 * could not be written, only those are retried. After the last attempt the table is parked in the dead letter queue.
+	 * @param sqs
+	 * @param sqsUtil
+	 * @param queueUrl
+	 * @param dlqUrl empty if there is no dead letter queue
+	 * @param pending
+	 * @param tableStatus
+	 * @param maxRetries
+	 * @param baseDelaySeconds delay of the first retry
+	 * @return true if the import is retried
+	 */
+	private boolean retryImport(AmazonSQS sqs, SQSUtil sqsUtil, String queueUrl, String dlqUrl, PendingTableImport pending,
+			TableReplicationStatus tableStatus, int maxRetries, int baseDelaySeconds) {
+		int retryCount = pending.retryCount + 1;
+		String tableName = pending.tableInfo.getTable().getDatabaseName() + "." + pending.tableInfo.getTable().getName();
+		if (retryCount > maxRetries) {
+			System.out.printf("Error: Import of table %s failed %d times. Giving up on export batch %s. \n", tableName, retryCount,
+					pending.exportBatchId);
+			if (!dlqUrl.isEmpty() && sqsUtil.sendTableInfo(sqs, dlqUrl, pending.message, pending.sourceGlueCatalogId,
+					pending.exportBatchId, pending.continuationCount, pending.retryCount, 0))
+				System.out.printf("Table %s sent to the dead letter queue. \n", tableName);
+			return false;
+		}
+		// Exponential backoff with jitter, so tables throttled together are not retried together
+		int delaySeconds = (int) Math.min(SQSUtil.MAX_DELAY_SECONDS, (long) baseDelaySeconds << Math.min(retryCount - 1, 20));
+		delaySeconds = delaySeconds / 2 + ThreadLocalRandom.current().nextInt(delaySeconds / 2 + 1);
+		List<Partition> failedPartitions = tableStatus.getFailedPartitions();
+		List<List<String>> failedPartitionValues = tableStatus.getFailedPartitionValues();
+		if (!tableStatus.isError() && (!failedPartitions.isEmpty() || !failedPartitionValues.isEmpty())) {
+			System.out.printf("Info: Retrying %d partitions and %d partition deletes of table %s in %d seconds. \n",
+					failedPartitions.size(), failedPartitionValues.size(), tableName, delaySeconds);
+			String retryMessage = new Gson().toJson(pending.tableInfo.createPartitionRetry(failedPartitions, failedPartitionValues));
+			if (sqsUtil.sendTableInfo(sqs, queueUrl, retryMessage, pending.sourceGlueCatalogId, pending.exportBatchId,
+					pending.continuationCount, retryCount, delaySeconds))
+				return true;
+			// The failed partitions do not fit in a message. Retry the whole table.
+		}
+		System.out.printf("Info: Retrying import of table %s in %d seconds. \n", tableName, delaySeconds);
+		return sqsUtil.sendTableInfo(sqs, queueUrl, pending.message, pending.sourceGlueCatalogId, pending.exportBatchId,
+				pending.continuationCount, retryCount, delaySeconds);
+	}
+
+	/**
+	 * Compare two ExportBatchIds. Batch ids are export timestamps, so numeric ids are compared as numbers.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static int compareExportBatchIds(String a, String b) {
+		if (isNumeric(a) && isNumeric(b))
+			return Long.compare(Long.parseLong(a), Long.parseLong(b));
+		return a.compareTo(b);
+	}
+
+	private static long parseTimestamp(Map<String, String> attributes, String name) {
+		String value = Optional.ofNullable(attributes).map(a -> a.get(name)).orElse("");
+		return isNumeric(value) ? Long.parseLong(value) : 0;
+	}
+
+	private static boolean isNumeric(String value) {
+		if (value == null || value.isEmpty() || value.length() > 18)
+			return false;
+		for (int i = 0; i < value.length(); i++) {
+			if (!Character.isDigit(value.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A TableInfo received for a table in this SQS Event
+	 */
+	private static class PendingTableImport {
+		private final TableInfo tableInfo;
+		private final String exportBatchId;
+		// The TableInfo as received, used to continue the import in a new message
+		private final String message;
+		private final String sourceGlueCatalogId;
+		private final int continuationCount;
+		// SQS timestamps of the message, 0 if unknown
+		private long sentTimestamp;
+		private long receiveTimestamp;
+		private int retryCount;
+
+		private PendingTableImport(TableInfo tableInfo, String exportBatchId, String message, String sourceGlueCatalogId,
+				int continuationCount) {
+			this.tableInfo = tableInfo;
+			this.exportBatchId = exportBatchId;
+			this.message = message;
+			this.sourceGlueCatalogId = sourceGlueCatalogId;
+			this.continuationCount = continuationCount;
+		}
+	}
 
 	/**
 	 * Print environment variables
@@ -182,6 +581,21 @@ public class ImportGlueDataCatalog implements RequestHandler<SQSEvent, Object> {
 		return returnValue;
 	}
 
+	/**
+	 * Replace the bucket of an S3 location, keeping its scheme, e.g. s3a://
+	 * @param location
+	 * @param s3TargetBucket e.g. s3://target-bucket
+	 * @return the location in the target bucket, or the location unchanged if it is not an S3 location
+	 */
+	public static String replaceBucket(String location, String s3TargetBucket) {
+		int schemeEnd = location.indexOf("://");
+		if (schemeEnd < 0 || !location.substring(0, schemeEnd).toLowerCase().startsWith("s3"))
+			return location;
+		int bucketEnd = location.indexOf('/', schemeEnd + 3);
+		return location.substring(0, schemeEnd) + s3TargetBucket.substring(s3TargetBucket.indexOf("://"))
+				+ (bucketEnd < 0 ? "" : location.substring(bucketEnd));
+	}
+
 	public static int ordinalIndexOf(String str, String substr, int n) {
 		int pos = str.indexOf(substr);
 		while (--n > 0 && pos != -1)
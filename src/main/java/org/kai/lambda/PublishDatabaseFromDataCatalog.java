@@ -14,9 +14,15 @@ import com.amazonaws.services.glue.AWSGlueClientBuilder;
 import com.amazonaws.services.glue.model.Database;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.AmazonSNSClientBuilder;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.kai.util.ExportBatchProgress;
 import org.kai.util.GlueUtil;
+import org.kai.util.ReplicationFilter;
+import org.kai.util.SNSUtil;
 import org.kai.util.SQSUtil;
 
 
@@ -42,6 +48,8 @@ public class PublishDatabaseFromDataCatalog implements RequestHandler<Object, St
 		String list_separator = Optional.ofNullable(System.getenv("list_separator")).orElse(",");
 		String separator = Optional.ofNullable(System.getenv("separator")).orElse("|");
 		String sqsQueue4GlueDatabase = Optional.ofNullable(System.getenv("sqs_queue_url_glue_database")).orElse("");
+		String snsTopicArn = Optional.ofNullable(System.getenv("sns_topic_arn_publish_glue_data_catalog")).orElse("");
+		String replicationRuleList = Optional.ofNullable(System.getenv("replication_rule_list")).orElse("");
 
 		// Print environment variables
 		printEnvVariables(sourceGlueCatalogId, sqsQueue4GlueDatabase, dbPrefixString, list_separator, separator);
@@ -57,20 +65,27 @@ public class PublishDatabaseFromDataCatalog implements RequestHandler<Object, St
 		AmazonSQS sqs = AmazonSQSClientBuilder.standard().withRegion(region).withClientConfiguration(cc).build();
 		
 		// Get databases from Glue
-		List<Database> dBList = glueUtil.getDatabases(glue, sourceGlueCatalogId);
+		List<Database> dBList;
+		try (Stream<Database> databases = glueUtil.streamDatabases(glue, sourceGlueCatalogId)) {
+			dBList = databases.collect(Collectors.toList());
+		}
+		System.out.println("Total number of databases fetched: " + dBList.size());
 		List<Database> publishDbList;
 
 		// Tokenize the database prefix string to a List of database prefixes
 		List<String> dbPrefixList = tokenizeDatabasePrefixString(dbPrefixString, region, list_separator, separator);
 
-		// When database Prefix string is empty or not provided then, it imports all databases
-		// else, it imports only the databases that has the same prefix
-		if (dbPrefixList.size() == 0) {
+		// The database prefixes are include rules, compiled with the replication rules
+		ReplicationFilter replicationFilter = new ReplicationFilter(replicationRuleList, list_separator, separator, dbPrefixList);
+
+		// When there is no database prefix and no rule, it imports all databases
+		// else, it imports only the databases the rules include
+		if (!replicationFilter.hasRules()) {
 			System.out.println("Publishing all");
 			publishDbList = dBList;
 		} else {
 			// Identify required databases to export
-			publishDbList = getRequiredDatabases(dBList, dbPrefixList);
+			publishDbList = getRequiredDatabases(dBList, replicationFilter);
 			System.out.println("Publishing matched: " + publishDbList);
 		}
 		System.out.printf(
@@ -80,7 +95,16 @@ public class PublishDatabaseFromDataCatalog implements RequestHandler<Object, St
 		if (publishDbList.size() == 0 ) {
 			System.out.println("Not exporting any DB.  DBList size: 0 ");
 		} else {
-			sqsUtil.publishDatabasesToSQS(sqs, sqsQueue4GlueDatabase, publishDbList, sourceGlueCatalogId);
+			String exportBatchId = Long.toString(System.currentTimeMillis());
+			int numberOfDatabasesSent = sqsUtil.publishDatabasesToSQS(sqs, sqsQueue4GlueDatabase, publishDbList, sourceGlueCatalogId, exportBatchId);
+			// Tell the target regions how many databases this export batch has, so they can tell when it is complete
+			if (!snsTopicArn.isEmpty() && numberOfDatabasesSent > 0) {
+				ExportBatchProgress progress = new ExportBatchProgress();
+				progress.setExportBatchId(exportBatchId);
+				progress.setDatabasesEnqueued(numberOfDatabasesSent);
+				AmazonSNS sns = AmazonSNSClientBuilder.standard().withRegion(region).withClientConfiguration(cc).build();
+				new SNSUtil().publishExportBatchProgressToSNS(sns, snsTopicArn, progress, sourceGlueCatalogId);
+			}
 		}
 		return "Lambda function to get a list of Databases completed successfully!";
 	}
@@ -137,15 +161,21 @@ public class PublishDatabaseFromDataCatalog implements RequestHandler<Object, St
 	 * @return
 	 */
 	public static List<Database> getRequiredDatabases(List<Database> dBList, List<String> requiredDBPrefixList){
+		return getRequiredDatabases(dBList, new ReplicationFilter("", ",", "|", requiredDBPrefixList));
+	}
+
+	/**
+	 * 
+	 * @param dBList
+	 * @param replicationFilter
+	 * @return
+	 */
+	public static List<Database> getRequiredDatabases(List<Database> dBList, ReplicationFilter replicationFilter){
 		
 		List<Database> dBsToExportList = new ArrayList<Database>();
 		for(Database database : dBList) {
-			for(String dbPrefix : requiredDBPrefixList) {
-				if(database.getName().toLowerCase().startsWith(dbPrefix)) {
-					dBsToExportList.add(database);
-					break;
-				}
-			}
+			if(replicationFilter.includesDatabase(database.getName()))
+				dBsToExportList.add(database);
 		}
 		System.out.printf("Number of databases in Glue Catalog: %d, number of databases to be exported: %d \n", dBList.size(), dBsToExportList.size());
 		return dBsToExportList;
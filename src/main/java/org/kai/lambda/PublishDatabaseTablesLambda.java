@@ -12,14 +12,18 @@ import com.amazonaws.services.glue.model.Table;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.AmazonSNSClientBuilder;
 import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
 import com.google.gson.Gson;
 import org.kai.util.*;
 import org.kai.util.Constants.AttributeValue;
 import org.kai.util.Constants.MessageType;
+import org.kai.util.Constants.Priority;
 
 import java.util.*;
+import java.util.stream.Stream;
 
 /**
  * This class has AWS Lambda Handler method. Upon invocation, it gets an SQS Message from source SQS and gets the message(s) from the event.
@@ -41,7 +45,22 @@ public class PublishDatabaseTablesLambda implements RequestHandler<SQSEvent, Obj
 
 		String region = Optional.ofNullable(System.getenv("region")).orElse(Regions.US_EAST_1.getName());
 		String sqsQueue4GlueTable = Optional.ofNullable(System.getenv("sqs_queue_url_glue_table")).orElse("");
+		String snsTopicArn = Optional.ofNullable(System.getenv("sns_topic_arn_publish_glue_data_catalog")).orElse("");
+		String databasePriorityList = Optional.ofNullable(System.getenv("database_priority_list")).orElse("");
+		String priorityLaneWeights = Optional.ofNullable(System.getenv("priority_lane_weights")).orElse("");
+		String separator = Optional.ofNullable(System.getenv("separator")).orElse("|");
+		String listSeparator = Optional.ofNullable(System.getenv("list_separator")).orElse(",");
+		String replicationRuleList = Optional.ofNullable(System.getenv("replication_rule_list")).orElse("");
+		String dbPrefixString = Optional.ofNullable(System.getenv("database_prefix_list")).orElse("");
+		Map<Priority, String> laneQueueUrls = new EnumMap<>(Priority.class);
+		laneQueueUrls.put(Priority.High, Optional.ofNullable(System.getenv("sqs_queue_url_glue_table_high")).orElse(""));
+		laneQueueUrls.put(Priority.Normal, sqsQueue4GlueTable);
+		laneQueueUrls.put(Priority.Low, Optional.ofNullable(System.getenv("sqs_queue_url_glue_table_low")).orElse(""));
 		printEnvVariables(sqsQueue4GlueTable);
+		PriorityLanes priorityLanes = new PriorityLanes(databasePriorityList, listSeparator, separator, priorityLaneWeights, laneQueueUrls);
+		// Built from the same database prefixes and rules as the database stage, so it keeps every database that stage published
+		List<String> dbPrefixList = PublishDatabaseFromDataCatalog.tokenizeDatabasePrefixString(dbPrefixString, region, listSeparator, separator);
+		ReplicationFilter replicationFilter = new ReplicationFilter(replicationRuleList, listSeparator, separator, dbPrefixList);
 
 		// Client configuration
 		ClientConfiguration cc = new ClientConfiguration();
@@ -49,9 +68,11 @@ public class PublishDatabaseTablesLambda implements RequestHandler<SQSEvent, Obj
 				
 		AWSGlue glue = AWSGlueClientBuilder.standard().withRegion(region).withClientConfiguration(cc).build();
 		AmazonSQS sqs = AmazonSQSClientBuilder.standard().withRegion(region).withClientConfiguration(cc).build();
+		AmazonSNS sns = AmazonSNSClientBuilder.standard().withRegion(region).withClientConfiguration(cc).build();
 
 		GlueUtil glueUtil = new GlueUtil();
 		SQSUtil sqsUtil = new SQSUtil();
+		SNSUtil snsUtil = new SNSUtil();
 
 		/**
 		 * Iterate and process all the messages which are part of SQSEvent
@@ -82,13 +103,31 @@ public class PublishDatabaseTablesLambda implements RequestHandler<SQSEvent, Obj
 				System.out.println("Received SchemaType database, body: " + payLoad);
 				Database db = gson.fromJson(payLoad, Database.class);
 				Database database = glueUtil.getDatabaseIfExist(glue, msgSourceGlueCatalogId, db);
-				if (Optional.ofNullable(database).isPresent()) {
-					// Get Tables for a given Database
-					List<Table> dbTableList = glueUtil.getTables(glue, msgSourceGlueCatalogId, database.getName());
-					sqsUtil.publishTablestoSQS(sqs, sqsQueue4GlueTable, dbTableList, msgSourceGlueCatalogId, msgExportBatchId);
+				int numberOfTablesSent = 0;
+				if (Optional.ofNullable(database).isPresent() && !replicationFilter.includesDatabase(database.getName())) {
+					System.out.printf("Database '%s' is excluded by the replication rules. \n", database.getName());
+				} else if (Optional.ofNullable(database).isPresent()) {
+					// Tables go to the queue of their Database's priority lane
+					Priority lane = priorityLanes.laneOf(database.getName());
+					System.out.printf("Database '%s' is in the %s priority lane. \n", database.getName(), lane);
+					// Stream Tables for a given Database, publishing each page while the next one is fetched.
+					// Tables the replication rules exclude are dropped before they are serialized.
+					try (Stream<Table> dbTables = glueUtil.streamTables(glue, msgSourceGlueCatalogId, database.getName())
+							.filter(replicationFilter::includesTable)) {
+						numberOfTablesSent = sqsUtil.publishTablestoSQS(sqs, priorityLanes.queueUrl(lane), dbTables::iterator,
+								msgSourceGlueCatalogId, msgExportBatchId, lane);
+					}
 				} else {
 					System.out.printf("There is no Database with name '%s' exist in Glue Data Catalog. Tables cannot be retrieved. \n", db.getName());
 				}
+				// Count the database as exported even without tables, so the export batch can complete
+				if (!snsTopicArn.isEmpty() && !msgExportBatchId.isEmpty()) {
+					ExportBatchProgress progress = new ExportBatchProgress();
+					progress.setExportBatchId(msgExportBatchId);
+					progress.setDatabasesExported(1);
+					progress.setTablesEnqueued(numberOfTablesSent);
+					snsUtil.publishExportBatchProgressToSNS(sns, snsTopicArn, progress, msgSourceGlueCatalogId);
+				}
 			} else {
 				System.out.println("Error: Expected to receive SchemaType database, instead received SchemaType: " + msgMessageType + " body " + payLoad);
 			}
@@ -12,13 +12,22 @@ import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.amazonaws.services.sns.AmazonSNS;
 import com.amazonaws.services.sns.AmazonSNSClientBuilder;
 import com.amazonaws.services.sns.model.PublishResult;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
 import com.google.gson.Gson;
 import org.kai.util.Constants.AttributeValue;
 import org.kai.util.Constants.MessageType;
+import org.kai.util.Constants.Priority;
+import org.kai.util.PartitionRetention;
+import org.kai.util.PriorityLanes;
 import org.kai.util.SNSUtil;
+import org.kai.util.SQSUtil;
 import org.kai.util.TableInfo;
 
 
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
@@ -36,23 +45,51 @@ import java.util.Optional;
 public class PublishTableSchemaLambda implements RequestHandler<SQSEvent, Object> {
 
 	@Override
-	public String handleRequest(SQSEvent event, Context context) {
+	public Object handleRequest(SQSEvent event, Context context) {
 		String region = Optional.ofNullable(System.getenv("region")).orElse(Regions.US_EAST_1.getName());
 		String	s3BucketName = Optional.ofNullable(System.getenv("s3_bucket_name")).orElse("S3BucketNameForGlueDataCatalogPartitions_"+region);
 		String	SNSTopicARN = Optional.ofNullable(System.getenv("sns_topic_arn_publish_glue_data_catalog")).orElse("");
+		long fullSnapshotIntervalMillis = Long.parseLong(Optional.ofNullable(System.getenv("full_snapshot_interval_millis")).orElse("86400000"));
+		boolean excludePartitionColumnSchema = Boolean.parseBoolean(Optional.ofNullable(System.getenv("exclude_partition_column_schema")).orElse("false"));
+		int messageCompressionThresholdBytes = Integer.parseInt(Optional.ofNullable(System.getenv("message_compression_threshold_bytes")).orElse("0"));
+		int maxInlineMessageBytes = Integer.parseInt(Optional.ofNullable(System.getenv("max_inline_message_bytes")).orElse("0"));
+		String databasePriorityList = Optional.ofNullable(System.getenv("database_priority_list")).orElse("");
+		String priorityLaneWeights = Optional.ofNullable(System.getenv("priority_lane_weights")).orElse("");
+		String separator = Optional.ofNullable(System.getenv("separator")).orElse("|");
+		String listSeparator = Optional.ofNullable(System.getenv("list_separator")).orElse(",");
+		int laneDeferralSeconds = Integer.parseInt(Optional.ofNullable(System.getenv("lane_deferral_seconds")).orElse("30"));
+		String partitionRetentionList = Optional.ofNullable(System.getenv("partition_retention_list")).orElse("");
+		Map<Priority, String> laneQueueUrls = new EnumMap<>(Priority.class);
+		laneQueueUrls.put(Priority.High, Optional.ofNullable(System.getenv("sqs_queue_url_glue_table_high")).orElse(""));
+		laneQueueUrls.put(Priority.Normal, Optional.ofNullable(System.getenv("sqs_queue_url_glue_table")).orElse(""));
+		laneQueueUrls.put(Priority.Low, Optional.ofNullable(System.getenv("sqs_queue_url_glue_table_low")).orElse(""));
 		printEnvVariables(region, s3BucketName, SNSTopicARN);
 
 
 		AmazonSNS sns = AmazonSNSClientBuilder.standard().withRegion(region).build();
+		AmazonSQS sqs = AmazonSQSClientBuilder.standard().withRegion(region).build();
 		SNSUtil snsUtil = new SNSUtil();
+		SQSUtil sqsUtil = new SQSUtil();
+		PriorityLanes priorityLanes = new PriorityLanes(databasePriorityList, listSeparator, separator, priorityLaneWeights, laneQueueUrls);
+		PartitionRetention partitionRetention = new PartitionRetention(partitionRetentionList, listSeparator, separator);
 
 
 		/**
 		 * Iterate and process all the messages which are part of SQSEvent
 		 */
 		System.out.println("Number of messages in SQS Event: " + event.getRecords().size());
+		// Do this lane's share of the messages while higher priority lanes have a backlog, and return the rest to SQS
+		List<SQSEvent.SQSMessage> records = event.getRecords();
+		List<String> deferredMessageIds = new ArrayList<>();
+		if (!records.isEmpty()) {
+			Priority eventLane = priorityLanes.laneOfQueue(records.get(0).getEventSourceArn());
+			int numberToProcess = priorityLanes.numberToProcess(sqs, eventLane, records.size());
+			deferredMessageIds = sqsUtil.deferMessages(sqs, priorityLanes.queueUrl(eventLane), records.subList(numberToProcess, records.size()),
+					laneDeferralSeconds);
+			records = records.subList(0, numberToProcess);
+		}
 		Gson gson = new Gson();
-		for (SQSEvent.SQSMessage msg : event.getRecords()) {
+		for (SQSEvent.SQSMessage msg : records) {
 			String payLoad = msg.getBody();
 			String msgExportBatchId = "";
 			String msgSourceGlueCatalogId = "";
@@ -77,10 +114,19 @@ public class PublishTableSchemaLambda implements RequestHandler<SQSEvent, Object
 				Table table = gson.fromJson(payLoad, Table.class);
 				if (Optional.ofNullable(table).isPresent()) {
 					TableInfo tbi = new TableInfo();
-					tbi.setTable(table, msgSourceGlueCatalogId, s3BucketName, region);
-					PublishResult publishResponse = snsUtil.publishTableInfoToSNS(sns, SNSTopicARN, tbi, msgSourceGlueCatalogId, msgExportBatchId);
+					tbi.setTable(table, msgSourceGlueCatalogId, s3BucketName, region, fullSnapshotIntervalMillis, excludePartitionColumnSchema,
+							messageCompressionThresholdBytes > 0 ? maxInlineMessageBytes : 0, partitionRetention);
+					// A message pointing at a snapshot that is not in S3 cannot be imported, and its digest would make
+					// the next export send only a delta
+					if (!tbi.isPartitionSnapshotStored()) {
+						System.out.printf("Error: Partitions of table '%s' could not be saved to S3. Table Schema not published. \n", table.getName());
+						continue;
+					}
+					PublishResult publishResponse = snsUtil.publishTableInfoToSNS(sns, SNSTopicARN, tbi, msgSourceGlueCatalogId, msgExportBatchId,
+							messageCompressionThresholdBytes, priorityLanes.laneOf(table.getDatabaseName()));
 					if(Optional.ofNullable(publishResponse).isPresent()) {
 						System.out.println("Info: Table Schema Published to SNS Topic. Message Id: " + publishResponse.getMessageId());
+						tbi.commitPartitionDigest();
 					} else {
 						System.out.println("Error: Table Schema Published to SNS Topic.");
 					}
@@ -91,7 +137,7 @@ public class PublishTableSchemaLambda implements RequestHandler<SQSEvent, Object
 				System.out.println("Error: Expected to receive SchemaType table, instead received SchemaType: " + msgMessageType + " body " + payLoad);
 			}
 		}
-		return "Message from SQS was processed successfully!";
+		return sqsUtil.createBatchResponse(deferredMessageIds);
 	}
 
 	/**
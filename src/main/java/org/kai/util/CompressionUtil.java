@@ -0,0 +1,58 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package org.kai.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class has utility methods to compress message payloads into a text-safe encoding
+ * that can be sent through SNS and SQS.
+ *
+ */
+public class CompressionUtil {
+
+	// Value of the ContentEncoding message attribute for gzip compressed, base64 encoded payloads
+	public static final String GZIP_BASE64 = "gzip+base64";
+
+	/**
+	 * Compress a String with gzip and encode the result with base64
+	 * @param content
+	 * @return
+	 */
+	public String compress(String content) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+			gzip.write(content.getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not compress message payload", e);
+		}
+		return Base64.getEncoder().encodeToString(bytes.toByteArray());
+	}
+
+	/**
+	 * Decode a base64 String and decompress it with gzip
+	 * @param encoded
+	 * @return
+	 */
+	public String decompress(String encoded) {
+		byte[] compressed = Base64.getDecoder().decode(encoded);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = gzip.read(buffer)) != -1)
+				bytes.write(buffer, 0, read);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not decompress message payload", e);
+		}
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
@@ -5,4 +5,8 @@ public interface AttributeValue {
     final public String SourceGlueDataCatalogId = "SourceGlueDataCatalogId";
     final public String MessageType = "MessageType";
     final public String SnsMessageType = "Type";
+    final public String ContentEncoding = "ContentEncoding";
+    final public String ContinuationCount = "ContinuationCount";
+    final public String Priority = "Priority";
+    final public String RetryCount = "RetryCount";
 }
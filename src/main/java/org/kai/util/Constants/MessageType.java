@@ -4,5 +4,6 @@ public enum MessageType {
     Database,
     Table,
     TableInfo,
+    ExportBatchProgress,
     Notification
 }
@@ -0,0 +1,7 @@
+package org.kai.util.Constants;
+
+public enum Priority {
+    High,
+    Normal,
+    Low
+}
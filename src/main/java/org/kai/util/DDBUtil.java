@@ -10,12 +10,17 @@ import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.PutItemOutcome;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
 import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
 import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
 import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
 import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 import com.google.common.collect.Lists;
 
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -32,6 +37,14 @@ import java.util.Optional;
  */
 public class DDBUtil {
 
+	// Maximum number of items in one BatchWriteItem request
+	public static final int MAX_BATCH_WRITE_ITEMS = 25;
+	private static AmazonDynamoDB sharedClient;
+	final private int maxBatchWriteAttempts = 8;
+	final private long maxBackoffMillis = 5000;
+	// DynamoDB items are at most 400 KB. A larger table schema is left out of the status item.
+	final private int maxTableSchemaBytes = 350 * 1024;
+
 	/**
 	 * Method to track the status of Tables imported 
 	 * @param tableStatus
@@ -45,24 +58,10 @@ public class DDBUtil {
                                           String targetGlueCatalogId, long importRunId, String exportBatchId, String ddbTblName) {
 		boolean itemInserted = false;
 		
-		ClientConfiguration cc = new ClientConfiguration();
-		cc.setMaxErrorRetry(10);
-		AmazonDynamoDB client = AmazonDynamoDBClientBuilder.standard().withClientConfiguration(cc).build();
-		DynamoDB dynamoDB = new DynamoDB(client);
+		DynamoDB dynamoDB = new DynamoDB(getClient());
 		
 		Table table = dynamoDB.getTable(ddbTblName);
-		Item item = new Item().withPrimaryKey("table_id", tableStatus.getTableName().concat("|").concat(tableStatus.getDbName()))
-				.withNumber("import_run_id", importRunId)
-				.withString("export_batch_id", exportBatchId)
-				.withString("table_name", tableStatus.getTableName())
-				.withString("database_name", tableStatus.getDbName())
-				.withString("table_schema", tableStatus.getTableSchema())
-				.withString("target_glue_catalog_id", targetGlueCatalogId)
-				.withString("source_glue_catalog_id", sourceGlueCatalogId)
-				.withBoolean("table_created", tableStatus.isCreated())
-				.withBoolean("table_updated", tableStatus.isUpdated())
-				.withBoolean("export_has_partitions", tableStatus.isExportHasPartitions())
-				.withBoolean("partitions_updated", tableStatus.isPartitionsReplicated());
+		Item item = createTableImportStatusItem(tableStatus, sourceGlueCatalogId, targetGlueCatalogId, importRunId, exportBatchId);
 		// Write the item to the table
 		try {
 			PutItemOutcome outcome = table.putItem(item);
@@ -76,7 +75,6 @@ public class DDBUtil {
 			e.printStackTrace();
 			System.out.println("Could not insert a Table import status to DynamoDB table: " + ddbTblName);
 		}
-		dynamoDB.shutdown();
 		return itemInserted;
 	}
     
@@ -94,15 +92,11 @@ public class DDBUtil {
 			long importRunId, String exportBatchId, boolean isCreated) {
 		boolean itemInserted = false;
 		
-		ClientConfiguration cc = new ClientConfiguration();
-		cc.setMaxErrorRetry(10);
-		AmazonDynamoDB client = AmazonDynamoDBClientBuilder.standard().withClientConfiguration(cc).build();
-		DynamoDB dynamoDB = new DynamoDB(client);
+		DynamoDB dynamoDB = new DynamoDB(getClient());
 		
 		com.amazonaws.services.dynamodbv2.document.Table table = dynamoDB.getTable(ddbTblName);
-		Item item = new Item().withPrimaryKey("db_id", databaseName).withNumber("import_run_id", importRunId)
-				.withString("export_batch_id", exportBatchId).withString("target_glue_catalog_id", targetGlueCatalogId)
-				.withString("source_glue_catalog_id", sourceGlueCatalogId).withBoolean("is_created", isCreated);
+		Item item = createDatabaseImportStatusItem(sourceGlueCatalogId, targetGlueCatalogId, databaseName, importRunId,
+				exportBatchId, isCreated);
 		// Write the item to the table
 		try {
 			PutItemOutcome outcome = table.putItem(item);
@@ -116,7 +110,6 @@ public class DDBUtil {
 			e.printStackTrace();
 			System.out.println("Could not insert a Database import status to DynamoDB table: " + ddbTblName);
 		}
-		dynamoDB.shutdown();
 		return itemInserted;
 	}
 	
@@ -140,22 +133,13 @@ public class DDBUtil {
 		if (Optional.of(glueDBName).isPresent() && Optional.of(glueTableName).isPresent()
 				&& Optional.of(glueTableSchema).isPresent() && Optional.of(snsMsgId).isPresent()) {
 			
-			ClientConfiguration cc = new ClientConfiguration();
-			cc.setMaxErrorRetry(10);
-			AmazonDynamoDB client = AmazonDynamoDBClientBuilder.standard().withClientConfiguration(cc).build();
-			DynamoDB dynamoDB = new DynamoDB(client);
+			DynamoDB dynamoDB = new DynamoDB(getClient());
 			
 			com.amazonaws.services.dynamodbv2.document.Table table = dynamoDB.getTable(ddbTblName);
 			
-			Item item = new Item().withPrimaryKey("table_id", glueTableName.concat("|").concat(glueDBName))  
-					.withNumber("export_run_id", exportRunId).withString("export_batch_id", exportBatchId)
-					.withString("source_glue_catalog_id", glueCatalogId).withString("table_schema", glueTableSchema)
-					.withString("sns_msg_id", snsMsgId).withBoolean("is_exported", isExported)
-					.withBoolean("is_large_table", isLargeTable);
-			
-			if(Optional.ofNullable(bucketName).isPresent() && Optional.ofNullable(objectKey).isPresent())
-				item.withString("s3_bucket_name", bucketName).withString("object_key", objectKey);
-		
+			Item item = createTableExportStatusItem(glueDBName, glueTableName, glueTableSchema, snsMsgId, glueCatalogId,
+					exportRunId, exportBatchId, isExported, isLargeTable, bucketName, objectKey);
+
 			// Write the item to the table
 			try {
 				PutItemOutcome outcome = table.putItem(item);	
@@ -168,7 +152,6 @@ public class DDBUtil {
 				e.printStackTrace();
 				System.out.println("Could not insert a Table export status to DynamoDB table: " + ddbTblName);
 			}
-			dynamoDB.shutdown();
 		} else {
 			System.out.println("Not all the values present to insert Table item to ");
 		}
@@ -190,19 +173,11 @@ public class DDBUtil {
 			String glueCatalogId, long exportRunId, String exportBatchId, boolean isExported) {
 		boolean itemInserted = false;
 		
-		ClientConfiguration cc = new ClientConfiguration();
-		cc.setMaxErrorRetry(10);
-		AmazonDynamoDB client = AmazonDynamoDBClientBuilder.standard().withClientConfiguration(cc).build();
-		DynamoDB dynamoDB = new DynamoDB(client);
+		DynamoDB dynamoDB = new DynamoDB(getClient());
 		
 		com.amazonaws.services.dynamodbv2.document.Table table = dynamoDB.getTable(ddbTblName);
-		Item item = new Item().withPrimaryKey("db_id", glueDBName)
-				.withNumber("export_run_id", exportRunId)
-				.withString("export_batch_id", exportBatchId)
-				.withString("source_glue_catalog_id", glueCatalogId)
-				.withString("database_schema", glueDBSchema)
-				.withString("sns_msg_id", snsMsgId)
-				.withBoolean("is_exported", isExported);
+		Item item = createDatabaseExportStatusItem(glueDBName, glueDBSchema, snsMsgId, glueCatalogId, exportRunId,
+				exportBatchId, isExported);
 		// Write the item to the table
 		try {
 			PutItemOutcome outcome = table.putItem(item);
@@ -215,10 +190,227 @@ public class DDBUtil {
 			e.printStackTrace();
 			System.out.println("Could not insert a Database export status to DynamoDB table: " + ddbTblName);
 		}
-		dynamoDB.shutdown();
 		return itemInserted;
 	}
 	
+	/**
+	 * Create the status item of an imported Table
+	 * @param tableStatus
+	 * @param sourceGlueCatalogId
+	 * @param targetGlueCatalogId
+	 * @param importRunId
+	 * @param exportBatchId
+	 * @return
+	 */
+	public Item createTableImportStatusItem(TableReplicationStatus tableStatus, String sourceGlueCatalogId,
+			String targetGlueCatalogId, long importRunId, String exportBatchId) {
+		Item item = new Item().withPrimaryKey("table_id", tableStatus.getTableName().concat("|").concat(tableStatus.getDbName()))
+				.withNumber("import_run_id", importRunId)
+				.withString("export_batch_id", exportBatchId)
+				.withString("table_name", tableStatus.getTableName())
+				.withString("database_name", tableStatus.getDbName())
+				.withString("target_glue_catalog_id", targetGlueCatalogId)
+				.withString("source_glue_catalog_id", sourceGlueCatalogId)
+				.withBoolean("table_created", tableStatus.isCreated())
+				.withBoolean("table_updated", tableStatus.isUpdated())
+				.withBoolean("export_has_partitions", tableStatus.isExportHasPartitions())
+				.withBoolean("partitions_updated", tableStatus.isPartitionsReplicated());
+		if (Optional.ofNullable(tableStatus.getTableSchema()).isPresent())
+			withTableSchema(item, tableStatus.getTableSchema());
+		return item;
+	}
+
+	/**
+	 * Add the table schema to a status item if it fits in the item, otherwise mark it as omitted
+	 * @param item
+	 * @param tableSchema
+	 * @return
+	 */
+	private Item withTableSchema(Item item, String tableSchema) {
+		// A UTF-8 character takes at most 3 bytes per UTF-16 char, so most schemas need no encoding to check
+		if ((long) tableSchema.length() * 3 > maxTableSchemaBytes
+				&& tableSchema.getBytes(StandardCharsets.UTF_8).length > maxTableSchemaBytes) {
+			System.out.printf("Table schema of %d characters is too large for the status item of table '%s'. Leaving it out. \n",
+					tableSchema.length(), item.getString("table_id"));
+			return item.withBoolean("table_schema_omitted", true);
+		}
+		return item.withString("table_schema", tableSchema);
+	}
+
+	/**
+	 * Create the status item of an imported Database
+	 * @param sourceGlueCatalogId
+	 * @param targetGlueCatalogId
+	 * @param databaseName
+	 * @param importRunId
+	 * @param exportBatchId
+	 * @param isCreated
+	 * @return
+	 */
+	public Item createDatabaseImportStatusItem(String sourceGlueCatalogId, String targetGlueCatalogId, String databaseName,
+			long importRunId, String exportBatchId, boolean isCreated) {
+		return new Item().withPrimaryKey("db_id", databaseName).withNumber("import_run_id", importRunId)
+				.withString("export_batch_id", exportBatchId).withString("target_glue_catalog_id", targetGlueCatalogId)
+				.withString("source_glue_catalog_id", sourceGlueCatalogId).withBoolean("is_created", isCreated);
+	}
+
+	/**
+	 * Create the status item of an exported Table
+	 * @param glueDBName
+	 * @param glueTableName
+	 * @param glueTableSchema
+	 * @param snsMsgId
+	 * @param glueCatalogId
+	 * @param exportRunId
+	 * @param exportBatchId
+	 * @param isExported
+	 * @param isLargeTable
+	 * @param bucketName
+	 * @param objectKey
+	 * @return
+	 */
+	public Item createTableExportStatusItem(String glueDBName, String glueTableName, String glueTableSchema, String snsMsgId,
+			String glueCatalogId, long exportRunId, String exportBatchId, boolean isExported, boolean isLargeTable,
+			String bucketName, String objectKey) {
+		Item item = new Item().withPrimaryKey("table_id", glueTableName.concat("|").concat(glueDBName))
+				.withNumber("export_run_id", exportRunId).withString("export_batch_id", exportBatchId)
+				.withString("source_glue_catalog_id", glueCatalogId)
+				.withString("sns_msg_id", snsMsgId).withBoolean("is_exported", isExported)
+				.withBoolean("is_large_table", isLargeTable);
+		withTableSchema(item, glueTableSchema);
+		if(Optional.ofNullable(bucketName).isPresent() && Optional.ofNullable(objectKey).isPresent())
+			item.withString("s3_bucket_name", bucketName).withString("object_key", objectKey);
+		return item;
+	}
+
+	/**
+	 * Create the status item of an exported Database
+	 * @param glueDBName
+	 * @param glueDBSchema
+	 * @param snsMsgId
+	 * @param glueCatalogId
+	 * @param exportRunId
+	 * @param exportBatchId
+	 * @param isExported
+	 * @return
+	 */
+	public Item createDatabaseExportStatusItem(String glueDBName, String glueDBSchema, String snsMsgId, String glueCatalogId,
+			long exportRunId, String exportBatchId, boolean isExported) {
+		return new Item().withPrimaryKey("db_id", glueDBName)
+				.withNumber("export_run_id", exportRunId)
+				.withString("export_batch_id", exportBatchId)
+				.withString("source_glue_catalog_id", glueCatalogId)
+				.withString("database_schema", glueDBSchema)
+				.withString("sns_msg_id", snsMsgId)
+				.withBoolean("is_exported", isExported);
+	}
+
+	/**
+	 * Method to get the last ExportBatchId applied to a Table. Returns -1 if none was recorded.
+	 * @param ddbTblName
+	 * @param tableId
+	 * @return
+	 */
+	public long getTableHighWaterMark(String ddbTblName, String tableId) {
+		long highWaterMark = -1;
+
+		DynamoDB dynamoDB = new DynamoDB(getClient());
+
+		Table table = dynamoDB.getTable(ddbTblName);
+		try {
+			Item item = table.getItem(new GetItemSpec().withPrimaryKey("table_id", tableId).withConsistentRead(true));
+			if (Optional.ofNullable(item).isPresent() && item.isPresent("export_batch_id"))
+				highWaterMark = item.getLong("export_batch_id");
+		} catch(Exception e) {
+			e.printStackTrace();
+			System.out.println("Could not read Table high-water mark from DynamoDB table: " + ddbTblName);
+		}
+		return highWaterMark;
+	}
+
+	/**
+	 * Method to record the last ExportBatchId applied to a Table. The high-water mark only moves forward.
+	 * @param ddbTblName
+	 * @param tableId
+	 * @param exportBatchId
+	 * @return
+	 */
+	public boolean updateTableHighWaterMark(String ddbTblName, String tableId, long exportBatchId) {
+		boolean itemUpdated = false;
+
+		DynamoDB dynamoDB = new DynamoDB(getClient());
+
+		Table table = dynamoDB.getTable(ddbTblName);
+		UpdateItemSpec updateItemSpec = new UpdateItemSpec().withPrimaryKey("table_id", tableId)
+				.withUpdateExpression("set export_batch_id = :b, applied_time = :t")
+				.withConditionExpression("attribute_not_exists(export_batch_id) or export_batch_id < :b")
+				.withValueMap(new ValueMap().withLong(":b", exportBatchId).withLong(":t", System.currentTimeMillis()));
+		try {
+			table.updateItem(updateItemSpec);
+			itemUpdated = true;
+			System.out.printf("Table high-water mark for '%s' moved to export batch %d. \n", tableId, exportBatchId);
+		} catch(ConditionalCheckFailedException e) {
+			System.out.printf("Table high-water mark for '%s' is already at or beyond export batch %d. \n", tableId, exportBatchId);
+		} catch(Exception e) {
+			e.printStackTrace();
+			System.out.println("Could not update Table high-water mark in DynamoDB table: " + ddbTblName);
+		}
+		return itemUpdated;
+	}
+
+	/**
+	 * Method to get the hash of the partition snapshot last applied to a Table
+	 * @param ddbTblName
+	 * @param tableId
+	 * @return the hash, or null if none is recorded
+	 */
+	public String getAppliedPartitionHash(String ddbTblName, String tableId) {
+		String partitionHash = null;
+
+		DynamoDB dynamoDB = new DynamoDB(getClient());
+
+		Table table = dynamoDB.getTable(ddbTblName);
+		try {
+			Item item = table.getItem(new GetItemSpec().withPrimaryKey("table_id", tableId).withConsistentRead(true));
+			if (Optional.ofNullable(item).isPresent() && item.isPresent("partition_hash"))
+				partitionHash = item.getString("partition_hash");
+		} catch(Exception e) {
+			e.printStackTrace();
+			System.out.println("Could not read applied partition hash from DynamoDB table: " + ddbTblName);
+		}
+		return partitionHash;
+	}
+
+	/**
+	 * Method to record the hash of the partition snapshot applied to a Table. A null hash clears it,
+	 * e.g. after a partition delta or a failed import.
+	 * @param ddbTblName
+	 * @param tableId
+	 * @param partitionHash
+	 * @return
+	 */
+	public boolean updateAppliedPartitionHash(String ddbTblName, String tableId, String partitionHash) {
+		boolean itemUpdated = false;
+
+		DynamoDB dynamoDB = new DynamoDB(getClient());
+
+		Table table = dynamoDB.getTable(ddbTblName);
+		UpdateItemSpec updateItemSpec = new UpdateItemSpec().withPrimaryKey("table_id", tableId);
+		if (Optional.ofNullable(partitionHash).isPresent())
+			updateItemSpec.withUpdateExpression("set partition_hash = :h")
+					.withValueMap(new ValueMap().withString(":h", partitionHash));
+		else
+			updateItemSpec.withUpdateExpression("remove partition_hash");
+		try {
+			table.updateItem(updateItemSpec);
+			itemUpdated = true;
+		} catch(Exception e) {
+			e.printStackTrace();
+			System.out.println("Could not update applied partition hash in DynamoDB table: " + ddbTblName);
+		}
+		return itemUpdated;
+	}
+
 	/**
 	 * This method inserts multiple items to a DynamoDB table using Batch Write Item API
 	 * @param itemList
@@ -227,20 +419,64 @@ public class DDBUtil {
 	public void insertIntoDynamoDB(List<WriteRequest> itemList, String dynamoDBTblName) {
 		
 		System.out.printf("Inserting %d items to DynamoDB using Batch API call. \n", itemList.size());
-		AmazonDynamoDB dynamoDB = AmazonDynamoDBClientBuilder.standard().build();
-		for (List<WriteRequest> miniBatch : Lists.partition(itemList, 25)) { 
-			Map<String, List<WriteRequest>> requestItems = new HashMap<String, List<WriteRequest>>();
-			requestItems.put(dynamoDBTblName, miniBatch);
-			BatchWriteItemRequest batchWriteItemRequest = new BatchWriteItemRequest()
-					.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
-					.withRequestItems(requestItems);
-			BatchWriteItemResult result = dynamoDB.batchWriteItem(batchWriteItemRequest);
-			while (result.getUnprocessedItems().size() > 0) {
-				 Map<String, List<WriteRequest>> unprocessedItems = result.getUnprocessedItems();
-				 result = dynamoDB.batchWriteItem(unprocessedItems);
+		int numberOfItemsNotWritten = 0;
+		for (List<WriteRequest> miniBatch : Lists.partition(itemList, MAX_BATCH_WRITE_ITEMS))
+			numberOfItemsNotWritten += batchWriteItems(dynamoDBTblName, miniBatch);
+		if (numberOfItemsNotWritten > 0)
+			System.out.printf("%d items could not be inserted to DynamoDB table: %s \n", numberOfItemsNotWritten, dynamoDBTblName);
+	}
+
+	/**
+	 * Write one batch of up to 25 items. Items DynamoDB leaves unprocessed are sent again with exponential backoff.
+	 * @param ddbTblName
+	 * @param batch
+	 * @return number of items that could not be written
+	 */
+	public int batchWriteItems(String ddbTblName, List<WriteRequest> batch) {
+		Map<String, List<WriteRequest>> requestItems = new HashMap<String, List<WriteRequest>>();
+		requestItems.put(ddbTblName, batch);
+		for (int attempt = 1; ; attempt++) {
+			try {
+				BatchWriteItemResult result = getClient().batchWriteItem(new BatchWriteItemRequest()
+						.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+						.withRequestItems(requestItems));
+				requestItems = result.getUnprocessedItems();
+			} catch(Exception e) {
+				e.printStackTrace();
+				System.out.println("Could not write a batch of items to DynamoDB table: " + ddbTblName);
+				return countItems(requestItems);
+			}
+			if (!Optional.ofNullable(requestItems).isPresent() || requestItems.isEmpty())
+				return 0;
+			if (attempt >= maxBatchWriteAttempts) {
+				System.out.printf("%d items stayed unprocessed after %d attempts to write them to DynamoDB table: %s \n",
+						countItems(requestItems), maxBatchWriteAttempts, ddbTblName);
+				return countItems(requestItems);
+			}
+			try {
+				Thread.sleep((long) Math.min(maxBackoffMillis, 50 * Math.pow(2, attempt - 1)));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return countItems(requestItems);
 			}
 		}
-		dynamoDB.shutdown();
+	}
+
+	private static int countItems(Map<String, List<WriteRequest>> requestItems) {
+		return requestItems.values().stream().mapToInt(List::size).sum();
+	}
+
+	/**
+	 * The DynamoDB client is created once per Lambda container and shared by all DDBUtil instances
+	 * @return
+	 */
+	static synchronized AmazonDynamoDB getClient() {
+		if (sharedClient == null) {
+			ClientConfiguration cc = new ClientConfiguration();
+			cc.setMaxErrorRetry(10);
+			sharedClient = AmazonDynamoDBClientBuilder.standard().withClientConfiguration(cc).build();
+		}
+		return sharedClient;
 	}
 		
-}
\ No newline at end of file
+}
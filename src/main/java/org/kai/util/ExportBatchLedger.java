@@ -0,0 +1,233 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package org.kai.util;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the progress of export batches in a target region in a DynamoDB table,
+ * keyed by ExportBatchId and target region.
+ *
+ * Counts are added up in memory during an invocation and written with one atomic counter update
+ * per export batch when the ledger is flushed, so concurrent import functions never overwrite each other.
+ * The update that makes the counts of a batch meet is the one that marks it complete.
+ * Counts are at least once: a message that is delivered again after its counts were flushed is counted again.
+ *
+ */
+public class ExportBatchLedger {
+
+	private final String ddbTblName;
+	private final String targetRegion;
+	private final Map<String, Counters> pendingCounts = new ConcurrentHashMap<>();
+
+	/**
+	 * @param ddbTblName DynamoDB table of the ledger. Null or empty disables the ledger.
+	 * @param targetRegion
+	 */
+	public ExportBatchLedger(String ddbTblName, String targetRegion) {
+		this.ddbTblName = ddbTblName;
+		this.targetRegion = targetRegion;
+	}
+
+	public boolean isEnabled() {
+		return Optional.ofNullable(ddbTblName).isPresent() && !ddbTblName.isEmpty();
+	}
+
+	/**
+	 * Record the Databases and Tables the export side enqueued
+	 * @param exportCounts
+	 */
+	public void recordExport(ExportBatchProgress exportCounts) {
+		Counters counters = counters(exportCounts.getExportBatchId());
+		if (counters == null)
+			return;
+		counters.databasesEnqueued.addAndGet(exportCounts.getDatabasesEnqueued());
+		counters.databasesExported.addAndGet(exportCounts.getDatabasesExported());
+		counters.tablesEnqueued.addAndGet(exportCounts.getTablesEnqueued());
+	}
+
+	/**
+	 * Record a Table that was imported
+	 * @param exportBatchId
+	 * @param partitionsApplied
+	 * @param partitionsFailed
+	 */
+	public void recordTableApplied(String exportBatchId, long partitionsApplied, long partitionsFailed) {
+		Counters counters = counters(exportBatchId);
+		if (counters == null)
+			return;
+		counters.tablesApplied.incrementAndGet();
+		counters.partitionsApplied.addAndGet(partitionsApplied);
+		counters.partitionsFailed.addAndGet(partitionsFailed);
+	}
+
+	/**
+	 * Record a Table that could not be imported
+	 * @param exportBatchId
+	 * @param partitionsFailed
+	 */
+	public void recordTableFailed(String exportBatchId, long partitionsFailed) {
+		Counters counters = counters(exportBatchId);
+		if (counters == null)
+			return;
+		counters.tablesFailed.incrementAndGet();
+		counters.partitionsFailed.addAndGet(partitionsFailed);
+	}
+
+	/**
+	 * Record a Table message that was not imported because a newer export of the Table was applied
+	 * @param exportBatchId
+	 */
+	public void recordTableSkipped(String exportBatchId) {
+		Counters counters = counters(exportBatchId);
+		if (counters == null)
+			return;
+		counters.tablesSkipped.incrementAndGet();
+	}
+
+	private Counters counters(String exportBatchId) {
+		if (!isEnabled() || exportBatchId == null || exportBatchId.isEmpty())
+			return null;
+		return pendingCounts.computeIfAbsent(exportBatchId, k -> new Counters());
+	}
+
+	/**
+	 * Add the counts recorded since the last flush to the ledger
+	 * @return the progress of the export batches that were updated
+	 */
+	public List<ExportBatchProgress> flush() {
+		List<ExportBatchProgress> progressList = new ArrayList<>();
+		if (!isEnabled())
+			return progressList;
+		Table table = new DynamoDB(DDBUtil.getClient()).getTable(ddbTblName);
+		for (String exportBatchId : new ArrayList<>(pendingCounts.keySet())) {
+			Counters counters = pendingCounts.remove(exportBatchId);
+			long now = System.currentTimeMillis();
+			StringBuilder updateExpression = new StringBuilder("add databases_enqueued :de, databases_exported :dx, tables_enqueued :te, ")
+					.append("tables_applied :ta, tables_failed :tf, tables_skipped :ts, partitions_applied :pa, partitions_failed :pf ")
+					.append("set last_update_time = :now");
+			if (counters.hasImports())
+				updateExpression.append(", first_apply_time = if_not_exists(first_apply_time, :now), last_apply_time = :now");
+			UpdateItemSpec updateItemSpec = new UpdateItemSpec()
+					.withPrimaryKey("export_batch_id", exportBatchId, "target_region", targetRegion)
+					.withUpdateExpression(updateExpression.toString())
+					.withValueMap(new ValueMap().withLong(":de", counters.databasesEnqueued.get())
+							.withLong(":dx", counters.databasesExported.get())
+							.withLong(":te", counters.tablesEnqueued.get())
+							.withLong(":ta", counters.tablesApplied.get())
+							.withLong(":tf", counters.tablesFailed.get())
+							.withLong(":ts", counters.tablesSkipped.get())
+							.withLong(":pa", counters.partitionsApplied.get())
+							.withLong(":pf", counters.partitionsFailed.get())
+							.withLong(":now", now))
+					.withReturnValues(ReturnValue.ALL_NEW);
+			try {
+				Item item = table.updateItem(updateItemSpec).getItem();
+				ExportBatchProgress progress = toProgress(exportBatchId, item);
+				if (progress.isComplete() && progress.getCompletionTime() == 0)
+					markComplete(table, progress, now);
+				System.out.println(progress);
+				progressList.add(progress);
+			} catch(Exception e) {
+				e.printStackTrace();
+				System.out.println("Could not update export batch ledger in DynamoDB table: " + ddbTblName);
+			}
+		}
+		return progressList;
+	}
+
+	/**
+	 * Record the completion of a batch once, with its throughput
+	 */
+	private void markComplete(Table table, ExportBatchProgress progress, long completionTime) {
+		progress.setCompletionTime(completionTime);
+		UpdateItemSpec updateItemSpec = new UpdateItemSpec()
+				.withPrimaryKey("export_batch_id", progress.getExportBatchId(), "target_region", targetRegion)
+				.withUpdateExpression("set completion_time = :c, elapsed_millis = :e, tables_per_second = :t, partitions_per_second = :p")
+				.withConditionExpression("attribute_not_exists(completion_time)")
+				.withValueMap(new ValueMap().withLong(":c", completionTime).withLong(":e", progress.getElapsedMillis())
+						.withNumber(":t", progress.getTablesPerSecond()).withNumber(":p", progress.getPartitionsPerSecond()));
+		try {
+			table.updateItem(updateItemSpec);
+			System.out.printf("Export batch %s is complete in region %s. %d tables and %d partitions applied in %d ms. \n",
+					progress.getExportBatchId(), targetRegion, progress.getTablesApplied(), progress.getPartitionsApplied(),
+					progress.getElapsedMillis());
+		} catch(ConditionalCheckFailedException e) {
+			// Another import function marked it complete first
+		}
+	}
+
+	/**
+	 * Read the progress of an export batch
+	 * @param exportBatchId
+	 * @return the progress, or null if the batch is not in the ledger
+	 */
+	public ExportBatchProgress getProgress(String exportBatchId) {
+		if (!isEnabled())
+			return null;
+		try {
+			Item item = new DynamoDB(DDBUtil.getClient()).getTable(ddbTblName).getItem(new GetItemSpec()
+					.withPrimaryKey("export_batch_id", exportBatchId, "target_region", targetRegion).withConsistentRead(true));
+			return Optional.ofNullable(item).isPresent() ? toProgress(exportBatchId, item) : null;
+		} catch(Exception e) {
+			e.printStackTrace();
+			System.out.println("Could not read export batch ledger from DynamoDB table: " + ddbTblName);
+			return null;
+		}
+	}
+
+	private ExportBatchProgress toProgress(String exportBatchId, Item item) {
+		ExportBatchProgress progress = new ExportBatchProgress();
+		progress.setExportBatchId(exportBatchId);
+		progress.setTargetRegion(targetRegion);
+		progress.setDatabasesEnqueued(getLong(item, "databases_enqueued"));
+		progress.setDatabasesExported(getLong(item, "databases_exported"));
+		progress.setTablesEnqueued(getLong(item, "tables_enqueued"));
+		progress.setTablesApplied(getLong(item, "tables_applied"));
+		progress.setTablesFailed(getLong(item, "tables_failed"));
+		progress.setTablesSkipped(getLong(item, "tables_skipped"));
+		progress.setPartitionsApplied(getLong(item, "partitions_applied"));
+		progress.setPartitionsFailed(getLong(item, "partitions_failed"));
+		progress.setFirstApplyTime(getLong(item, "first_apply_time"));
+		progress.setLastApplyTime(getLong(item, "last_apply_time"));
+		progress.setCompletionTime(getLong(item, "completion_time"));
+		return progress;
+	}
+
+	private static long getLong(Item item, String attributeName) {
+		return item.isPresent(attributeName) ? item.getLong(attributeName) : 0;
+	}
+
+	/**
+	 * Counts of one export batch not yet written to the ledger
+	 */
+	private static class Counters {
+		private final AtomicLong databasesEnqueued = new AtomicLong();
+		private final AtomicLong databasesExported = new AtomicLong();
+		private final AtomicLong tablesEnqueued = new AtomicLong();
+		private final AtomicLong tablesApplied = new AtomicLong();
+		private final AtomicLong tablesFailed = new AtomicLong();
+		private final AtomicLong tablesSkipped = new AtomicLong();
+		private final AtomicLong partitionsApplied = new AtomicLong();
+		private final AtomicLong partitionsFailed = new AtomicLong();
+
+		private boolean hasImports() {
+			return tablesApplied.get() + tablesFailed.get() + tablesSkipped.get() > 0;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package org.kai.util;
+
+/**
+ * This is a POJO class for the progress of an export batch.
+ *
+ * The export side publishes it with the counts of Databases and Tables it enqueued. The import side
+ * reads it back from the export batch ledger with the counts of Tables and Partitions applied in a region.
+ *
+ */
+public class ExportBatchProgress {
+
+	private String exportBatchId;
+	private String targetRegion;
+	private long databasesEnqueued;
+	private long databasesExported;
+	private long tablesEnqueued;
+	private long tablesApplied;
+	private long tablesFailed;
+	private long tablesSkipped;
+	private long partitionsApplied;
+	private long partitionsFailed;
+	private long firstApplyTime;
+	private long lastApplyTime;
+	private long completionTime;
+
+	public String getExportBatchId() {
+		return exportBatchId;
+	}
+	public void setExportBatchId(String exportBatchId) {
+		this.exportBatchId = exportBatchId;
+	}
+	public String getTargetRegion() {
+		return targetRegion;
+	}
+	public void setTargetRegion(String targetRegion) {
+		this.targetRegion = targetRegion;
+	}
+	public long getDatabasesEnqueued() {
+		return databasesEnqueued;
+	}
+	public void setDatabasesEnqueued(long databasesEnqueued) {
+		this.databasesEnqueued = databasesEnqueued;
+	}
+	public long getDatabasesExported() {
+		return databasesExported;
+	}
+	public void setDatabasesExported(long databasesExported) {
+		this.databasesExported = databasesExported;
+	}
+	public long getTablesEnqueued() {
+		return tablesEnqueued;
+	}
+	public void setTablesEnqueued(long tablesEnqueued) {
+		this.tablesEnqueued = tablesEnqueued;
+	}
+	public long getTablesApplied() {
+		return tablesApplied;
+	}
+	public void setTablesApplied(long tablesApplied) {
+		this.tablesApplied = tablesApplied;
+	}
+	public long getTablesFailed() {
+		return tablesFailed;
+	}
+	public void setTablesFailed(long tablesFailed) {
+		this.tablesFailed = tablesFailed;
+	}
+	public long getTablesSkipped() {
+		return tablesSkipped;
+	}
+	public void setTablesSkipped(long tablesSkipped) {
+		this.tablesSkipped = tablesSkipped;
+	}
+	public long getPartitionsApplied() {
+		return partitionsApplied;
+	}
+	public void setPartitionsApplied(long partitionsApplied) {
+		this.partitionsApplied = partitionsApplied;
+	}
+	public long getPartitionsFailed() {
+		return partitionsFailed;
+	}
+	public void setPartitionsFailed(long partitionsFailed) {
+		this.partitionsFailed = partitionsFailed;
+	}
+	public long getFirstApplyTime() {
+		return firstApplyTime;
+	}
+	public void setFirstApplyTime(long firstApplyTime) {
+		this.firstApplyTime = firstApplyTime;
+	}
+	public long getLastApplyTime() {
+		return lastApplyTime;
+	}
+	public void setLastApplyTime(long lastApplyTime) {
+		this.lastApplyTime = lastApplyTime;
+	}
+	public long getCompletionTime() {
+		return completionTime;
+	}
+	public void setCompletionTime(long completionTime) {
+		this.completionTime = completionTime;
+	}
+
+	/**
+	 * A batch is complete when every Database was exported and every Table enqueued was applied, failed or skipped
+	 * @return
+	 */
+	public boolean isComplete() {
+		return databasesEnqueued > 0 && databasesExported >= databasesEnqueued
+				&& tablesApplied + tablesFailed + tablesSkipped >= tablesEnqueued;
+	}
+
+	/**
+	 * Time from the start of the export to the completion of the batch, or to the last Table applied so far.
+	 * ExportBatchIds are export timestamps; for other ids the time is counted from the first Table applied.
+	 * @return
+	 */
+	public long getElapsedMillis() {
+		long startTime = firstApplyTime;
+		try {
+			startTime = Long.parseLong(exportBatchId);
+		} catch (NumberFormatException | NullPointerException e) {
+			// not a timestamp
+		}
+		long endTime = completionTime > 0 ? completionTime : lastApplyTime;
+		return startTime > 0 && endTime > startTime ? endTime - startTime : 0;
+	}
+
+	public double getTablesPerSecond() {
+		long elapsedMillis = getElapsedMillis();
+		return elapsedMillis > 0 ? tablesApplied * 1000.0 / elapsedMillis : 0;
+	}
+
+	public double getPartitionsPerSecond() {
+		long elapsedMillis = getElapsedMillis();
+		return elapsedMillis > 0 ? partitionsApplied * 1000.0 / elapsedMillis : 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Export batch %s in %s: databases %d/%d exported, tables %d enqueued, %d applied, %d failed, %d skipped, "
+				+ "partitions %d applied, %d failed, elapsed %d ms, %.1f tables/s, %.1f partitions/s, complete: %b",
+				exportBatchId, targetRegion, databasesExported, databasesEnqueued, tablesEnqueued, tablesApplied, tablesFailed,
+				tablesSkipped, partitionsApplied, partitionsFailed, getElapsedMillis(), getTablesPerSecond(),
+				getPartitionsPerSecond(), isComplete());
+	}
+}
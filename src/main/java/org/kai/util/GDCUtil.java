@@ -8,10 +8,15 @@ import com.amazonaws.services.glue.model.Database;
 import com.amazonaws.services.glue.model.Partition;
 import com.amazonaws.services.glue.model.Table;
 import com.amazonaws.services.sqs.AmazonSQS;
+import com.google.gson.JsonSyntaxException;
 
-
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class GDCUtil {
 
@@ -20,20 +25,53 @@ public class GDCUtil {
 	 * @param glue
 	 * @param targetGlueCatalogId
 	 * @param table
-	 * @param partitions
+	 * @param partitions null if the partitions are known to be applied already
 	 * @param exportBatchId
 	 * @param skipTableArchive
 	 * @param sourceRegion
+	 * @param catalogCache
+	 * @param partitionReconciler
+	 * @param deletedPartitionValues values of removed partitions if the export is a partition delta, otherwise null
+	 * @param totalNumberOfPartitions number of partitions the table has in the source. 0 if unknown.
+	 * @param partitionRetention keep only the partitions in the table's retention window. May be null.
+	 * @param partitionSnapshot streams a full partition snapshot too large to hold in memory, to reconcile on disk.
+	 *                          Used instead of partitions if not null.
+	 * @return
 	 */
-	public void processTableSchema(AWSGlue glue, String targetGlueCatalogId, Table table, List<Partition> partitions, String exportBatchId, boolean skipTableArchive, String sourceRegion) {
+	public TableReplicationStatus processTableSchema(AWSGlue glue, String targetGlueCatalogId, Table table, List<Partition> partitions, String exportBatchId, boolean skipTableArchive, String sourceRegion,
+								   TargetCatalogCache catalogCache, PartitionReconciler partitionReconciler, List<List<String>> deletedPartitionValues,
+								   long totalNumberOfPartitions, PartitionRetention partitionRetention, Supplier<Stream<Partition>> partitionSnapshot) {
 
 		DDBUtil ddbUtil = new DDBUtil();
 		SQSUtil sqsUtil = new SQSUtil();
 		GlueUtil glueUtil = new GlueUtil();
 		long importRunId = System.currentTimeMillis();
 
-		// Create or update table
-		TableReplicationStatus tableStatus = glueUtil.createOrUpdateTable(glue, table, targetGlueCatalogId, skipTableArchive);
+		TableReplicationStatus tableStatus;
+		if (catalogCache.isAvailable(glue, targetGlueCatalogId, table.getDatabaseName())) {
+			// Create the database up front if the target catalog does not have it
+			if (!catalogCache.databaseExists(glue, targetGlueCatalogId, table.getDatabaseName())) {
+				System.out.printf("Creating Database with name: '%s'. \n", table.getDatabaseName());
+				DBReplicationStatus dbStatus = glueUtil.createGlueDatabase(glue, targetGlueCatalogId, table.getDatabaseName(), "Database Imported from Glue Data Catalog of region: ".concat(sourceRegion));
+				if (dbStatus.isCreated())
+					catalogCache.putDatabase(targetGlueCatalogId, table.getDatabaseName());
+			}
+
+			// Create or update table, using the cached target table to choose between the two
+			Table targetTable = catalogCache.getTable(glue, targetGlueCatalogId, table.getDatabaseName(), table.getName());
+			tableStatus = glueUtil.createOrUpdateTable(glue, table, targetTable, targetGlueCatalogId, skipTableArchive);
+
+			// The cached view may be stale. Drop it and retry with a direct lookup. Other errors, e.g. throttling, are not retried here.
+			if (tableStatus.isTargetStale() || tableStatus.isDbNotFoundError()) {
+				System.out.printf("Retrying table '%s' without the target catalog cache. \n", table.getName());
+				catalogCache.invalidateDatabase(targetGlueCatalogId, table.getDatabaseName());
+				tableStatus = glueUtil.createOrUpdateTable(glue, table, targetGlueCatalogId, skipTableArchive);
+			}
+		} else {
+			// The target Database could not be listed, e.g. when throttled. Look the table up directly, so an error is
+			// recorded for this table alone.
+			tableStatus = glueUtil.createOrUpdateTable(glue, table, targetGlueCatalogId, skipTableArchive);
+		}
 
 		// If database not found then create one
 		if (tableStatus.isDbNotFoundError()) {
@@ -45,49 +83,60 @@ public class GDCUtil {
 				tableStatus = glueUtil.createOrUpdateTable(glue, table, targetGlueCatalogId, skipTableArchive);
 			}
 		}
+		if (tableStatus.isReplicated() && !tableStatus.isUnchanged())
+			catalogCache.putTable(targetGlueCatalogId, table, tableStatus.getTableFingerprint());
 
-		// Update table partitions
+		// Reconcile table partitions with the export: add missing, update changed and delete removed partitions
 		if (!tableStatus.isError()) {
-			// Get table partitions from Target Account
-			List<Partition> partitionsB4Replication = glueUtil.getPartitions(glue, targetGlueCatalogId, table.getDatabaseName(), table.getName());
-			System.out.println("Number of partitions before replication: " + partitionsB4Replication.size());
-
-			// Add Partitions to the table if the export has Partitions
-			if (partitions.size() > 0) {
-				tableStatus.setExportHasPartitions(true);
-				if (partitionsB4Replication.size() == 0) {
-					System.out.println("Target has 0 partitions.  Adding partitions from source.");
-					boolean partitionsAdded = glueUtil.addPartitions(glue, partitions, targetGlueCatalogId, table.getDatabaseName(), table.getName());
-					if (partitionsAdded)
-						tableStatus.setPartitionsReplicated(true);
-				} else {
-					System.out.println("Target table has partitions. Partitions will be deleted before adding partitions from source.");
-					// delete partitions in batch mode
-					boolean partitionsDeleted = glueUtil.deletePartitions(glue, targetGlueCatalogId, table.getDatabaseName(), table.getName(), partitionsB4Replication);
-
-					// Enable the below code for debugging purpose. Check number of table partitions after deletion
-					List<Partition> partitionsAfterDeletion = glueUtil.getPartitions(glue, targetGlueCatalogId, table.getDatabaseName(), table.getName());
-					System.out.println("Number of partitions after deletion: " + partitionsAfterDeletion.size());
-
-					// add partitions from S3 object
-					boolean partitionsAdded = glueUtil.addPartitions(glue, partitions, targetGlueCatalogId, table.getDatabaseName(), table.getName());
-
-					if (partitionsDeleted && partitionsAdded)
-						tableStatus.setPartitionsReplicated(true);
-
-					// Enable the below code for debugging purpose. Check number of table partitions after addition
-					List<Partition> partitionsAfterAddition = glueUtil.getPartitions(glue, targetGlueCatalogId, table.getDatabaseName(), table.getName());
-					System.out.println("Number of partitions after addition: " + partitionsAfterAddition.size());
-				}
-			} else if (partitions.size() == 0) {
+			boolean partitionsReconciled;
+			TableFormatStrategy format = TableFormatStrategy.forTable(table);
+			PartitionRetention.Rule retentionRule = format.hasGluePartitions()
+					? Optional.ofNullable(partitionRetention).map(r -> r.ruleFor(table)).orElse(null) : null;
+			if (Optional.ofNullable(retentionRule).isPresent() && Optional.ofNullable(partitions).isPresent())
+				partitions = retentionRule.retain(partitions);
+			if (!format.hasGluePartitions()) {
+				System.out.printf("Table '%s' is a %s table without Glue partitions. Skipping partitions. \n", table.getName(), format);
 				tableStatus.setExportHasPartitions(false);
-				if (partitionsB4Replication.size() > 0) {
-					// Export has no partitions but table already has some partitions. Those
-					// partitions will be deleted in batch mode.
-					boolean partitionsDeleted = glueUtil.deletePartitions(glue, targetGlueCatalogId, table.getDatabaseName(), table.getName(), partitionsB4Replication);
-					if (partitionsDeleted)
-						System.out.println("Info: Source had 0 partitions, so deleted target partitions: " + partitionsB4Replication.size());
+				partitionsReconciled = true;
+			} else if (Optional.ofNullable(partitionSnapshot).isPresent()) {
+				System.out.println("Streaming partition snapshot to the on-disk reconciliation.");
+				tableStatus.setExportHasPartitions(true);
+				try (Stream<Partition> snapshot = partitionSnapshot.get()) {
+					partitionsReconciled = partitionReconciler.reconcileOnDisk(glue, targetGlueCatalogId, table.getDatabaseName(), table.getName(),
+							Optional.ofNullable(retentionRule).isPresent() ? snapshot.filter(p -> !retentionRule.isExpired(p)) : snapshot,
+							table.getPartitionKeys());
+				} catch (UncheckedIOException | JsonSyntaxException e) {
+					// The snapshot is read in full before the first write, so nothing was changed
+					System.out.printf("Error: Unable to read the partition snapshot of table '%s'. \n", table.getName());
+					e.printStackTrace();
+					tableStatus.setError(true);
+					return tableStatus;
 				}
+			} else if (!Optional.ofNullable(partitions).isPresent()) {
+				System.out.println("Partition snapshot was already applied. Skipping partitions.");
+				tableStatus.setExportHasPartitions(true);
+				partitionsReconciled = true;
+			} else if (Optional.ofNullable(deletedPartitionValues).isPresent()) {
+				System.out.println("Export is a partition delta. Applying changed and removed partitions only.");
+				tableStatus.setExportHasPartitions(partitions.size() > 0 || deletedPartitionValues.size() > 0);
+				partitionsReconciled = partitionReconciler.applyDelta(glue, targetGlueCatalogId, table.getDatabaseName(), table.getName(), partitions, deletedPartitionValues,
+						totalNumberOfPartitions, table.getPartitionKeys());
+			} else {
+				tableStatus.setExportHasPartitions(partitions.size() > 0);
+				partitionsReconciled = partitionReconciler.reconcile(glue, targetGlueCatalogId, table.getDatabaseName(), table.getName(), partitions,
+						tableStatus.isCreated(), table.getPartitionKeys());
+			}
+			if (format.hasGluePartitions() && (Optional.ofNullable(partitions).isPresent() || Optional.ofNullable(partitionSnapshot).isPresent()))
+				tableStatus.setPartitionsWritten(partitionReconciler.getNumberOfPartitionsWritten());
+			// Partitions that aged out of the window since they were imported are deleted
+			if (Optional.ofNullable(retentionRule).isPresent() && partitionsReconciled)
+				tableStatus.setPartitionsWritten(tableStatus.getPartitionsWritten()
+						+ deleteExpiredPartitions(glue, targetGlueCatalogId, table, retentionRule));
+			if (partitionsReconciled)
+				tableStatus.setPartitionsReplicated(true);
+			else {
+				tableStatus.setFailedPartitions(partitionReconciler.getFailedPartitions());
+				tableStatus.setFailedPartitionValues(partitionReconciler.getFailedPartitionValues());
 			}
 		}
 		// If there is any error in creating/updating table then send it to DLQ
@@ -100,6 +149,35 @@ public class GDCUtil {
 						+ "Partitions replicated: %b, error: %b \n",
 				tableStatus.isReplicated(), tableStatus.isExportHasPartitions(), tableStatus.isPartitionsReplicated(),
 				tableStatus.isError());
+		return tableStatus;
+	}
+
+	/**
+	 * Delete the partitions of a target table that are older than its retention window
+	 * @param glue
+	 * @param targetGlueCatalogId
+	 * @param table
+	 * @param retentionRule
+	 * @return number of partitions deleted
+	 */
+	private int deleteExpiredPartitions(AWSGlue glue, String targetGlueCatalogId, Table table, PartitionRetention.Rule retentionRule) {
+		GlueUtil glueUtil = new GlueUtil();
+		List<Partition> expiredPartitions;
+		try (Stream<Partition> partitions = glueUtil.streamPartitions(glue, targetGlueCatalogId, table.getDatabaseName(), table.getName(),
+				true, retentionRule.getExpiredExpression())) {
+			expiredPartitions = partitions.filter(retentionRule::isExpired).collect(Collectors.toList());
+		} catch (Exception e) {
+			// The next import tries again
+			e.printStackTrace();
+			System.out.printf("Could not list expired partitions of table '%s'. \n", table.getName());
+			return 0;
+		}
+		if (expiredPartitions.isEmpty())
+			return 0;
+		System.out.printf("Deleting %d partitions of table '%s' older than the retention window. \n", expiredPartitions.size(), table.getName());
+		List<List<String>> failedPartitionValues = new ArrayList<>();
+		glueUtil.deletePartitions(glue, targetGlueCatalogId, table.getDatabaseName(), table.getName(), expiredPartitions, failedPartitionValues);
+		return expiredPartitions.size() - failedPartitionValues.size();
 	}
 
 	/**
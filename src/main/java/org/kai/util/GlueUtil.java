@@ -6,11 +6,22 @@ package org.kai.util;
 import com.amazonaws.services.glue.AWSGlue;
 import com.amazonaws.services.glue.model.*;
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * This is class has utility methods to work with AWS Glue Data Catalog
@@ -20,6 +31,17 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class GlueUtil {
 
+	// Table parameter holding the content fingerprint of a replicated table
+	public static final String TABLE_FINGERPRINT_PARAMETER = "gluecrr_table_fingerprint";
+
+	// Number of pages the streaming listings fetch ahead of the caller
+	final private int prefetchPages = 2;
+	// Largest page GetPartitions returns
+	public static final int PARTITION_PAGE_SIZE = 1000;
+	// Partitions requested per BatchGetPartition call. Smaller batches are less likely to come back partly unprocessed.
+	public static final int PARTITION_PROBE_BATCH_SIZE = 100;
+	final private int maxProbeAttempts = 5;
+
 	/**
 	 * This method checks if a Database exist with the given name in the Glue Data
 	 * Catalog
@@ -73,6 +95,22 @@ public class GlueUtil {
 		return masterDBList;
 	}
 
+	/**
+	 * This method streams all the databases from a given Glue Data Catalog. The next page is fetched
+	 * in the background while the current one is consumed. Close the Stream if it is not read to the end.
+	 * 
+	 * @param glue
+	 * @param glueCatalogId
+	 * @return
+	 */
+	public Stream<Database> streamDatabases(AWSGlue glue, String glueCatalogId) {
+		return new PrefetchingPageIterator<Database>("databases", nextToken -> {
+			GetDatabasesResult getDatabasesResult = glue.getDatabases(new GetDatabasesRequest()
+					.withCatalogId(glueCatalogId).withNextToken(nextToken));
+			return new PrefetchingPageIterator.Page<>(getDatabasesResult.getDatabaseList(), getDatabasesResult.getNextToken());
+		}, prefetchPages).stream();
+	}
+
 	/**
 	 * This method creates a new Database in Glue Data Catalog
 	 * 
@@ -160,6 +198,62 @@ public class GlueUtil {
 		return tableInput;
 	}
 
+	/**
+	 * This method computes a canonical fingerprint of a TableInput. Object keys are sorted so that
+	 * map ordering does not matter, and volatile fields are left out.
+	 * 
+	 * @param tableInput
+	 * @return
+	 */
+	public String computeTableFingerprint(TableInput tableInput) {
+		JsonObject tableJson = new Gson().toJsonTree(tableInput).getAsJsonObject();
+		tableJson.remove("lastAccessTime");
+		tableJson.remove("lastAnalyzedTime");
+		if (tableJson.has("parameters")) {
+			JsonObject parameters = tableJson.getAsJsonObject("parameters");
+			parameters.remove(TABLE_FINGERPRINT_PARAMETER);
+			parameters.remove("transient_lastDdlTime");
+		}
+		return fingerprint(tableJson);
+	}
+
+	/**
+	 * This method computes a canonical fingerprint of a Partition, covering only the fields
+	 * that are written to the target by createPartitionInput.
+	 * 
+	 * @param partition
+	 * @return
+	 */
+	public String computePartitionFingerprint(Partition partition) {
+		return fingerprint(new Gson().toJsonTree(createPartitionInput(partition)).getAsJsonObject());
+	}
+
+	private String fingerprint(JsonObject json) {
+		String canonicalJson = canonicalize(json).toString();
+		return Hashing.sha256().hashString(canonicalJson, StandardCharsets.UTF_8).toString();
+	}
+
+	private JsonElement canonicalize(JsonElement element) {
+		if (element.isJsonObject()) {
+			Map<String, JsonElement> sortedEntries = new TreeMap<String, JsonElement>();
+			for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+				sortedEntries.put(entry.getKey(), entry.getValue());
+			}
+			JsonObject sorted = new JsonObject();
+			for (Map.Entry<String, JsonElement> entry : sortedEntries.entrySet()) {
+				sorted.add(entry.getKey(), canonicalize(entry.getValue()));
+			}
+			return sorted;
+		} else if (element.isJsonArray()) {
+			JsonArray array = new JsonArray();
+			for (JsonElement e : element.getAsJsonArray()) {
+				array.add(canonicalize(e));
+			}
+			return array;
+		}
+		return element;
+	}
+
 	/**
 	 * This method gets all the tables for a given databases from Glue Data Catalog
 	 * 
@@ -196,6 +290,24 @@ public class GlueUtil {
 		return masterTableList;
 	}
 
+	/**
+	 * This method streams the tables of a Database. The next page is fetched in the background while
+	 * the current one is consumed. Close the Stream if it is not read to the end.
+	 * Throws EntityNotFoundException from the terminal operation if the Database does not exist.
+	 * 
+	 * @param glue
+	 * @param glueCatalogId
+	 * @param databaseName
+	 * @return
+	 */
+	public Stream<Table> streamTables(AWSGlue glue, String glueCatalogId, String databaseName) {
+		return new PrefetchingPageIterator<Table>("tables-" + databaseName, nextToken -> {
+			GetTablesResult getTablesResult = glue.getTables(new GetTablesRequest().withCatalogId(glueCatalogId)
+					.withDatabaseName(databaseName).withNextToken(nextToken));
+			return new PrefetchingPageIterator.Page<>(getTablesResult.getTableList(), getTablesResult.getNextToken());
+		}, prefetchPages).stream();
+	}
+
 	/**
 	 * This method gets a Table using the given name from Glue Data Catalog. If
 	 * there is no table exist with the provided name then it returns null.
@@ -233,11 +345,6 @@ public class GlueUtil {
 	public TableReplicationStatus createOrUpdateTable(AWSGlue glue, Table sourceTable, String targetGlueCatalogId,
                                                                                         boolean skipTableArchive) {
 
-		TableReplicationStatus tableStatus = new TableReplicationStatus();
-		tableStatus.setTableName(sourceTable.getName());
-		tableStatus.setDbName(sourceTable.getDatabaseName());
-		tableStatus.setReplicationTime(System.currentTimeMillis());
-
 		// Check if a table exist already
 		GetTableRequest targetTableRequest = new GetTableRequest();
 		targetTableRequest.setCatalogId(targetGlueCatalogId);
@@ -253,7 +360,46 @@ public class GlueUtil {
 			e.printStackTrace();
 			System.out.println("Exception in getting getTable");
 		}
+		return createOrUpdateTable(glue, sourceTable, targetTable, targetGlueCatalogId, skipTableArchive);
+	}
+
+	/**
+	 * This method creates or updates a Table in Glue Data Catalog when the caller
+	 * already knows the target table. A null targetTable means the table will be created.
+	 * 
+	 * @param glue
+	 * @param sourceTable
+	 * @param targetTable
+	 * @param targetGlueCatalogId
+	 * @param skipTableArchive
+	 * @return
+	 */
+	public TableReplicationStatus createOrUpdateTable(AWSGlue glue, Table sourceTable, Table targetTable,
+			String targetGlueCatalogId, boolean skipTableArchive) {
+
+		TableReplicationStatus tableStatus = new TableReplicationStatus();
+		tableStatus.setTableName(sourceTable.getName());
+		tableStatus.setDbName(sourceTable.getDatabaseName());
+		tableStatus.setReplicationTime(System.currentTimeMillis());
+
 		TableInput tableInput = createTableInput(sourceTable);
+		String fingerprint = computeTableFingerprint(tableInput);
+		tableStatus.setTableFingerprint(fingerprint);
+
+		// Skip the write entirely if the target already has the same table content
+		if (Optional.ofNullable(targetTable).isPresent() && Optional.ofNullable(targetTable.getParameters()).isPresent()
+				&& fingerprint.equals(targetTable.getParameters().get(TABLE_FINGERPRINT_PARAMETER))) {
+			System.out.printf("Table '%s' is unchanged. Skipping update. \n", sourceTable.getName());
+			tableStatus.setUnchanged(true);
+			tableStatus.setReplicated(true);
+			tableStatus.setError(false);
+			return tableStatus;
+		}
+		Map<String, String> tableParameters = new HashMap<String, String>();
+		if (Optional.ofNullable(tableInput.getParameters()).isPresent())
+			tableParameters.putAll(tableInput.getParameters());
+		tableParameters.put(TABLE_FINGERPRINT_PARAMETER, fingerprint);
+		tableInput.setParameters(tableParameters);
 
 		// If table exist - update the table with the schema in the input message.
 		if (Optional.ofNullable(targetTable).isPresent()) {
@@ -279,6 +425,12 @@ public class GlueUtil {
 				tableStatus.setReplicated(false);
 				tableStatus.setDbNotFoundError(true);
 				tableStatus.setError(true);
+			} catch (ConcurrentModificationException e) {
+				e.printStackTrace();
+				System.out.printf("Table '%s' was modified while it was being updated. \n", sourceTable.getName());
+				tableStatus.setReplicated(false);
+				tableStatus.setTargetStale(true);
+				tableStatus.setError(true);
 			} catch (Exception e) {
 				e.printStackTrace();
 				System.out.printf("Exception thrown while updating table '%s'. \n", sourceTable.getName());
@@ -308,6 +460,12 @@ public class GlueUtil {
 						sourceTable.getName(), sourceTable.getDatabaseName());
 				tableStatus.setReplicated(false);
 				tableStatus.setDbNotFoundError(true);
+			} catch (AlreadyExistsException e) {
+				e.printStackTrace();
+				System.out.printf("Table '%s' already exists. \n", sourceTable.getName());
+				tableStatus.setReplicated(false);
+				tableStatus.setTargetStale(true);
+				tableStatus.setError(true);
 			} catch (Exception e) {
 				e.printStackTrace();
 				System.out.printf("Exception thrown while creating table '%s' \n.", sourceTable.getName());
@@ -328,16 +486,54 @@ public class GlueUtil {
 	 * @return
 	 */
 	public List<Partition> getPartitions(AWSGlue glue, String catalogId, String databaseName, String tableName) {
-		System.out.println("Retrieving partitions for Account : " + catalogId + " database: " + databaseName + " table: " + tableName);
 		List<Partition> masterPartitionList = new ArrayList<>();
+		getPartitions(glue, catalogId, databaseName, tableName, masterPartitionList::addAll);
+		return masterPartitionList;
+	}
+
+	/**
+	 * This method gets the partitions for a given table one page at a time, so the caller
+	 * does not need to hold all of them in memory.
+	 * 
+	 * @param glue
+	 * @param catalogId
+	 * @param databaseName
+	 * @param tableName
+	 * @param pageConsumer
+	 * @return number of partitions fetched
+	 */
+	public int getPartitions(AWSGlue glue, String catalogId, String databaseName, String tableName,
+			Consumer<List<Partition>> pageConsumer) {
+		return getPartitions(glue, catalogId, databaseName, tableName, false, pageConsumer);
+	}
+
+	/**
+	 * This method gets the partitions for a given table one page at a time. When excludeColumnSchema
+	 * is true, Glue does not return the column list of each partition.
+	 * 
+	 * @param glue
+	 * @param catalogId
+	 * @param databaseName
+	 * @param tableName
+	 * @param excludeColumnSchema
+	 * @param pageConsumer
+	 * @return number of partitions fetched
+	 */
+	public int getPartitions(AWSGlue glue, String catalogId, String databaseName, String tableName,
+			boolean excludeColumnSchema, Consumer<List<Partition>> pageConsumer) {
+		System.out.println("Retrieving partitions for Account : " + catalogId + " database: " + databaseName + " table: " + tableName
+				+ " exclude column schema: " + excludeColumnSchema);
+		int numPartitions = 0;
 		GetPartitionsRequest getPartitionsRequest = new GetPartitionsRequest();
 		getPartitionsRequest.setDatabaseName(databaseName);
 		getPartitionsRequest.setCatalogId(catalogId);
 		getPartitionsRequest.setTableName(tableName);
+		getPartitionsRequest.setExcludeColumnSchema(excludeColumnSchema);
 		GetPartitionsResult getPartitionResult = glue.getPartitions(getPartitionsRequest);
 		List<Partition> partitionList = getPartitionResult.getPartitions();
-		masterPartitionList.addAll(partitionList);
-		System.out.println("Partition Result init size: " + masterPartitionList.size());
+		pageConsumer.accept(partitionList);
+		numPartitions += partitionList.size();
+		System.out.println("Partition Result init size: " + numPartitions);
 		String partitionResultNextToken = getPartitionResult.getNextToken();
 		if (Optional.ofNullable(partitionResultNextToken).isPresent()) {
 			do {
@@ -346,15 +542,113 @@ public class GlueUtil {
 				getPartitionsRequest.setDatabaseName(databaseName);
 				getPartitionsRequest.setCatalogId(catalogId);
 				getPartitionsRequest.setTableName(tableName);
+				getPartitionsRequest.setExcludeColumnSchema(excludeColumnSchema);
 				getPartitionsRequest.setNextToken(partitionResultNextToken);
 				getPartitionResult = glue.getPartitions(getPartitionsRequest);
 				partitionList = getPartitionResult.getPartitions();
-				masterPartitionList.addAll(partitionList);
+				pageConsumer.accept(partitionList);
+				numPartitions += partitionList.size();
 				partitionResultNextToken = getPartitionResult.getNextToken();
 			} while (Optional.ofNullable(partitionResultNextToken).isPresent());
 		}
-		System.out.println("Partition Result final size: " + masterPartitionList.size());
-		return masterPartitionList;
+		System.out.println("Partition Result final size: " + numPartitions);
+		return numPartitions;
+	}
+
+	/**
+	 * This method streams the partitions of a table. The next page is fetched in the background while
+	 * the current one is consumed. Close the Stream if it is not read to the end.
+	 * 
+	 * @param glue
+	 * @param catalogId
+	 * @param databaseName
+	 * @param tableName
+	 * @param excludeColumnSchema
+	 * @return
+	 */
+	public Stream<Partition> streamPartitions(AWSGlue glue, String catalogId, String databaseName, String tableName,
+			boolean excludeColumnSchema) {
+		return streamPartitions(glue, catalogId, databaseName, tableName, excludeColumnSchema, null);
+	}
+
+	/**
+	 * This method streams the partitions of a table that match an expression, e.g. dt >= '2024-07-21'.
+	 * 
+	 * @param glue
+	 * @param catalogId
+	 * @param databaseName
+	 * @param tableName
+	 * @param excludeColumnSchema
+	 * @param expression GetPartitions expression. Null or empty streams all partitions.
+	 * @return
+	 */
+	public Stream<Partition> streamPartitions(AWSGlue glue, String catalogId, String databaseName, String tableName,
+			boolean excludeColumnSchema, String expression) {
+		System.out.println("Streaming partitions for Account : " + catalogId + " database: " + databaseName + " table: " + tableName
+				+ " exclude column schema: " + excludeColumnSchema + (expression == null || expression.isEmpty() ? "" : " expression: " + expression));
+		String partitionExpression = expression == null || expression.isEmpty() ? null : expression;
+		return new PrefetchingPageIterator<Partition>("partitions-" + tableName, nextToken -> {
+			GetPartitionsResult getPartitionResult = glue.getPartitions(new GetPartitionsRequest().withCatalogId(catalogId)
+					.withDatabaseName(databaseName).withTableName(tableName).withExcludeColumnSchema(excludeColumnSchema)
+					.withExpression(partitionExpression).withMaxResults(PARTITION_PAGE_SIZE).withNextToken(nextToken));
+			return new PrefetchingPageIterator.Page<>(getPartitionResult.getPartitions(), getPartitionResult.getNextToken());
+		}, prefetchPages).stream();
+	}
+
+	/**
+	 * This method gets the partitions with the given values using BatchGetPartition. Partitions that do not
+	 * exist are not returned. Keys Glue leaves unprocessed are requested again with exponential backoff.
+	 * 
+	 * @param glue
+	 * @param catalogId
+	 * @param databaseName
+	 * @param tableName
+	 * @param partitionValues
+	 * @return the partitions found, or null if some keys stayed unprocessed
+	 */
+	public List<Partition> batchGetPartitions(AWSGlue glue, String catalogId, String databaseName, String tableName,
+			List<List<String>> partitionValues) {
+		List<Partition> partitionsFound = new ArrayList<>();
+		for (List<List<String>> batch : Lists.partition(partitionValues, PARTITION_PROBE_BATCH_SIZE)) {
+			List<PartitionValueList> keys = new ArrayList<>();
+			for (List<String> values : batch)
+				keys.add(new PartitionValueList().withValues(values));
+			for (int attempt = 1; !keys.isEmpty(); attempt++) {
+				if (attempt > maxProbeAttempts) {
+					System.out.printf("%d partition keys of table '%s' stayed unprocessed after %d attempts. \n",
+							keys.size(), tableName, maxProbeAttempts);
+					return null;
+				}
+				if (attempt > 1) {
+					try {
+						Thread.sleep((long) (100 * Math.pow(2, attempt - 2)));
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return null;
+					}
+				}
+				BatchGetPartitionResult result = glue.batchGetPartition(new BatchGetPartitionRequest().withCatalogId(catalogId)
+						.withDatabaseName(databaseName).withTableName(tableName).withPartitionsToGet(keys));
+				partitionsFound.addAll(result.getPartitions());
+				keys = Optional.ofNullable(result.getUnprocessedKeys()).orElse(new ArrayList<>());
+			}
+		}
+		System.out.printf("Probed %d partition keys of table '%s', %d exist. \n", partitionValues.size(), tableName,
+				partitionsFound.size());
+		return partitionsFound;
+	}
+
+	/**
+	 * This method creates a PartitionInput object using Partition object
+	 * 
+	 * @param partition
+	 * @return
+	 */
+	public PartitionInput createPartitionInput(Partition partition) {
+		PartitionInput pi = new PartitionInput();
+		pi.setStorageDescriptor(partition.getStorageDescriptor());
+		pi.setValues(partition.getValues());
+		return pi;
 	}
 
 	/**
@@ -368,6 +662,26 @@ public class GlueUtil {
 	 */
 	public boolean addPartitions(AWSGlue glue, List<Partition> partitionsToAdd, String catalogId, String databaseName,
 			String tableName) {
+		return addPartitions(glue, partitionsToAdd, catalogId, databaseName, tableName, null);
+	}
+
+	/**
+	 * Add partitions in batch mode and collect the partitions that could not be added
+	 * @param glue
+	 * @param partitionsToAdd
+	 * @param catalogId
+	 * @param databaseName
+	 * @param tableName
+	 * @param failedPartitions receives the partitions that could not be added. Partitions that already exist are not failed. May be null.
+	 * @return
+	 */
+	public boolean addPartitions(AWSGlue glue, List<Partition> partitionsToAdd, String catalogId, String databaseName,
+			String tableName, List<Partition> failedPartitions) {
+		Map<List<String>, Partition> partitionsByValues = new HashMap<>();
+		if (failedPartitions != null) {
+			for (Partition p : partitionsToAdd)
+				partitionsByValues.put(p.getValues(), p);
+		}
 		AtomicInteger numPartitionsAdded = new AtomicInteger();
 		boolean partitionsAdded = false;
 		BatchCreatePartitionRequest batchCreatePartitionRequest = new BatchCreatePartitionRequest();
@@ -377,11 +691,7 @@ public class GlueUtil {
 
 		List<PartitionInput> partitionInputList = new ArrayList<PartitionInput>();
 		for (Partition p : partitionsToAdd) {
-			PartitionInput pi = new PartitionInput();
-			StorageDescriptor storageDescriptor = p.getStorageDescriptor();
-			pi.setStorageDescriptor(storageDescriptor);
-			pi.setValues(p.getValues());
-			partitionInputList.add(pi);
+			partitionInputList.add(createPartitionInput(p));
 		}
 		System.out.println("Partition Input List Size: " + partitionInputList.size());
 		if(partitionInputList.size() > 100)
@@ -409,19 +719,76 @@ public class GlueUtil {
 						for (String v : pv) {
 							System.out.println("Partition error value: " + v);
 						}
+						if (failedPartitions != null && !"AlreadyExistsException".equals(pe.getErrorDetail().getErrorCode())
+								&& partitionsByValues.containsKey(pv))
+							failedPartitions.add(partitionsByValues.get(pv));
 					}
 				}
 			} catch(Exception e) {
 				e.printStackTrace();
 				System.out.printf("Exception in adding partitions. \n");
 				System.out.printf("%d of %d partitions added so far. \n", numPartitionsAdded.get(), partitionInputList.size());
-				// TODO - what to do when there are exceptions here?
+				if (failedPartitions != null) {
+					for (PartitionInput pi : partInputList)
+						failedPartitions.add(partitionsByValues.get(pi.getValues()));
+				}
 			}
 		}
 		System.out.println("Total partitions added: " + numPartitionsAdded.get());
 		return partitionsAdded;
 	}
 
+	/**
+	 * Update partitions one at a time. Glue has no batch API for partition updates.
+	 * @param glue
+	 * @param catalogId
+	 * @param databaseName
+	 * @param tableName
+	 * @param partitionsToUpdate
+	 * @return
+	 */
+	public boolean updatePartitions(AWSGlue glue, String catalogId, String databaseName, String tableName,
+			List<Partition> partitionsToUpdate) {
+		return updatePartitions(glue, catalogId, databaseName, tableName, partitionsToUpdate, null);
+	}
+
+	/**
+	 * Update partitions one at a time and collect the partitions that could not be updated
+	 * @param glue
+	 * @param catalogId
+	 * @param databaseName
+	 * @param tableName
+	 * @param partitionsToUpdate
+	 * @param failedPartitions receives the partitions that could not be updated. May be null.
+	 * @return
+	 */
+	public boolean updatePartitions(AWSGlue glue, String catalogId, String databaseName, String tableName,
+			List<Partition> partitionsToUpdate, List<Partition> failedPartitions) {
+		boolean partitionsUpdated = true;
+		int numPartitionsUpdated = 0;
+		for (Partition p : partitionsToUpdate) {
+			UpdatePartitionRequest updatePartitionRequest = new UpdatePartitionRequest();
+			updatePartitionRequest.setCatalogId(catalogId);
+			updatePartitionRequest.setDatabaseName(databaseName);
+			updatePartitionRequest.setTableName(tableName);
+			updatePartitionRequest.setPartitionValueList(p.getValues());
+			updatePartitionRequest.setPartitionInput(createPartitionInput(p));
+			try {
+				glue.updatePartition(updatePartitionRequest);
+				numPartitionsUpdated++;
+			} catch (Exception e) {
+				e.printStackTrace();
+				System.out.println("Exception in updating partition with values: " + p.getValues());
+				partitionsUpdated = false;
+				if (failedPartitions != null)
+					failedPartitions.add(p);
+			}
+		}
+		System.out.printf("%d of %d partitions updated in table '%s' of database '%s'. \n", numPartitionsUpdated,
+				partitionsToUpdate.size(), tableName, databaseName);
+		return partitionsUpdated;
+	}
+
 	/** 
 	 * Delete a single partition
 	 * @param glue
@@ -460,6 +827,22 @@ public class GlueUtil {
 	 */
 	public boolean deletePartitions(AWSGlue glue, String catalogId, String databaseName, String tableName,
 			List<Partition> partitionsToDelete) {
+		return deletePartitions(glue, catalogId, databaseName, tableName, partitionsToDelete, null);
+	}
+
+	/**
+	 * Delete partitions using Batch mode and collect the values of the partitions that could not be deleted
+	 * @param glue
+	 * @param catalogId
+	 * @param databaseName
+	 * @param tableName
+	 * @param partitionsToDelete
+	 * @param failedPartitionValues receives the values of the partitions that could not be deleted. Partitions
+	 *                              that do not exist are not failed. May be null.
+	 * @return
+	 */
+	public boolean deletePartitions(AWSGlue glue, String catalogId, String databaseName, String tableName,
+			List<Partition> partitionsToDelete, List<List<String>> failedPartitionValues) {
 
 		boolean partitionsDeleted = false;
 
@@ -504,11 +887,17 @@ public class GlueUtil {
 						for (String v : pv) {
 							System.out.println("Partition value: " + v);
 						}
+						if (failedPartitionValues != null && !"EntityNotFoundException".equals(pe.getErrorDetail().getErrorCode()))
+							failedPartitionValues.add(pv);
 					}
 				}
 			} catch (Exception e) {
 				System.out.println("Exception in deleting partitions.");
 				e.printStackTrace();
+				if (failedPartitionValues != null) {
+					for (PartitionValueList pvList : smallerList)
+						failedPartitionValues.add(pvList.getValues());
+				}
 			}
 		}
 		return partitionsDeleted;
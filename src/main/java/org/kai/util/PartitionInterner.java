@@ -0,0 +1,102 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package org.kai.util;
+
+import com.amazonaws.services.glue.model.Column;
+import com.amazonaws.services.glue.model.Order;
+import com.amazonaws.services.glue.model.SerDeInfo;
+import com.amazonaws.services.glue.model.SkewedInfo;
+import com.amazonaws.services.glue.model.StorageDescriptor;
+import com.amazonaws.services.glue.model.Table;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class shares identical partition metadata across deserialized partitions.
+ *
+ * Partitions of a table usually carry the same column list, SerDeInfo and parameter maps, and these are
+ * usually the same as the table's own. When partitions are deserialized with the Gson returned by
+ * createGson, each of these is replaced by one canonical instance, so 500k partitions do not hold 500k
+ * copies of the column list.
+ *
+ * The shared instances must be treated as read-only.
+ *
+ */
+public class PartitionInterner implements TypeAdapterFactory {
+
+	private static final TypeToken<List<Column>> COLUMN_LIST = new TypeToken<List<Column>>() {};
+	private static final TypeToken<List<Order>> ORDER_LIST = new TypeToken<List<Order>>() {};
+	private static final TypeToken<Map<String, String>> STRING_MAP = new TypeToken<Map<String, String>>() {};
+
+	private final Map<Object, Object> pool = new ConcurrentHashMap<>();
+
+	/**
+	 * @param table the table whose StorageDescriptor seeds the pool. May be null.
+	 */
+	public PartitionInterner(Table table) {
+		if (table != null && table.getStorageDescriptor() != null) {
+			StorageDescriptor sd = table.getStorageDescriptor();
+			if (sd.getColumns() != null) {
+				for (Column column : sd.getColumns())
+					intern(column);
+				intern(sd.getColumns());
+			}
+			if (sd.getSerdeInfo() != null)
+				intern(sd.getSerdeInfo());
+			if (sd.getParameters() != null)
+				intern(sd.getParameters());
+		}
+	}
+
+	/**
+	 * Create a Gson that interns partition metadata while deserializing
+	 * @return
+	 */
+	public Gson createGson() {
+		return new GsonBuilder().registerTypeAdapterFactory(this).create();
+	}
+
+	public int getPoolSize() {
+		return pool.size();
+	}
+
+	@Override
+	public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+		Class<? super T> rawType = type.getRawType();
+		boolean internable = rawType == Column.class || rawType == SerDeInfo.class || rawType == Order.class
+				|| rawType == SkewedInfo.class || COLUMN_LIST.equals(type) || ORDER_LIST.equals(type)
+				|| STRING_MAP.equals(type);
+		if (!internable)
+			return null;
+		TypeAdapter<T> delegate = gson.getDelegateAdapter(this, type);
+		return new TypeAdapter<T>() {
+			@Override
+			public void write(JsonWriter out, T value) throws IOException {
+				delegate.write(out, value);
+			}
+
+			@Override
+			public T read(JsonReader in) throws IOException {
+				T value = delegate.read(in);
+				return value == null ? null : intern(value);
+			}
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T intern(T value) {
+		Object canonical = pool.putIfAbsent(value, value);
+		return canonical == null ? value : (T) canonical;
+	}
+}
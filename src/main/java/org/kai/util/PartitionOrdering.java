@@ -0,0 +1,143 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package org.kai.util;
+
+import com.amazonaws.services.glue.model.Column;
+import com.amazonaws.services.glue.model.Partition;
+import com.google.gson.Gson;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * This class orders partitions newest first, so the partitions analysts query most are written first.
+ *
+ * - If the table has time-like partition keys, e.g. year / month / day, dt or a name ending in _date or _ts,
+ *   partitions are ordered by the values of those keys, descending. Numbers are compared as numbers, other values
+ *   as strings.
+ * - Otherwise partitions are ordered by their CreationTime, descending.
+ *
+ * The sort key of a partition orders newest first as a plain string, so sorted runs on disk can use it too.
+ *
+ */
+public class PartitionOrdering {
+
+	private static final Set<String> TIME_KEY_NAMES = new HashSet<>(Arrays.asList("year", "yyyy", "month", "mm", "day", "dd",
+			"hour", "hh", "minute", "dt", "ds", "date", "time", "ts", "timestamp"));
+	private static final Set<String> TIME_KEY_SUFFIXES = new HashSet<>(Arrays.asList("_year", "_month", "_day", "_hour", "_date", "_dt",
+			"_time", "_ts", "_timestamp"));
+	// Printable ASCII characters are mirrored, so ascending string order of the key is descending order of the value
+	private static final char FIRST_PRINTABLE = ' ';
+	private static final char LAST_PRINTABLE = '~';
+	// Ends every time component. It sorts after every mirrored character, so a longer value comes first.
+	private static final char END_OF_VALUE = '\u007F';
+	// Value Hive gives partitions with a null key, which is not a time
+	private static final String HIVE_DEFAULT_PARTITION = "__HIVE_DEFAULT_PARTITION__";
+	final private int numericWidth = 19;
+
+	private final int[] timeKeyIndexes;
+	private final Gson gson = new Gson();
+
+	/**
+	 * @param partitionKeys partition keys of the table
+	 */
+	public PartitionOrdering(List<Column> partitionKeys) {
+		List<Integer> indexes = new ArrayList<>();
+		List<Column> keys = Optional.ofNullable(partitionKeys).orElse(new ArrayList<>());
+		for (int i = 0; i < keys.size(); i++) {
+			if (isTimeKey(keys.get(i)))
+				indexes.add(i);
+		}
+		this.timeKeyIndexes = indexes.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/**
+	 * @param column
+	 * @return true if the column is a date or timestamp, or named like one
+	 */
+	public static boolean isTimeKey(Column column) {
+		String type = Optional.ofNullable(column.getType()).orElse("").toLowerCase();
+		if (type.equals("date") || type.startsWith("timestamp"))
+			return true;
+		String name = Optional.ofNullable(column.getName()).orElse("").toLowerCase();
+		// Names are matched exactly or by suffix, so e.g. 'update_source' or 'runtime_env' are not time keys
+		if (TIME_KEY_NAMES.contains(name))
+			return true;
+		for (String suffix : TIME_KEY_SUFFIXES) {
+			if (name.endsWith(suffix))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if partitions are ordered by their values rather than their CreationTime
+	 */
+	public boolean hasTimeKeys() {
+		return timeKeyIndexes.length > 0;
+	}
+
+	/**
+	 * Order partitions newest first. Partitions that compare equal keep their order.
+	 * @param partitions
+	 * @return a new list
+	 */
+	public List<Partition> newestFirst(List<Partition> partitions) {
+		if (!hasTimeKeys()) {
+			List<Partition> ordered = new ArrayList<>(partitions);
+			ordered.sort(Comparator.comparing((Partition p) -> Optional.ofNullable(p.getCreationTime()).map(Date::getTime).orElse(0L))
+					.reversed());
+			return ordered;
+		}
+		// Build each sort key once
+		List<Map.Entry<String, Partition>> keyed = new ArrayList<>(partitions.size());
+		for (Partition p : partitions)
+			keyed.add(new AbstractMap.SimpleImmutableEntry<>(timeKey(p.getValues()), p));
+		keyed.sort(Map.Entry.comparingByKey());
+		List<Partition> ordered = new ArrayList<>(partitions.size());
+		for (Map.Entry<String, Partition> entry : keyed)
+			ordered.add(entry.getValue());
+		return ordered;
+	}
+
+	/**
+	 * Get a key that sorts newest first in ascending string order, and is unique for the partition values
+	 * @param values
+	 * @return the time components followed by the values as JSON, or only the values as JSON without time-like keys
+	 */
+	public String sortKey(List<String> values) {
+		String valuesJson = gson.toJson(values);
+		return hasTimeKeys() ? timeKey(values) + valuesJson : valuesJson;
+	}
+
+	private String timeKey(List<String> values) {
+		StringBuilder key = new StringBuilder();
+		for (int index : timeKeyIndexes) {
+			String value = values != null && index < values.size() ? Optional.ofNullable(values.get(index)).orElse("") : "";
+			if (!value.isEmpty() && value.length() <= numericWidth && value.chars().allMatch(Character::isDigit)) {
+				// Pad numbers so '9' sorts before '10'
+				StringBuilder padded = new StringBuilder();
+				for (int i = value.length(); i < numericWidth; i++)
+					padded.append('0');
+				value = padded.append(value).toString();
+			}
+			boolean printable = value.chars().allMatch(c -> c >= FIRST_PRINTABLE && c <= LAST_PRINTABLE);
+			// Values that cannot be mirrored, e.g. non-ASCII, sort last
+			if (printable && !value.equals(HIVE_DEFAULT_PARTITION)) {
+				for (int i = 0; i < value.length(); i++)
+					key.append((char) (FIRST_PRINTABLE + LAST_PRINTABLE - value.charAt(i)));
+			}
+			key.append(END_OF_VALUE);
+		}
+		return key.toString();
+	}
+}
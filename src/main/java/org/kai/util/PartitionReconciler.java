@@ -0,0 +1,551 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package org.kai.util;
+
+import com.amazonaws.services.glue.AWSGlue;
+import com.amazonaws.services.glue.model.Column;
+import com.amazonaws.services.glue.model.Partition;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * This class reconciles the partitions of a target table with the partitions exported from the source.
+ * Partitions are matched by their values; missing partitions are added, changed partitions are updated
+ * and partitions no longer in the source are deleted.
+ *
+ * - If the estimated size of both partition sets fits the memory budget, the diff is done in memory
+ * - Otherwise both sets are spilled to local disk as sorted runs and merged in one sequential pass
+ *
+ * A delta that is small compared with the target table is applied by probing only its partition values
+ * with BatchGetPartition instead of scanning the target table.
+ *
+ * If a deadline is set, no more writes are started once it has passed. The target is left partly
+ * reconciled, and reconciling it again later only writes the differences that remain.
+ *
+ * The partitions Glue could not write in the last reconciliation are kept, so they can be retried on their own.
+ *
+ * Partitions can be written newest first, so a large table that takes several invocations has its recent
+ * partitions, which are queried most, in the target early. See PartitionOrdering.
+ *
+ */
+public class PartitionReconciler {
+
+	final private int addBatchSize = 100;
+	final private int deleteBatchSize = 25;
+	final private int sampleSize = 100;
+	private final long spillThresholdBytes;
+	private final String spillDirectory;
+	private final long deadlineMillis;
+	private final boolean newestFirst;
+	private List<Partition> failedPartitions = new ArrayList<>();
+	private List<List<String>> failedPartitionValues = new ArrayList<>();
+	private long numberOfPartitionsWritten;
+
+	/**
+	 * @param spillThresholdBytes estimated size above which the diff spills to disk. 0 uses a quarter of the heap.
+	 * @param spillDirectory local directory for sorted runs, e.g. /tmp
+	 */
+	public PartitionReconciler(long spillThresholdBytes, String spillDirectory) {
+		this(spillThresholdBytes, spillDirectory, 0);
+	}
+
+	/**
+	 * @param spillThresholdBytes estimated size above which the diff spills to disk. 0 uses a quarter of the heap.
+	 * @param spillDirectory local directory for sorted runs, e.g. /tmp
+	 * @param deadlineMillis time in epoch millis after which no more writes are started. 0 means no deadline.
+	 */
+	public PartitionReconciler(long spillThresholdBytes, String spillDirectory, long deadlineMillis) {
+		this(spillThresholdBytes, spillDirectory, deadlineMillis, false);
+	}
+
+	/**
+	 * @param spillThresholdBytes estimated size above which the diff spills to disk. 0 uses a quarter of the heap.
+	 * @param spillDirectory local directory for sorted runs, e.g. /tmp
+	 * @param deadlineMillis time in epoch millis after which no more writes are started. 0 means no deadline.
+	 * @param newestFirst true to add and update the newest partitions first
+	 */
+	public PartitionReconciler(long spillThresholdBytes, String spillDirectory, long deadlineMillis, boolean newestFirst) {
+		this.newestFirst = newestFirst;
+		this.spillThresholdBytes = spillThresholdBytes > 0 ? spillThresholdBytes : Runtime.getRuntime().maxMemory() / 4;
+		this.spillDirectory = spillDirectory;
+		this.deadlineMillis = deadlineMillis;
+	}
+
+	/**
+	 * Check if the deadline has passed. Reconciliations that return false after the deadline are incomplete
+	 * rather than failed.
+	 * @return
+	 */
+	public boolean isDeadlinePassed() {
+		return deadlineMillis > 0 && System.currentTimeMillis() >= deadlineMillis;
+	}
+
+	/**
+	 * @return partitions that could not be added or updated in the last reconciliation
+	 */
+	public List<Partition> getFailedPartitions() {
+		return failedPartitions;
+	}
+
+	/**
+	 * @return values of partitions that could not be deleted in the last reconciliation
+	 */
+	public List<List<String>> getFailedPartitionValues() {
+		return failedPartitionValues;
+	}
+
+	/**
+	 * @return number of partitions added, updated or deleted in the last reconciliation
+	 */
+	public long getNumberOfPartitionsWritten() {
+		return numberOfPartitionsWritten;
+	}
+
+	/**
+	 * Reconcile the target table's partitions with the source partitions
+	 * @param glue
+	 * @param catalogId
+	 * @param databaseName
+	 * @param tableName
+	 * @param sourcePartitions
+	 * @return true if every add, update and delete succeeded
+	 */
+	public boolean reconcile(AWSGlue glue, String catalogId, String databaseName, String tableName,
+			List<Partition> sourcePartitions) {
+		return reconcile(glue, catalogId, databaseName, tableName, sourcePartitions, false);
+	}
+
+	/**
+	 * Reconcile the target table's partitions with the source partitions
+	 * @param glue
+	 * @param catalogId
+	 * @param databaseName
+	 * @param tableName
+	 * @param sourcePartitions
+	 * @param targetTableCreated true if the target table was just created, so it has no partitions to scan
+	 * @return true if every add, update and delete succeeded
+	 */
+	public boolean reconcile(AWSGlue glue, String catalogId, String databaseName, String tableName,
+			List<Partition> sourcePartitions, boolean targetTableCreated) {
+		return reconcile(glue, catalogId, databaseName, tableName, sourcePartitions, targetTableCreated, null);
+	}
+
+	/**
+	 * Reconcile the target table's partitions with the source partitions
+	 * @param glue
+	 * @param catalogId
+	 * @param databaseName
+	 * @param tableName
+	 * @param sourcePartitions
+	 * @param targetTableCreated true if the target table was just created, so it has no partitions to scan
+	 * @param partitionKeys partition keys of the table, to write the newest partitions first. May be null.
+	 * @return true if every add, update and delete succeeded
+	 */
+	public boolean reconcile(AWSGlue glue, String catalogId, String databaseName, String tableName,
+			List<Partition> sourcePartitions, boolean targetTableCreated, List<Column> partitionKeys) {
+		PartitionOrdering ordering = newestFirst ? new PartitionOrdering(partitionKeys) : null;
+		if (ordering != null)
+			sourcePartitions = ordering.newestFirst(sourcePartitions);
+		if (targetTableCreated) {
+			System.out.printf("Table '%s' was just created. Adding %d partitions without scanning it. \n", tableName, sourcePartitions.size());
+			PartitionWriter writer = new PartitionWriter(glue, catalogId, databaseName, tableName);
+			for (Partition p : sourcePartitions) {
+				if (writer.stopped)
+					break;
+				writer.add(p);
+			}
+			writer.flush();
+			return writer.finish();
+		}
+		long estimatedBytes = estimateBytes(sourcePartitions);
+		System.out.printf("Estimated partition diff size for table '%s': %d bytes, spill threshold: %d bytes. \n",
+				tableName, estimatedBytes, spillThresholdBytes);
+		PartitionWriter writer = new PartitionWriter(glue, catalogId, databaseName, tableName);
+		if (estimatedBytes > spillThresholdBytes) {
+			reconcileOnDisk(glue, catalogId, databaseName, tableName, sourcePartitions.stream(), ordering, writer);
+		} else {
+			reconcileInMemory(glue, catalogId, databaseName, tableName, sourcePartitions, writer);
+		}
+		writer.flush();
+		System.out.printf("Partition reconciliation for table '%s': %d added, %d updated, %d deleted, %d unchanged. \n",
+				tableName, writer.numAdded, writer.numUpdated, writer.numDeleted, writer.numUnchanged);
+		return writer.finish();
+	}
+
+	/**
+	 * Check if a partition snapshot of the given size should be reconciled on disk
+	 * @param snapshotBytes size of the snapshot's JSON lines
+	 * @return
+	 */
+	public boolean shouldSpill(long snapshotBytes) {
+		// Deserialized partitions take several times their JSON size on the heap, for both source and target
+		return 2 * 4 * snapshotBytes > spillThresholdBytes;
+	}
+
+	/**
+	 * Reconcile the target table's partitions with source partitions streamed from a snapshot. The source partitions
+	 * go straight into sorted runs on disk, so memory use does not grow with the size of the snapshot.
+	 * The whole source is spilled before the first write, so a snapshot that cannot be read changes nothing.
+	 * @param glue
+	 * @param catalogId
+	 * @param databaseName
+	 * @param tableName
+	 * @param sourcePartitions
+	 * @param partitionKeys partition keys of the table, to write the newest partitions first. May be null.
+	 * @return true if every add, update and delete succeeded
+	 */
+	public boolean reconcileOnDisk(AWSGlue glue, String catalogId, String databaseName, String tableName,
+			Stream<Partition> sourcePartitions, List<Column> partitionKeys) {
+		PartitionWriter writer = new PartitionWriter(glue, catalogId, databaseName, tableName);
+		reconcileOnDisk(glue, catalogId, databaseName, tableName, sourcePartitions,
+				newestFirst ? new PartitionOrdering(partitionKeys) : null, writer);
+		writer.flush();
+		System.out.printf("Partition reconciliation for table '%s': %d added, %d updated, %d deleted, %d unchanged. \n",
+				tableName, writer.numAdded, writer.numUpdated, writer.numDeleted, writer.numUnchanged);
+		return writer.finish();
+	}
+
+	/**
+	 * Apply a partition delta exported by the source. Only the partitions in the delta are looked at,
+	 * so memory use is bounded by the size of the delta rather than the size of the target table.
+	 * @param glue
+	 * @param catalogId
+	 * @param databaseName
+	 * @param tableName
+	 * @param upsertPartitions added or modified partitions
+	 * @param deletedPartitionValues values of removed partitions
+	 * @return true if every add, update and delete succeeded
+	 */
+	public boolean applyDelta(AWSGlue glue, String catalogId, String databaseName, String tableName,
+			List<Partition> upsertPartitions, List<List<String>> deletedPartitionValues) {
+		return applyDelta(glue, catalogId, databaseName, tableName, upsertPartitions, deletedPartitionValues, 0);
+	}
+
+	/**
+	 * Apply a partition delta exported by the source. Only the partitions in the delta are looked at,
+	 * so memory use is bounded by the size of the delta rather than the size of the target table.
+	 * The target is probed for the delta's partition values or scanned, whichever takes fewer calls.
+	 * @param glue
+	 * @param catalogId
+	 * @param databaseName
+	 * @param tableName
+	 * @param upsertPartitions added or modified partitions
+	 * @param deletedPartitionValues values of removed partitions
+	 * @param estimatedTargetPartitions number of partitions the table has in the source. 0 if unknown.
+	 * @return true if every add, update and delete succeeded
+	 */
+	public boolean applyDelta(AWSGlue glue, String catalogId, String databaseName, String tableName,
+			List<Partition> upsertPartitions, List<List<String>> deletedPartitionValues, long estimatedTargetPartitions) {
+		return applyDelta(glue, catalogId, databaseName, tableName, upsertPartitions, deletedPartitionValues, estimatedTargetPartitions, null);
+	}
+
+	/**
+	 * Apply a partition delta exported by the source. Only the partitions in the delta are looked at,
+	 * so memory use is bounded by the size of the delta rather than the size of the target table.
+	 * The target is probed for the delta's partition values or scanned, whichever takes fewer calls.
+	 * @param glue
+	 * @param catalogId
+	 * @param databaseName
+	 * @param tableName
+	 * @param upsertPartitions added or modified partitions
+	 * @param deletedPartitionValues values of removed partitions
+	 * @param estimatedTargetPartitions number of partitions the table has in the source. 0 if unknown.
+	 * @param partitionKeys partition keys of the table, to write the newest partitions first. May be null.
+	 * @return true if every add, update and delete succeeded
+	 */
+	public boolean applyDelta(AWSGlue glue, String catalogId, String databaseName, String tableName,
+			List<Partition> upsertPartitions, List<List<String>> deletedPartitionValues, long estimatedTargetPartitions,
+			List<Column> partitionKeys) {
+		if (newestFirst)
+			upsertPartitions = new PartitionOrdering(partitionKeys).newestFirst(upsertPartitions);
+		GlueUtil glueUtil = new GlueUtil();
+		Set<List<String>> upsertValues = new HashSet<>();
+		for (Partition p : upsertPartitions)
+			upsertValues.add(p.getValues());
+		Set<List<String>> deleteValues = new HashSet<>(deletedPartitionValues);
+		Map<List<String>, String> targetFingerprints = new HashMap<>();
+		Set<List<String>> existingDeletes = new HashSet<>();
+		Consumer<Partition> matchTargetPartition = p -> {
+			if (upsertValues.contains(p.getValues()))
+				targetFingerprints.put(p.getValues(), glueUtil.computePartitionFingerprint(p));
+			else if (deleteValues.contains(p.getValues()))
+				existingDeletes.add(p.getValues());
+		};
+		List<Partition> probedPartitions = null;
+		if (shouldProbe(upsertValues.size() + deleteValues.size(), estimatedTargetPartitions)) {
+			List<List<String>> probeValues = new ArrayList<>(upsertValues);
+			probeValues.addAll(deleteValues);
+			probedPartitions = glueUtil.batchGetPartitions(glue, catalogId, databaseName, tableName, probeValues);
+		}
+		if (probedPartitions != null) {
+			probedPartitions.forEach(matchTargetPartition);
+		} else {
+			try (Stream<Partition> targetPartitions = glueUtil.streamPartitions(glue, catalogId, databaseName, tableName, false)) {
+				targetPartitions.forEach(matchTargetPartition);
+			}
+		}
+
+		PartitionWriter writer = new PartitionWriter(glue, catalogId, databaseName, tableName);
+		for (Partition p : upsertPartitions) {
+			if (writer.stopped)
+				break;
+			String targetFingerprint = targetFingerprints.get(p.getValues());
+			if (targetFingerprint == null)
+				writer.add(p);
+			else if (!targetFingerprint.equals(glueUtil.computePartitionFingerprint(p)))
+				writer.update(p);
+			else
+				writer.numUnchanged++;
+		}
+		for (List<String> values : existingDeletes)
+			writer.delete(values);
+		writer.flush();
+		System.out.printf("Partition delta for table '%s': %d added, %d updated, %d deleted, %d unchanged. \n",
+				tableName, writer.numAdded, writer.numUpdated, writer.numDeleted, writer.numUnchanged);
+		return writer.finish();
+	}
+
+	/**
+	 * Choose between probing partition values and scanning the target table by the number of calls each takes
+	 * @param probeKeys
+	 * @param estimatedTargetPartitions 0 if unknown
+	 * @return
+	 */
+	private boolean shouldProbe(int probeKeys, long estimatedTargetPartitions) {
+		if (probeKeys == 0)
+			return true;
+		long probeCalls = (probeKeys + GlueUtil.PARTITION_PROBE_BATCH_SIZE - 1) / GlueUtil.PARTITION_PROBE_BATCH_SIZE;
+		// Without an estimate, probe only when a single call covers the delta
+		if (estimatedTargetPartitions <= 0)
+			return probeCalls <= 1;
+		long scanCalls = (estimatedTargetPartitions + GlueUtil.PARTITION_PAGE_SIZE - 1) / GlueUtil.PARTITION_PAGE_SIZE;
+		return probeCalls <= scanCalls;
+	}
+
+	/**
+	 * Estimate the memory needed to hold both partition sets. The target is assumed to be the same size as the source.
+	 * @param sourcePartitions
+	 * @return
+	 */
+	private long estimateBytes(List<Partition> sourcePartitions) {
+		if (sourcePartitions.isEmpty())
+			return 0;
+		Gson gson = new Gson();
+		long sampledBytes = 0;
+		int sampled = Math.min(sampleSize, sourcePartitions.size());
+		for (int i = 0; i < sampled; i++) {
+			sampledBytes += gson.toJson(sourcePartitions.get(i)).length();
+		}
+		// Deserialized partitions take several times their JSON size on the heap
+		return 2 * 4 * sampledBytes / sampled * sourcePartitions.size();
+	}
+
+	private void reconcileInMemory(AWSGlue glue, String catalogId, String databaseName, String tableName,
+			List<Partition> sourcePartitions, PartitionWriter writer) {
+		GlueUtil glueUtil = new GlueUtil();
+		Map<List<String>, String> targetFingerprints = new HashMap<>();
+		try (Stream<Partition> targetPartitions = glueUtil.streamPartitions(glue, catalogId, databaseName, tableName, false)) {
+			targetPartitions.forEach(p -> targetFingerprints.put(p.getValues(), glueUtil.computePartitionFingerprint(p)));
+		}
+		for (Partition p : sourcePartitions) {
+			if (writer.stopped)
+				break;
+			String targetFingerprint = targetFingerprints.remove(p.getValues());
+			if (targetFingerprint == null)
+				writer.add(p);
+			else if (!targetFingerprint.equals(glueUtil.computePartitionFingerprint(p)))
+				writer.update(p);
+			else
+				writer.numUnchanged++;
+		}
+		for (List<String> values : targetFingerprints.keySet())
+			writer.delete(values);
+	}
+
+	/**
+	 * Merge the source and target partitions as sorted runs on disk. With an ordering by time-like partition keys
+	 * the runs are sorted newest first; CreationTime cannot order the merge, as it differs between source and target.
+	 */
+	private void reconcileOnDisk(AWSGlue glue, String catalogId, String databaseName, String tableName,
+			Stream<Partition> sourcePartitions, PartitionOrdering ordering, PartitionWriter writer) {
+		GlueUtil glueUtil = new GlueUtil();
+		Gson gson = new Gson();
+		PartitionOrdering keyOrdering = Optional.ofNullable(ordering).orElse(new PartitionOrdering(null));
+		long runBytes = Math.max(1, spillThresholdBytes / 4);
+		Path runDirectory;
+		try {
+			runDirectory = Files.createTempDirectory(Paths.get(spillDirectory), "gluecrr_partitions_");
+		} catch (IOException e) {
+			System.out.println("Could not create spill directory. Falling back to in-memory partition diff.");
+			e.printStackTrace();
+			reconcileInMemory(glue, catalogId, databaseName, tableName, sourcePartitions.collect(Collectors.toList()), writer);
+			return;
+		}
+		System.out.println("Spilling partition diff to local disk: " + runDirectory);
+		try {
+			PartitionSpillSorter sourceSorter = new PartitionSpillSorter(runDirectory, "source", runBytes);
+			sourcePartitions.forEach(p -> sourceSorter.add(keyOrdering.sortKey(p.getValues()), glueUtil.computePartitionFingerprint(p),
+					gson.toJson(p)));
+
+			PartitionSpillSorter targetSorter = new PartitionSpillSorter(runDirectory, "target", runBytes);
+			try (Stream<Partition> targetPartitions = glueUtil.streamPartitions(glue, catalogId, databaseName, tableName, false)) {
+				targetPartitions.forEach(p -> targetSorter.add(keyOrdering.sortKey(p.getValues()), glueUtil.computePartitionFingerprint(p),
+						gson.toJson(p.getValues())));
+			}
+
+			// Merge join the two sorted streams
+			Iterator<PartitionSpillSorter.Record> sourceIterator = sourceSorter.sortedIterator();
+			Iterator<PartitionSpillSorter.Record> targetIterator = targetSorter.sortedIterator();
+			PartitionSpillSorter.Record source = sourceIterator.hasNext() ? sourceIterator.next() : null;
+			PartitionSpillSorter.Record target = targetIterator.hasNext() ? targetIterator.next() : null;
+			while ((source != null || target != null) && !writer.stopped) {
+				int cmp = source == null ? 1 : target == null ? -1 : source.getKey().compareTo(target.getKey());
+				if (cmp < 0) {
+					writer.add(gson.fromJson(source.getJson(), Partition.class));
+					source = sourceIterator.hasNext() ? sourceIterator.next() : null;
+				} else if (cmp > 0) {
+					writer.delete(gson.fromJson(target.getJson(), new TypeToken<List<String>>() {}.getType()));
+					target = targetIterator.hasNext() ? targetIterator.next() : null;
+				} else {
+					if (source.getFingerprint().equals(target.getFingerprint()))
+						writer.numUnchanged++;
+					else
+						writer.update(gson.fromJson(source.getJson(), Partition.class));
+					source = sourceIterator.hasNext() ? sourceIterator.next() : null;
+					target = targetIterator.hasNext() ? targetIterator.next() : null;
+				}
+			}
+		} finally {
+			PartitionSpillSorter.deleteSpillDirectory(runDirectory);
+		}
+	}
+
+	/**
+	 * Buffers partition operations and writes them to Glue in batches
+	 */
+	private class PartitionWriter {
+		private final GlueUtil glueUtil = new GlueUtil();
+		private final AWSGlue glue;
+		private final String catalogId;
+		private final String databaseName;
+		private final String tableName;
+		private final List<Partition> partitionsToAdd = new ArrayList<>();
+		private final List<Partition> partitionsToUpdate = new ArrayList<>();
+		private final List<Partition> partitionsToDelete = new ArrayList<>();
+		private final List<Partition> failedPartitions = new ArrayList<>();
+		private final List<List<String>> failedPartitionValues = new ArrayList<>();
+		private boolean success = true;
+		// Set once the deadline has passed. Later operations are dropped.
+		private boolean stopped = false;
+		private int numAdded;
+		private int numUpdated;
+		private int numDeleted;
+		private int numUnchanged;
+		private long numWritten;
+
+		private PartitionWriter(AWSGlue glue, String catalogId, String databaseName, String tableName) {
+			this.glue = glue;
+			this.catalogId = catalogId;
+			this.databaseName = databaseName;
+			this.tableName = tableName;
+		}
+
+		private void add(Partition partition) {
+			partitionsToAdd.add(partition);
+			numAdded++;
+			if (partitionsToAdd.size() >= addBatchSize)
+				flushAdds();
+		}
+
+		private void update(Partition partition) {
+			partitionsToUpdate.add(partition);
+			numUpdated++;
+			if (partitionsToUpdate.size() >= addBatchSize)
+				flushUpdates();
+		}
+
+		private void delete(List<String> values) {
+			partitionsToDelete.add(new Partition().withValues(values));
+			numDeleted++;
+			if (partitionsToDelete.size() >= deleteBatchSize)
+				flushDeletes();
+		}
+
+		private void flush() {
+			flushDeletes();
+			flushUpdates();
+			flushAdds();
+		}
+
+		/**
+		 * Keep the failed partitions of this reconciliation in the reconciler
+		 * @return true if every write succeeded
+		 */
+		private boolean finish() {
+			PartitionReconciler.this.failedPartitions = failedPartitions;
+			PartitionReconciler.this.failedPartitionValues = failedPartitionValues;
+			PartitionReconciler.this.numberOfPartitionsWritten = numWritten;
+			if (!failedPartitions.isEmpty() || !failedPartitionValues.isEmpty())
+				System.out.printf("Partitions of table '%s' that could not be written: %d added or updated, %d deleted. \n", tableName,
+						failedPartitions.size(), failedPartitionValues.size());
+			return success && failedPartitions.isEmpty() && failedPartitionValues.isEmpty();
+		}
+
+		/**
+		 * Check the deadline before starting a write
+		 * @return true if the write may start
+		 */
+		private boolean beforeWrite() {
+			if (!stopped && isDeadlinePassed()) {
+				System.out.printf("Deadline reached while reconciling partitions of table '%s'. Stopping. \n", tableName);
+				stopped = true;
+				success = false;
+			}
+			return !stopped;
+		}
+
+		private void flushAdds() {
+			if (!partitionsToAdd.isEmpty() && beforeWrite()) {
+				int numFailed = failedPartitions.size();
+				success &= glueUtil.addPartitions(glue, partitionsToAdd, catalogId, databaseName, tableName, failedPartitions);
+				numWritten += partitionsToAdd.size() - (failedPartitions.size() - numFailed);
+				partitionsToAdd.clear();
+			}
+		}
+
+		private void flushUpdates() {
+			if (!partitionsToUpdate.isEmpty() && beforeWrite()) {
+				int numFailed = failedPartitions.size();
+				success &= glueUtil.updatePartitions(glue, catalogId, databaseName, tableName, partitionsToUpdate, failedPartitions);
+				numWritten += partitionsToUpdate.size() - (failedPartitions.size() - numFailed);
+				partitionsToUpdate.clear();
+			}
+		}
+
+		private void flushDeletes() {
+			if (!partitionsToDelete.isEmpty() && beforeWrite()) {
+				int numFailed = failedPartitionValues.size();
+				success &= glueUtil.deletePartitions(glue, catalogId, databaseName, tableName, partitionsToDelete, failedPartitionValues);
+				numWritten += partitionsToDelete.size() - (failedPartitionValues.size() - numFailed);
+				partitionsToDelete.clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,183 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package org.kai.util;
+
+import com.amazonaws.services.glue.model.Column;
+import com.amazonaws.services.glue.model.Partition;
+import com.amazonaws.services.glue.model.Table;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.StringTokenizer;
+
+/**
+ * This class keeps only the recent partitions of a table, by the date in one of its partition keys.
+ *
+ * Rules are configured as 'database_prefix|partition_key|days[|date_format]' for a database, or
+ * 'database.table_prefix|partition_key|days[|date_format]' for tables, e.g. 'sales|dt|90,logs.events|day|30|yyyyMMdd'.
+ * The rule with the longest matching prefix applies. The date format defaults to yyyy-MM-dd.
+ *
+ * - At export partitions outside the window are not exported. The window is pushed down to GetPartitions as an
+ *   expression, e.g. dt >= '2024-07-21', only if the key is of type date and the format is yyyy-MM-dd, so every value
+ *   is an ISO date. The expression would compare the values of a string key as strings and drop any that are not dates.
+ * - At import partitions outside the window are not written, and those in the target are deleted.
+ *
+ * Partitions whose value is not a date in the format are kept.
+ *
+ */
+public class PartitionRetention {
+
+	private final List<Rule> rules = new ArrayList<>();
+
+	/**
+	 * @param retentionList e.g. 'sales|dt|90,logs.events|day|30|yyyyMMdd'
+	 * @param listSeparator
+	 * @param separator
+	 */
+	public PartitionRetention(String retentionList, String listSeparator, String separator) {
+		StringTokenizer ruleTokenizer = new StringTokenizer(Optional.ofNullable(retentionList).orElse(""), listSeparator);
+		while (ruleTokenizer.hasMoreTokens()) {
+			String ruleString = ruleTokenizer.nextToken();
+			List<String> values = new ArrayList<>();
+			StringTokenizer tokenizer = new StringTokenizer(ruleString, separator);
+			while (tokenizer.hasMoreTokens())
+				values.add(tokenizer.nextToken().trim());
+			if (values.size() != 3 && values.size() != 4) {
+				System.out.println("Error: Expected values in format Prefix|PartitionKey|Days[|DateFormat]. Instead found: " + ruleString);
+				continue;
+			}
+			try {
+				rules.add(new Rule(values.get(0).toLowerCase(), values.get(1), Integer.parseInt(values.get(2)),
+						values.size() == 4 ? values.get(3) : "yyyy-MM-dd"));
+			} catch (IllegalArgumentException e) {
+				System.out.println("Error: Ignoring partition retention rule " + ruleString + ": " + e.getMessage());
+			}
+		}
+		rules.sort((a, b) -> b.prefix.length() - a.prefix.length());
+		if (!rules.isEmpty())
+			System.out.println("Partition retention rules: " + rules);
+	}
+
+	/**
+	 * @param table
+	 * @return the rule of the table, or null if no rule applies or the table does not have the rule's partition key
+	 */
+	public Rule ruleFor(Table table) {
+		String databaseName = table.getDatabaseName().toLowerCase();
+		String tableName = databaseName + "." + table.getName().toLowerCase();
+		for (Rule rule : rules) {
+			if (!(rule.prefix.contains(".") ? tableName : databaseName).startsWith(rule.prefix))
+				continue;
+			List<Column> partitionKeys = Optional.ofNullable(table.getPartitionKeys()).orElse(new ArrayList<>());
+			for (int i = 0; i < partitionKeys.size(); i++) {
+				if (partitionKeys.get(i).getName().equalsIgnoreCase(rule.partitionKey))
+					return rule.withKey(i, partitionKeys.get(i).getType());
+			}
+			System.out.printf("Table '%s' does not have partition key '%s' of its retention rule. Keeping all partitions. \n", tableName,
+					rule.partitionKey);
+			return null;
+		}
+		return null;
+	}
+
+	/**
+	 * A retention window on one partition key
+	 */
+	public static class Rule {
+		private final String prefix;
+		private final String partitionKey;
+		private final int days;
+		private final String dateFormat;
+		private final DateTimeFormatter formatter;
+		private final int keyIndex;
+		private final String keyType;
+
+		private Rule(String prefix, String partitionKey, int days, String dateFormat) {
+			this(prefix, partitionKey, days, dateFormat, -1, null);
+		}
+
+		private Rule(String prefix, String partitionKey, int days, String dateFormat, int keyIndex, String keyType) {
+			this.prefix = prefix;
+			this.partitionKey = partitionKey;
+			this.days = days;
+			this.dateFormat = dateFormat;
+			this.formatter = DateTimeFormatter.ofPattern(dateFormat);
+			this.keyIndex = keyIndex;
+			this.keyType = keyType;
+		}
+
+		private Rule withKey(int keyIndex, String keyType) {
+			return new Rule(prefix, partitionKey, days, dateFormat, keyIndex, keyType);
+		}
+
+		/**
+		 * @return true if every value of the key is an ISO date, so GetPartitions can select the window
+		 */
+		public boolean canPushDown() {
+			return "date".equalsIgnoreCase(keyType) && "yyyy-MM-dd".equals(dateFormat);
+		}
+
+		/**
+		 * @return the first date in the window, in the rule's date format
+		 */
+		public String getCutoff() {
+			return LocalDate.now(ZoneOffset.UTC).minusDays(days).format(formatter);
+		}
+
+		/**
+		 * @return a GetPartitions expression that selects the partitions in the window, or null if it cannot be pushed down
+		 */
+		public String getRetainedExpression() {
+			return canPushDown() ? partitionKey + " >= '" + getCutoff() + "'" : null;
+		}
+
+		/**
+		 * @return a GetPartitions expression that selects the partitions that aged out of the window, or null if it
+		 *         cannot be pushed down
+		 */
+		public String getExpiredExpression() {
+			return canPushDown() ? partitionKey + " < '" + getCutoff() + "'" : null;
+		}
+
+		/**
+		 * @param partition
+		 * @return true if the partition's date is before the window
+		 */
+		public boolean isExpired(Partition partition) {
+			List<String> values = partition.getValues();
+			if (values == null || keyIndex < 0 || keyIndex >= values.size() || values.get(keyIndex) == null)
+				return false;
+			try {
+				return LocalDate.parse(values.get(keyIndex), formatter).isBefore(LocalDate.now(ZoneOffset.UTC).minusDays(days));
+			} catch (DateTimeParseException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * @param partitions
+		 * @return the partitions in the window
+		 */
+		public List<Partition> retain(List<Partition> partitions) {
+			List<Partition> retained = new ArrayList<>(partitions.size());
+			for (Partition p : partitions) {
+				if (!isExpired(p))
+					retained.add(p);
+			}
+			if (retained.size() < partitions.size())
+				System.out.printf("%d partitions are older than %d days of '%s'. \n", partitions.size() - retained.size(), days, partitionKey);
+			return retained;
+		}
+
+		@Override
+		public String toString() {
+			return prefix + ": last " + days + " days of " + partitionKey + " (" + dateFormat + ")";
+		}
+	}
+}
@@ -0,0 +1,116 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package org.kai.util;
+
+import com.amazonaws.services.glue.model.Partition;
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * This class reads a partition snapshot staged on local disk.
+ *
+ * The file is memory-mapped and indexed by line start offsets, one partition per line.
+ * Lines are decoded straight from the mapped buffer, so the snapshot text is never held on the heap
+ * and any partition can be read again without another download.
+ *
+ */
+public class PartitionSnapshotFile {
+
+	private final Path file;
+	private final MappedByteBuffer mappedBuffer;
+	private int[] lineStarts = new int[1024];
+	private int[] lineEnds = new int[1024];
+	private int numberOfLines = 0;
+
+	/**
+	 * Map a staged snapshot and index its lines
+	 * @param file
+	 * @throws IOException if the file cannot be mapped, e.g. it is larger than 2 GB
+	 */
+	public PartitionSnapshotFile(Path file) throws IOException {
+		this.file = file;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Partition snapshot is too large to map: " + file + " size: " + channel.size());
+			mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		indexLines();
+	}
+
+	private void indexLines() {
+		int limit = mappedBuffer.limit();
+		int start = 0;
+		for (int i = 0; i <= limit; i++) {
+			if (i == limit || mappedBuffer.get(i) == '\n') {
+				int end = i;
+				if (end > start && mappedBuffer.get(end - 1) == '\r')
+					end--;
+				if (end > start)
+					addLine(start, end);
+				start = i + 1;
+			}
+		}
+	}
+
+	private void addLine(int start, int end) {
+		if (numberOfLines == lineStarts.length) {
+			lineStarts = Arrays.copyOf(lineStarts, numberOfLines * 2);
+			lineEnds = Arrays.copyOf(lineEnds, numberOfLines * 2);
+		}
+		lineStarts[numberOfLines] = start;
+		lineEnds[numberOfLines] = end;
+		numberOfLines++;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	public int getNumberOfLines() {
+		return numberOfLines;
+	}
+
+	/**
+	 * Decode one line from the mapped buffer
+	 * @param index
+	 * @return
+	 */
+	public String getLine(int index) {
+		ByteBuffer slice = mappedBuffer.duplicate();
+		slice.limit(lineEnds[index]).position(lineStarts[index]);
+		return StandardCharsets.UTF_8.decode(slice).toString();
+	}
+
+	/**
+	 * Parse one partition
+	 * @param gson
+	 * @param index
+	 * @return
+	 */
+	public Partition getPartition(Gson gson, int index) {
+		return gson.fromJson(getLine(index), Partition.class);
+	}
+
+	/**
+	 * Parse all partitions in parallel slices of the file, keeping the file order
+	 * @param gson must be safe to share between threads
+	 * @return
+	 */
+	public List<Partition> parsePartitions(Gson gson) {
+		return IntStream.range(0, numberOfLines).parallel()
+				.mapToObj(i -> getPartition(gson, i))
+				.collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,358 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package org.kai.util;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.glue.model.Partition;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * This class reads partition snapshots that the source region saved to S3.
+ *
+ * - Snapshots at or below the staging threshold are parsed straight from the S3 object stream
+ * - Larger snapshots are staged to local disk once, memory-mapped and parsed in parallel.
+ *   A staged snapshot is reused when the same object is read again by this container, e.g. on a retry.
+ * - Snapshots larger than two byte ranges are downloaded as concurrent ranged GETs
+ * - If a cache bucket is set, a snapshot is first copied into it, keyed by its source bucket, key and ETag,
+ *   and read from there. Later reads and retries in the target region do not cross regions again.
+ *   Expire cached copies with a lifecycle rule on the cache bucket.
+ *
+ */
+public class PartitionSnapshotReader {
+
+	private static final String STAGED_FILE_PREFIX = "gluecrr_snapshot_";
+	// Staged snapshots not read for this long are deleted when a new snapshot is staged
+	final private long stagedFileRetentionMillis = 60 * 60 * 1000;
+	private final long stagingThresholdBytes;
+	private final String stagingDirectory;
+	private final RangedS3Downloader rangedDownloader;
+	private final String cacheRegion;
+	private final String cacheBucket;
+
+	/**
+	 * @param stagingThresholdBytes snapshot size above which it is staged to local disk. 0 disables staging.
+	 * @param stagingDirectory local directory for staged snapshots, e.g. /tmp
+	 */
+	public PartitionSnapshotReader(long stagingThresholdBytes, String stagingDirectory) {
+		this(stagingThresholdBytes, stagingDirectory, 0, 1);
+	}
+
+	/**
+	 * @param stagingThresholdBytes snapshot size above which it is staged to local disk. 0 disables staging.
+	 * @param stagingDirectory local directory for staged snapshots, e.g. /tmp
+	 * @param rangeSizeBytes size of the byte ranges large snapshots are downloaded in. 0 disables ranged downloads.
+	 * @param rangeParallelism number of ranges downloaded at once
+	 */
+	public PartitionSnapshotReader(long stagingThresholdBytes, String stagingDirectory, long rangeSizeBytes, int rangeParallelism) {
+		this(stagingThresholdBytes, stagingDirectory, rangeSizeBytes, rangeParallelism, null, null);
+	}
+
+	/**
+	 * @param stagingThresholdBytes snapshot size above which it is staged to local disk. 0 disables staging.
+	 * @param stagingDirectory local directory for staged snapshots, e.g. /tmp
+	 * @param rangeSizeBytes size of the byte ranges large snapshots are downloaded in. 0 disables ranged downloads.
+	 * @param rangeParallelism number of ranges downloaded at once
+	 * @param cacheRegion region of the cache bucket
+	 * @param cacheBucket bucket that caches snapshots in the target region. Null or empty disables the cache.
+	 */
+	public PartitionSnapshotReader(long stagingThresholdBytes, String stagingDirectory, long rangeSizeBytes, int rangeParallelism,
+			String cacheRegion, String cacheBucket) {
+		this.stagingThresholdBytes = stagingThresholdBytes;
+		this.stagingDirectory = stagingDirectory;
+		this.rangedDownloader = new RangedS3Downloader(rangeSizeBytes, rangeParallelism);
+		this.cacheRegion = cacheRegion;
+		this.cacheBucket = cacheBucket;
+	}
+
+	/**
+	 * Read the partitions of a snapshot
+	 * @param region
+	 * @param bucket
+	 * @param key
+	 * @param gson
+	 * @return all partitions of the snapshot, or null if it could not be read in full
+	 */
+	public List<Partition> readPartitions(String region, String bucket, String key, Gson gson) {
+		if (Optional.ofNullable(cacheBucket).isPresent() && !cacheBucket.isEmpty()) {
+			String cacheKey = cacheSnapshot(region, bucket, key);
+			if (cacheKey != null) {
+				region = cacheRegion;
+				bucket = cacheBucket;
+				key = cacheKey;
+			}
+		}
+		Path stagedFile = stagingThresholdBytes > 0 ? stagedFilePath(bucket, key) : null;
+		if (stagedFile != null && Files.exists(stagedFile)) {
+			System.out.println("Reading partition snapshot staged at " + stagedFile);
+			List<Partition> partitionList = readStagedPartitions(stagedFile, gson);
+			if (partitionList != null)
+				return partitionList;
+		}
+
+		List<Partition> partitionList = new ArrayList<>();
+		AmazonS3 s3 = AmazonS3ClientBuilder.standard().withRegion(region).build();
+		InputStream input = null;
+		try {
+			if (stagedFile == null && !rangedDownloader.isEnabled()) {
+				S3Object fullObject = s3.getObject(new GetObjectRequest(bucket, key));
+				System.out.println("CONTENT TYPE: " + fullObject.getObjectMetadata().getContentType());
+				input = fullObject.getObjectContent();
+			} else {
+				// The size decides between staging, ranged download and a single stream
+				ObjectMetadata metadata = s3.getObjectMetadata(bucket, key);
+				long contentLength = metadata.getContentLength();
+				boolean ranged = rangedDownloader.shouldSplit(contentLength);
+				System.out.println("CONTENT TYPE: " + metadata.getContentType() + ", CONTENT LENGTH: " + contentLength + ", RANGED: " + ranged);
+				if (stagedFile != null && contentLength > stagingThresholdBytes
+						&& stage(s3, bucket, key, contentLength, metadata.getETag(), ranged, stagedFile)) {
+					List<Partition> stagedPartitions = readStagedPartitions(stagedFile, gson);
+					if (stagedPartitions != null)
+						return stagedPartitions;
+				}
+				input = ranged ? rangedDownloader.openStream(s3, bucket, key, contentLength, metadata.getETag())
+						: s3.getObject(new GetObjectRequest(bucket, key)).getObjectContent();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.out.println("Exception thrown while reading object from S3");
+			return null;
+		}
+
+		// A partial list would be taken for the whole snapshot, and partitions missing from it deleted
+		BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+		String line = null;
+		try {
+			while ((line = reader.readLine()) != null) {
+				Partition partition = gson.fromJson(line, Partition.class);
+				partitionList.add(partition);
+			}
+		} catch (JsonSyntaxException | IOException | SdkClientException e) {
+			System.out.println("Exception occured while reading partition information from S3 object.");
+			e.printStackTrace();
+			return null;
+		} finally {
+			closeQuietly(reader);
+		}
+		return partitionList;
+	}
+
+	/**
+	 * Stream the partitions of a snapshot line by line, so they need not all be held in memory.
+	 * Close the Stream when done. Read failures are thrown, e.g. as UncheckedIOException or JsonSyntaxException.
+	 * @param region
+	 * @param bucket
+	 * @param key
+	 * @param gson
+	 * @return
+	 * @throws IOException if the snapshot could not be opened
+	 */
+	public Stream<Partition> streamPartitions(String region, String bucket, String key, Gson gson) throws IOException {
+		if (Optional.ofNullable(cacheBucket).isPresent() && !cacheBucket.isEmpty()) {
+			String cacheKey = cacheSnapshot(region, bucket, key);
+			if (cacheKey != null) {
+				region = cacheRegion;
+				bucket = cacheBucket;
+				key = cacheKey;
+			}
+		}
+		BufferedReader reader;
+		Path stagedFile = stagingThresholdBytes > 0 ? stagedFilePath(bucket, key) : null;
+		if (stagedFile != null && Files.exists(stagedFile)) {
+			System.out.println("Streaming partition snapshot staged at " + stagedFile);
+			reader = Files.newBufferedReader(stagedFile, StandardCharsets.UTF_8);
+		} else {
+			AmazonS3 s3 = AmazonS3ClientBuilder.standard().withRegion(region).build();
+			try {
+				ObjectMetadata metadata = s3.getObjectMetadata(bucket, key);
+				long contentLength = metadata.getContentLength();
+				boolean ranged = rangedDownloader.shouldSplit(contentLength);
+				System.out.println("Streaming partition snapshot. CONTENT LENGTH: " + contentLength + ", RANGED: " + ranged);
+				InputStream input = ranged ? rangedDownloader.openStream(s3, bucket, key, contentLength, metadata.getETag())
+						: s3.getObject(new GetObjectRequest(bucket, key)).getObjectContent();
+				reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+			} catch (SdkClientException e) {
+				throw new IOException("Could not open partition snapshot s3://" + bucket + "/" + key, e);
+			}
+		}
+		return reader.lines().map(line -> gson.fromJson(line, Partition.class)).onClose(() -> closeQuietly(reader));
+	}
+
+	/**
+	 * @param region
+	 * @param bucket
+	 * @param key
+	 * @return the size of a snapshot in bytes, or 0 if it is not known
+	 */
+	public long getSnapshotSize(String region, String bucket, String key) {
+		try {
+			return AmazonS3ClientBuilder.standard().withRegion(region).build().getObjectMetadata(bucket, key).getContentLength();
+		} catch (Exception e) {
+			System.out.println("Could not get the size of partition snapshot s3://" + bucket + "/" + key + ": " + e.getMessage());
+			return 0;
+		}
+	}
+
+	/**
+	 * Copy a snapshot into the cache bucket unless it is already there. The copy is done by S3,
+	 * so the snapshot does not pass through this function.
+	 * @param region
+	 * @param bucket
+	 * @param key
+	 * @return the key of the cached copy, or null if the snapshot could not be cached
+	 */
+	private String cacheSnapshot(String region, String bucket, String key) {
+		AmazonS3 cacheS3 = AmazonS3ClientBuilder.standard().withRegion(cacheRegion).build();
+		try {
+			String eTag = AmazonS3ClientBuilder.standard().withRegion(region).build().getObjectMetadata(bucket, key).getETag();
+			String cacheKey = new StringBuilder("snapshot_cache/").append(bucket).append("/").append(eTag)
+					.append("/").append(key).toString();
+			if (isCached(cacheS3, cacheKey)) {
+				System.out.println("Reading partition snapshot from cache bucket: " + cacheBucket + " Object Key: " + cacheKey);
+				return cacheKey;
+			}
+			long startTime = System.currentTimeMillis();
+			CopyObjectResult copyResult = cacheS3.copyObject(new CopyObjectRequest(bucket, key, cacheBucket, cacheKey)
+					.withMatchingETagConstraint(eTag));
+			if (copyResult == null) {
+				System.out.println("Partition snapshot changed while it was copied to the cache bucket. Reading it from the source region.");
+				return null;
+			}
+			System.out.printf("Copied partition snapshot to cache bucket: %s Object Key: %s in %d ms. \n", cacheBucket, cacheKey,
+					System.currentTimeMillis() - startTime);
+			return cacheKey;
+		} catch (Exception e) {
+			System.out.println("Could not cache partition snapshot. Reading it from the source region.");
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * @param cacheS3
+	 * @param cacheKey
+	 * @return true if the cache bucket has the key
+	 */
+	private boolean isCached(AmazonS3 cacheS3, String cacheKey) {
+		try {
+			cacheS3.getObjectMetadata(cacheBucket, cacheKey);
+			return true;
+		} catch (AmazonS3Exception e) {
+			// S3 answers 403 instead of 404 for a missing key if s3:ListBucket is not granted. The copy tells if access is denied.
+			if (e.getStatusCode() == 404 || e.getStatusCode() == 403)
+				return false;
+			throw e;
+		}
+	}
+
+	/**
+	 * Copy a snapshot to local disk. The file only appears under its final name once it is complete.
+	 * @param s3
+	 * @param bucket
+	 * @param key
+	 * @param contentLength
+	 * @param eTag
+	 * @param ranged
+	 * @param stagedFile
+	 * @return
+	 */
+	private boolean stage(AmazonS3 s3, String bucket, String key, long contentLength, String eTag, boolean ranged, Path stagedFile) {
+		evictStagedFiles();
+		Path partFile = Paths.get(stagedFile.toString() + ".part");
+		try {
+			if (ranged) {
+				rangedDownloader.downloadToFile(s3, bucket, key, contentLength, eTag, partFile);
+			} else {
+				try (S3Object s3Object = s3.getObject(new GetObjectRequest(bucket, key).withMatchingETagConstraint(eTag))) {
+					if (s3Object == null)
+						throw new IOException("Object s3://" + bucket + "/" + key + " changed while it was downloaded");
+					Files.copy(s3Object.getObjectContent(), partFile, StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			Files.move(partFile, stagedFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			System.out.printf("Staged partition snapshot of %d bytes at %s. \n", contentLength, stagedFile);
+			return true;
+		} catch (IOException e) {
+			System.out.println("Could not stage partition snapshot at " + stagedFile);
+			e.printStackTrace();
+			try {
+				Files.deleteIfExists(partFile);
+			} catch (IOException ignored) {
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @param stagedFile
+	 * @param gson
+	 * @return the partitions, or null if the staged file could not be read
+	 */
+	private List<Partition> readStagedPartitions(Path stagedFile, Gson gson) {
+		try {
+			PartitionSnapshotFile snapshotFile = new PartitionSnapshotFile(stagedFile);
+			long startTime = System.currentTimeMillis();
+			List<Partition> partitionList = snapshotFile.parsePartitions(gson);
+			stagedFile.toFile().setLastModified(System.currentTimeMillis());
+			System.out.printf("Parsed %d partitions from staged snapshot in %d ms. \n", partitionList.size(),
+					System.currentTimeMillis() - startTime);
+			return partitionList;
+		} catch (IOException | JsonSyntaxException e) {
+			System.out.println("Could not read staged partition snapshot " + stagedFile);
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Delete staged snapshots that have not been read recently, so /tmp does not fill up
+	 */
+	private void evictStagedFiles() {
+		File[] files = new File(stagingDirectory).listFiles((dir, name) -> name.startsWith(STAGED_FILE_PREFIX));
+		if (files == null)
+			return;
+		long now = System.currentTimeMillis();
+		for (File file : files) {
+			if (now - file.lastModified() > stagedFileRetentionMillis && file.delete())
+				System.out.println("Deleted staged partition snapshot " + file);
+		}
+	}
+
+	private Path stagedFilePath(String bucket, String key) {
+		String name = Hashing.sha256().hashString(bucket + "/" + key, StandardCharsets.UTF_8).toString();
+		return Paths.get(stagingDirectory, STAGED_FILE_PREFIX + name + ".txt");
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException ignored) {
+		}
+	}
+}
@@ -0,0 +1,220 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package org.kai.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * This class sorts partition records that do not fit in memory.
+ *
+ * Records are buffered up to a byte budget, sorted by key and written to local disk as sorted runs.
+ * The runs are then read back through memory-mapped buffers and merged into a single sorted iterator.
+ *
+ * Each record is one line: key TAB fingerprint [TAB partition or partition values JSON]
+ *
+ */
+public class PartitionSpillSorter {
+
+	private final Path spillDirectory;
+	private final String name;
+	private final long runBytes;
+	private final List<Path> runFiles = new ArrayList<>();
+	private final List<Record> buffer = new ArrayList<>();
+	private long bufferedBytes = 0;
+	private long numRecords = 0;
+
+	public PartitionSpillSorter(Path spillDirectory, String name, long runBytes) {
+		this.spillDirectory = spillDirectory;
+		this.name = name;
+		this.runBytes = runBytes;
+	}
+
+	/**
+	 * Add a record. The buffer is written out as a sorted run when it reaches the byte budget.
+	 * @param key
+	 * @param fingerprint
+	 * @param json may be null when only the key and fingerprint are needed
+	 */
+	public void add(String key, String fingerprint, String json) {
+		Record record = new Record(key, fingerprint, json);
+		buffer.add(record);
+		bufferedBytes += record.estimatedBytes();
+		numRecords++;
+		if (bufferedBytes >= runBytes)
+			writeRun();
+	}
+
+	public long getNumRecords() {
+		return numRecords;
+	}
+
+	/**
+	 * Flush the remaining records and return all records merged in key order
+	 * @return
+	 */
+	public Iterator<Record> sortedIterator() {
+		if (!buffer.isEmpty())
+			writeRun();
+		System.out.printf("Merging %d sorted runs with %d records for '%s'. \n", runFiles.size(), numRecords, name);
+		PriorityQueue<RunReader> readers = new PriorityQueue<>(Math.max(1, runFiles.size()),
+				Comparator.comparing((RunReader r) -> r.current.key));
+		for (Path runFile : runFiles) {
+			RunReader reader = new RunReader(runFile);
+			if (reader.advance())
+				readers.add(reader);
+		}
+		return new Iterator<Record>() {
+			@Override
+			public boolean hasNext() {
+				return !readers.isEmpty();
+			}
+
+			@Override
+			public Record next() {
+				RunReader reader = readers.poll();
+				if (reader == null)
+					throw new NoSuchElementException();
+				Record record = reader.current;
+				if (reader.advance())
+					readers.add(reader);
+				return record;
+			}
+		};
+	}
+
+	private void writeRun() {
+		buffer.sort(Comparator.comparing((Record r) -> r.key));
+		Path runFile = spillDirectory.resolve(name + "_run_" + runFiles.size() + ".txt");
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(runFile.toFile()), StandardCharsets.UTF_8))) {
+			for (Record record : buffer) {
+				writer.write(record.key);
+				writer.write('\t');
+				writer.write(record.fingerprint);
+				if (record.json != null) {
+					writer.write('\t');
+					writer.write(record.json);
+				}
+				writer.write('\n');
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not write partition run file " + runFile, e);
+		}
+		System.out.printf("Wrote sorted run %s with %d records. \n", runFile, buffer.size());
+		runFiles.add(runFile);
+		buffer.clear();
+		bufferedBytes = 0;
+	}
+
+	/**
+	 * Reads one sorted run file line by line from a memory-mapped buffer
+	 */
+	private static class RunReader {
+		private final MappedByteBuffer mappedBuffer;
+		private Record current;
+
+		private RunReader(Path runFile) {
+			try (FileChannel channel = FileChannel.open(runFile, StandardOpenOption.READ)) {
+				mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not map partition run file " + runFile, e);
+			}
+		}
+
+		private boolean advance() {
+			if (!mappedBuffer.hasRemaining()) {
+				current = null;
+				return false;
+			}
+			int start = mappedBuffer.position();
+			int end = start;
+			while (end < mappedBuffer.limit() && mappedBuffer.get(end) != '\n')
+				end++;
+			byte[] line = new byte[end - start];
+			mappedBuffer.get(line);
+			if (mappedBuffer.hasRemaining())
+				mappedBuffer.get(); // skip the newline
+			current = Record.parse(new String(line, StandardCharsets.UTF_8));
+			return true;
+		}
+	}
+
+	/**
+	 * A partition record keyed by its partition values
+	 */
+	public static class Record {
+		private final String key;
+		private final String fingerprint;
+		private final String json;
+
+		private Record(String key, String fingerprint, String json) {
+			this.key = key;
+			this.fingerprint = fingerprint;
+			this.json = json;
+		}
+
+		private static Record parse(String line) {
+			int firstTab = line.indexOf('\t');
+			int secondTab = line.indexOf('\t', firstTab + 1);
+			if (secondTab < 0)
+				return new Record(line.substring(0, firstTab), line.substring(firstTab + 1), null);
+			return new Record(line.substring(0, firstTab), line.substring(firstTab + 1, secondTab),
+					line.substring(secondTab + 1));
+		}
+
+		private long estimatedBytes() {
+			// Java strings are UTF-16 plus object overhead
+			return 2L * (key.length() + fingerprint.length() + (json == null ? 0 : json.length())) + 64;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public String getFingerprint() {
+			return fingerprint;
+		}
+
+		public String getJson() {
+			return json;
+		}
+	}
+
+	/**
+	 * Delete a spill directory and its run files
+	 * @param spillDirectory
+	 */
+	public static void deleteSpillDirectory(Path spillDirectory) {
+		File[] files = spillDirectory.toFile().listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!file.delete())
+					System.out.println("Could not delete spill file: " + file);
+			}
+		}
+		try {
+			Files.deleteIfExists(spillDirectory);
+		} catch (IOException e) {
+			System.out.println("Could not delete spill directory: " + spillDirectory);
+		}
+	}
+}
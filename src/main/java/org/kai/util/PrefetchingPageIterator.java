@@ -0,0 +1,162 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package org.kai.util;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * This class iterates over the items of a paginated listing, one item at a time.
+ *
+ * Pages are fetched on a background thread while the caller consumes the current page. At most
+ * maxBufferedPages pages are held ahead of the caller; the background thread waits when the buffer is full.
+ * Close the iterator, or the Stream returned by stream(), to stop fetching if it is not read to the end.
+ *
+ * @param <T> the item type
+ */
+public class PrefetchingPageIterator<T> implements Iterator<T>, AutoCloseable {
+
+	/**
+	 * Fetches one page of a listing
+	 * @param <T>
+	 */
+	public interface PageFetcher<T> {
+		/**
+		 * @param nextToken null for the first page
+		 * @return
+		 */
+		Page<T> fetch(String nextToken);
+	}
+
+	/**
+	 * The items of one page and the token of the next page, or null if it is the last page
+	 * @param <T>
+	 */
+	public static class Page<T> {
+		private final List<T> items;
+		private final String nextToken;
+
+		public Page(List<T> items, String nextToken) {
+			this.items = Optional.ofNullable(items).orElse(Collections.emptyList());
+			this.nextToken = nextToken;
+		}
+	}
+
+	// Marks the end of the listing in the page buffer
+	private static final Page<?> END = new Page<>(Collections.emptyList(), null);
+
+	private final BlockingQueue<Page<T>> pages;
+	private final Thread fetcher;
+	private volatile boolean closed = false;
+	private volatile Throwable fetchError;
+	private Iterator<T> currentPage = Collections.emptyIterator();
+	private boolean finished = false;
+
+	/**
+	 * Start fetching pages in the background
+	 * @param name used to name the background thread
+	 * @param pageFetcher
+	 * @param maxBufferedPages
+	 */
+	public PrefetchingPageIterator(String name, PageFetcher<T> pageFetcher, int maxBufferedPages) {
+		this.pages = new ArrayBlockingQueue<>(Math.max(1, maxBufferedPages));
+		this.fetcher = new Thread(() -> fetchPages(pageFetcher), "prefetch-" + name);
+		this.fetcher.setDaemon(true);
+		this.fetcher.start();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void fetchPages(PageFetcher<T> pageFetcher) {
+		try {
+			String nextToken = null;
+			do {
+				Page<T> page = pageFetcher.fetch(nextToken);
+				if (!offer(page))
+					return;
+				nextToken = page.nextToken;
+			} while (Optional.ofNullable(nextToken).isPresent());
+		} catch (RuntimeException | Error e) {
+			fetchError = e;
+		} finally {
+			// Always end the buffer, so the caller does not wait forever for a page that will not come
+			offer((Page<T>) END);
+		}
+	}
+
+	/**
+	 * Put a page in the buffer, waiting while it is full
+	 * @param page
+	 * @return false if the iterator was closed
+	 */
+	private boolean offer(Page<T> page) {
+		try {
+			while (!closed) {
+				if (pages.offer(page, 100, TimeUnit.MILLISECONDS))
+					return true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (!currentPage.hasNext() && !finished) {
+			Page<T> page;
+			try {
+				page = pages.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close();
+				throw new IllegalStateException("Interrupted while waiting for the next page", e);
+			}
+			if (page == END) {
+				finished = true;
+				if (fetchError instanceof Error)
+					throw (Error) fetchError;
+				if (fetchError != null)
+					throw (RuntimeException) fetchError;
+			} else {
+				currentPage = page.items.iterator();
+			}
+		}
+		return currentPage.hasNext();
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return currentPage.next();
+	}
+
+	/**
+	 * Stop fetching pages
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		fetcher.interrupt();
+	}
+
+	/**
+	 * Expose the iterator as a sequential Stream. Closing the Stream closes the iterator.
+	 * @return
+	 */
+	public Stream<T> stream() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(this::close);
+	}
+}
@@ -0,0 +1,193 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package org.kai.util;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
+import org.kai.util.Constants.Priority;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class assigns Databases to priority lanes and decides how much of a lane's work to do now.
+ *
+ * - Lanes are configured per database prefix in the format of database_prefix_list,
+ *   e.g. 'high|revenue|finance,low|analytics'. Databases without a matching prefix are in the Normal lane.
+ * - Each lane has its own queue. A lane without a queue uses the Normal lane's queue.
+ * - A lane does all its work while no higher lane has a backlog. Otherwise it does its weighted share
+ *   of the work, e.g. 1 in 7 for the Low lane with weights 'high|6,normal|3,low|1' and a High backlog.
+ *   The share is never 0, so a backfill in a low lane slows down but never stops.
+ *
+ */
+public class PriorityLanes {
+
+	// Queue backlogs are shared by the invocations of a Lambda container and read again after this long
+	private static final long BACKLOG_CACHE_MILLIS = 10000;
+	private static final Map<String, long[]> backlogCache = new ConcurrentHashMap<>();
+
+	// Database prefixes and their lane, longest prefix first
+	private final List<Map.Entry<String, Priority>> prefixes = new ArrayList<>();
+	private final Map<Priority, Integer> weights = new EnumMap<>(Priority.class);
+	private final Map<Priority, String> queueUrls = new EnumMap<>(Priority.class);
+
+	/**
+	 * @param priorityListString e.g. 'high|revenue|finance,low|analytics'
+	 * @param listSeparator
+	 * @param separator
+	 * @param weightString e.g. 'high|6,normal|3,low|1'
+	 * @param queueUrls queue of each lane. Empty URLs are ignored.
+	 */
+	public PriorityLanes(String priorityListString, String listSeparator, String separator, String weightString,
+			Map<Priority, String> queueUrls) {
+		for (String laneString : tokenize(priorityListString, listSeparator)) {
+			List<String> values = tokenize(laneString, separator);
+			Priority lane = parsePriority(values.isEmpty() ? null : values.get(0));
+			if (lane == null) {
+				System.out.println("Warning: Ignoring priority lane with unknown priority: " + laneString);
+				continue;
+			}
+			for (String prefix : values.subList(1, values.size()))
+				prefixes.add(new AbstractMap.SimpleImmutableEntry<>(prefix.toLowerCase(), lane));
+		}
+		prefixes.sort((a, b) -> b.getKey().length() - a.getKey().length());
+
+		weights.put(Priority.High, 6);
+		weights.put(Priority.Normal, 3);
+		weights.put(Priority.Low, 1);
+		for (String weight : tokenize(weightString, listSeparator)) {
+			List<String> values = tokenize(weight, separator);
+			Priority lane = parsePriority(values.isEmpty() ? null : values.get(0));
+			if (lane != null && values.size() == 2)
+				weights.put(lane, Math.max(1, Integer.parseInt(values.get(1).trim())));
+		}
+
+		for (Map.Entry<Priority, String> entry : Optional.ofNullable(queueUrls).orElse(Collections.emptyMap()).entrySet()) {
+			if (Optional.ofNullable(entry.getValue()).isPresent() && !entry.getValue().isEmpty())
+				this.queueUrls.put(entry.getKey(), entry.getValue());
+		}
+		System.out.println("Priority lanes: " + prefixes + ", weights: " + weights + ", queues: " + this.queueUrls);
+	}
+
+	/**
+	 * Parse a priority, ignoring case
+	 * @param value
+	 * @return the priority, or null if the value is not one
+	 */
+	public static Priority parsePriority(String value) {
+		if (!Optional.ofNullable(value).isPresent())
+			return null;
+		for (Priority priority : Priority.values()) {
+			if (priority.toString().equalsIgnoreCase(value.trim()))
+				return priority;
+		}
+		return null;
+	}
+
+	/**
+	 * @param databaseName
+	 * @return the lane of the longest matching prefix, or Normal
+	 */
+	public Priority laneOf(String databaseName) {
+		String name = databaseName.toLowerCase();
+		for (Map.Entry<String, Priority> prefix : prefixes) {
+			if (name.startsWith(prefix.getKey()))
+				return prefix.getValue();
+		}
+		return Priority.Normal;
+	}
+
+	/**
+	 * @param lane
+	 * @return the queue of the lane, or of the Normal lane if the lane has none
+	 */
+	public String queueUrl(Priority lane) {
+		return Optional.ofNullable(queueUrls.get(lane)).orElse(queueUrls.get(Priority.Normal));
+	}
+
+	/**
+	 * @param queueArn ARN of the queue an SQS Event was received from
+	 * @return the lane of the queue, or Normal if the queue is not a lane's
+	 */
+	public Priority laneOfQueue(String queueArn) {
+		String queueName = Optional.ofNullable(queueArn).orElse("");
+		queueName = queueName.substring(queueName.lastIndexOf(':') + 1);
+		for (Map.Entry<Priority, String> entry : queueUrls.entrySet()) {
+			if (!queueName.isEmpty() && entry.getValue().endsWith("/" + queueName))
+				return entry.getKey();
+		}
+		return Priority.Normal;
+	}
+
+	/**
+	 * Decide how many of a lane's work items to do now. The rest should be returned to the lane's queue.
+	 * @param sqs
+	 * @param lane
+	 * @param numberOfItems
+	 * @return between 0 and numberOfItems, numberOfItems if no higher lane has a backlog
+	 */
+	public int numberToProcess(AmazonSQS sqs, Priority lane, int numberOfItems) {
+		if (numberOfItems == 0)
+			return 0;
+		int higherWeights = 0;
+		for (Priority higher : Priority.values()) {
+			if (higher.ordinal() >= lane.ordinal())
+				break;
+			String higherQueueUrl = queueUrls.get(higher);
+			if (higherQueueUrl != null && !higherQueueUrl.equals(queueUrl(lane)) && getBacklog(sqs, higherQueueUrl) > 0)
+				higherWeights += weights.get(higher);
+		}
+		if (higherWeights == 0)
+			return numberOfItems;
+		// Round the share up or down at random, so the average is exact even for a single item
+		double share = numberOfItems * weights.get(lane) / (double) (weights.get(lane) + higherWeights);
+		int numberToProcess = (int) share + (ThreadLocalRandom.current().nextDouble() < share - (int) share ? 1 : 0);
+		if (numberToProcess == 0)
+			return 0;
+		System.out.printf("Higher priority lanes have a backlog. Processing %d of %d messages of the %s lane. \n", numberToProcess,
+				numberOfItems, lane);
+		return numberToProcess;
+	}
+
+	/**
+	 * Get the number of visible messages of a queue
+	 * @param sqs
+	 * @param queueUrl
+	 * @return
+	 */
+	private long getBacklog(AmazonSQS sqs, String queueUrl) {
+		long now = System.currentTimeMillis();
+		long[] cached = backlogCache.get(queueUrl);
+		if (cached != null && now - cached[1] < BACKLOG_CACHE_MILLIS)
+			return cached[0];
+		long backlog = 0;
+		try {
+			String value = sqs.getQueueAttributes(new GetQueueAttributesRequest(queueUrl)
+					.withAttributeNames(QueueAttributeName.ApproximateNumberOfMessages)).getAttributes()
+					.get(QueueAttributeName.ApproximateNumberOfMessages.toString());
+			backlog = Long.parseLong(Optional.ofNullable(value).orElse("0"));
+		} catch (Exception e) {
+			System.out.println("Could not get the backlog of queue " + queueUrl + ": " + e.getMessage());
+		}
+		backlogCache.put(queueUrl, new long[] {backlog, now});
+		return backlog;
+	}
+
+	private static List<String> tokenize(String value, String separator) {
+		List<String> tokens = new ArrayList<>();
+		StringTokenizer tokenizer = new StringTokenizer(Optional.ofNullable(value).orElse(""), separator);
+		while (tokenizer.hasMoreTokens())
+			tokens.add(tokenizer.nextToken());
+		return tokens;
+	}
+}
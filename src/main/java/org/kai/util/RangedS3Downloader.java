@@ -0,0 +1,261 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package org.kai.util;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class downloads large S3 objects as concurrent byte range GETs.
+ *
+ * A single GetObject stream across regions uses a fraction of the available bandwidth. Splitting the
+ * object into ranges and fetching several at once fills the link. Every range is requested with the
+ * ETag of the object, so a range of a newer version of the object is never mixed in.
+ *
+ * - openStream returns the ranges reassembled in order, so lines that cross a range edge are read whole
+ * - downloadToFile writes each range straight to its offset in a local file
+ *
+ */
+public class RangedS3Downloader {
+
+	final private int maxAttempts = 3;
+	final private int copyBufferBytes = 64 * 1024;
+	private final long rangeSizeBytes;
+	private final int parallelism;
+
+	/**
+	 * @param rangeSizeBytes
+	 * @param parallelism number of ranges fetched at once
+	 */
+	public RangedS3Downloader(long rangeSizeBytes, int parallelism) {
+		this.rangeSizeBytes = rangeSizeBytes;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	public boolean isEnabled() {
+		return rangeSizeBytes > 0 && parallelism > 1;
+	}
+
+	/**
+	 * Check if an object is large enough to be worth splitting into ranges
+	 * @param contentLength
+	 * @return
+	 */
+	public boolean shouldSplit(long contentLength) {
+		return isEnabled() && contentLength > 2 * rangeSizeBytes;
+	}
+
+	/**
+	 * Open the object as one stream. Up to parallelism ranges are fetched ahead of the reader and held in memory.
+	 * @param s3
+	 * @param bucket
+	 * @param key
+	 * @param contentLength
+	 * @param eTag
+	 * @return
+	 */
+	public InputStream openStream(AmazonS3 s3, String bucket, String key, long contentLength, String eTag) {
+		System.out.printf("Downloading s3://%s/%s in ranges of %d bytes, %d at a time. \n", bucket, key, rangeSizeBytes, parallelism);
+		return new RangeInputStream(s3, bucket, key, contentLength, eTag);
+	}
+
+	/**
+	 * Download the object to a local file
+	 * @param s3
+	 * @param bucket
+	 * @param key
+	 * @param contentLength
+	 * @param eTag
+	 * @param file
+	 * @throws IOException
+	 */
+	public void downloadToFile(AmazonS3 s3, String bucket, String key, long contentLength, String eTag, Path file) throws IOException {
+		System.out.printf("Downloading s3://%s/%s to %s in ranges of %d bytes, %d at a time. \n", bucket, key, file, rangeSizeBytes, parallelism);
+		long startTime = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			List<Future<Void>> futures = new ArrayList<>();
+			for (long start = 0; start < contentLength; start += rangeSizeBytes) {
+				long rangeStart = start;
+				long rangeEnd = Math.min(contentLength, start + rangeSizeBytes) - 1;
+				futures.add(executor.submit(() -> {
+					fetchRange(s3, bucket, key, eTag, rangeStart, rangeEnd, (buffer, offset) ->
+							writeFully(channel, buffer, rangeStart + offset));
+					return null;
+				}));
+			}
+			for (Future<Void> future : futures)
+				await(future);
+		} finally {
+			executor.shutdownNow();
+		}
+		System.out.printf("Downloaded %d bytes in %d ms. \n", contentLength, System.currentTimeMillis() - startTime);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+
+	/**
+	 * Receives the body of a range in chunks
+	 */
+	private interface ChunkConsumer {
+		/**
+		 * @param buffer
+		 * @param offset of the chunk from the start of the range
+		 * @throws IOException
+		 */
+		void accept(ByteBuffer buffer, long offset) throws IOException;
+	}
+
+	/**
+	 * Fetch one range, retrying if the connection fails part way
+	 */
+	private void fetchRange(AmazonS3 s3, String bucket, String key, String eTag, long rangeStart, long rangeEnd,
+			ChunkConsumer consumer) throws IOException {
+		long expectedBytes = rangeEnd - rangeStart + 1;
+		IOException lastError = null;
+		for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+			GetObjectRequest request = new GetObjectRequest(bucket, key).withRange(rangeStart, rangeEnd);
+			if (eTag != null)
+				request.withMatchingETagConstraint(eTag);
+			S3Object s3Object = s3.getObject(request);
+			if (s3Object == null)
+				throw new IOException("Object s3://" + bucket + "/" + key + " changed while it was downloaded");
+			long offset = 0;
+			try (S3ObjectInputStream input = s3Object.getObjectContent()) {
+				byte[] chunk = new byte[copyBufferBytes];
+				int read;
+				while (offset < expectedBytes && (read = input.read(chunk)) != -1) {
+					consumer.accept(ByteBuffer.wrap(chunk, 0, read), offset);
+					offset += read;
+				}
+				if (offset == expectedBytes)
+					return;
+				lastError = new IOException("Range " + rangeStart + "-" + rangeEnd + " ended after " + offset + " bytes");
+			} catch (IOException e) {
+				lastError = e;
+			}
+			System.out.printf("Attempt %d to download range %d-%d of s3://%s/%s failed: %s \n", attempt, rangeStart,
+					rangeEnd, bucket, key, lastError.getMessage());
+		}
+		throw lastError;
+	}
+
+	private static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while downloading", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Range download failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Reads the ranges of an object in order while the following ranges are fetched
+	 */
+	private class RangeInputStream extends InputStream {
+		private final AmazonS3 s3;
+		private final String bucket;
+		private final String key;
+		private final long contentLength;
+		private final String eTag;
+		private final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		private final Deque<Future<byte[]>> pendingRanges = new ArrayDeque<>();
+		private long nextRangeStart = 0;
+		private byte[] current = new byte[0];
+		private int position = 0;
+
+		private RangeInputStream(AmazonS3 s3, String bucket, String key, long contentLength, String eTag) {
+			this.s3 = s3;
+			this.bucket = bucket;
+			this.key = key;
+			this.contentLength = contentLength;
+			this.eTag = eTag;
+			for (int i = 0; i < parallelism; i++)
+				submitNextRange();
+		}
+
+		private void submitNextRange() {
+			if (nextRangeStart >= contentLength)
+				return;
+			long rangeStart = nextRangeStart;
+			long rangeEnd = Math.min(contentLength, rangeStart + rangeSizeBytes) - 1;
+			nextRangeStart = rangeEnd + 1;
+			pendingRanges.add(executor.submit(() -> {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) (rangeEnd - rangeStart + 1));
+				fetchRange(s3, bucket, key, eTag, rangeStart, rangeEnd, (buffer, offset) -> {
+					// A retried range starts again from its beginning
+					if (offset == 0)
+						bytes.reset();
+					bytes.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				});
+				return bytes.toByteArray();
+			}));
+		}
+
+		private boolean nextRange() throws IOException {
+			while (position >= current.length) {
+				Future<byte[]> future = pendingRanges.poll();
+				if (future == null)
+					return false;
+				current = await(future);
+				position = 0;
+				submitNextRange();
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!nextRange())
+				return -1;
+			return current[position++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!nextRange())
+				return -1;
+			int n = Math.min(len, current.length - position);
+			System.arraycopy(current, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public void close() {
+			for (Future<byte[]> future : pendingRanges)
+				future.cancel(true);
+			pendingRanges.clear();
+			executor.shutdownNow();
+		}
+	}
+}
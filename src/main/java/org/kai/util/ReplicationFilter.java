@@ -0,0 +1,255 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package org.kai.util;
+
+import com.amazonaws.services.glue.model.Table;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.regex.Pattern;
+
+/**
+ * This class decides which Databases and Tables are exported, by include and exclude rules.
+ *
+ * Rules are configured as 'action|scope|pattern', e.g.
+ * 'include|database|sales*,exclude|table|*_tmp_*,exclude|table|staging.*,exclude|parameter|temporary=true,exclude|type|VIRTUAL_VIEW'
+ *
+ * - Scopes: database and table match names. A table pattern with a '.' matches 'database.table', otherwise the table name.
+ *   parameter matches 'key=value' or 'key' against the table parameters, and type matches the table type.
+ * - Patterns are globs: '*' matches any characters and '?' one character. Matching ignores case.
+ * - A name passes a scope if the scope has no include rules or it matches one of them, and it matches none of
+ *   the scope's exclude rules. A Table passes if it passes every table scope.
+ *
+ * Rules are compiled once: exact names into a set, prefixes such as 'sales*' into a trie, and any other glob
+ * into a single regular expression per scope and action, so matching a name does not loop over the rules.
+ *
+ */
+public class ReplicationFilter {
+
+	public enum Scope {
+		Database,
+		Table,
+		Parameter,
+		Type
+	}
+
+	private final Map<Scope, NameMatcher> includes = new EnumMap<>(Scope.class);
+	private final Map<Scope, NameMatcher> excludes = new EnumMap<>(Scope.class);
+
+	/**
+	 * @param ruleList e.g. 'include|database|sales*,exclude|table|*_tmp_*'
+	 * @param listSeparator
+	 * @param separator
+	 */
+	public ReplicationFilter(String ruleList, String listSeparator, String separator) {
+		this(ruleList, listSeparator, separator, new ArrayList<>());
+	}
+
+	/**
+	 * @param ruleList e.g. 'include|database|sales*,exclude|table|*_tmp_*'
+	 * @param listSeparator
+	 * @param separator
+	 * @param databasePrefixes database prefixes to include, in addition to the include rules
+	 */
+	public ReplicationFilter(String ruleList, String listSeparator, String separator, List<String> databasePrefixes) {
+		Map<Scope, List<String>> includePatterns = new EnumMap<>(Scope.class);
+		Map<Scope, List<String>> excludePatterns = new EnumMap<>(Scope.class);
+		for (String prefix : databasePrefixes)
+			includePatterns.computeIfAbsent(Scope.Database, k -> new ArrayList<>()).add(prefix + "*");
+		StringTokenizer ruleTokenizer = new StringTokenizer(Optional.ofNullable(ruleList).orElse(""), listSeparator);
+		while (ruleTokenizer.hasMoreTokens()) {
+			String rule = ruleTokenizer.nextToken();
+			List<String> values = new ArrayList<>();
+			StringTokenizer tokenizer = new StringTokenizer(rule, separator);
+			while (tokenizer.hasMoreTokens())
+				values.add(tokenizer.nextToken().trim());
+			Scope scope = values.size() == 3 ? parseScope(values.get(1)) : null;
+			if (scope == null || !(values.get(0).equalsIgnoreCase("include") || values.get(0).equalsIgnoreCase("exclude"))) {
+				System.out.println("Error: Expected values in format include|exclude, database|table|parameter|type, pattern. Instead found: " + rule);
+				continue;
+			}
+			(values.get(0).equalsIgnoreCase("include") ? includePatterns : excludePatterns)
+					.computeIfAbsent(scope, k -> new ArrayList<>()).add(values.get(2));
+		}
+		includePatterns.forEach((scope, patterns) -> includes.put(scope, new NameMatcher(patterns, scope == Scope.Table)));
+		excludePatterns.forEach((scope, patterns) -> excludes.put(scope, new NameMatcher(patterns, scope == Scope.Table)));
+		System.out.println("Replication include rules: " + includePatterns + ", exclude rules: " + excludePatterns);
+	}
+
+	private static Scope parseScope(String value) {
+		for (Scope scope : Scope.values()) {
+			if (scope.toString().equalsIgnoreCase(value))
+				return scope;
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if any rule is configured
+	 */
+	public boolean hasRules() {
+		return !includes.isEmpty() || !excludes.isEmpty();
+	}
+
+	/**
+	 * @param databaseName
+	 * @return true if the Database is exported
+	 */
+	public boolean includesDatabase(String databaseName) {
+		return passes(Scope.Database, databaseName.toLowerCase());
+	}
+
+	/**
+	 * @param table
+	 * @return true if the Table is exported. Its Database is not checked.
+	 */
+	public boolean includesTable(Table table) {
+		if (includes.containsKey(Scope.Table) || excludes.containsKey(Scope.Table)) {
+			String tableName = table.getName().toLowerCase();
+			String qualifiedName = Optional.ofNullable(table.getDatabaseName()).orElse("").toLowerCase() + "." + tableName;
+			NameMatcher include = includes.get(Scope.Table);
+			NameMatcher exclude = excludes.get(Scope.Table);
+			if (include != null && !include.matches(tableName, qualifiedName))
+				return false;
+			if (exclude != null && exclude.matches(tableName, qualifiedName))
+				return false;
+		}
+		if (includes.containsKey(Scope.Type) || excludes.containsKey(Scope.Type)) {
+			if (!passes(Scope.Type, Optional.ofNullable(table.getTableType()).orElse("").toLowerCase()))
+				return false;
+		}
+		if (includes.containsKey(Scope.Parameter) || excludes.containsKey(Scope.Parameter)) {
+			// Each parameter can be matched by its key or by key=value
+			List<String> parameters = new ArrayList<>();
+			for (Map.Entry<String, String> parameter : Optional.ofNullable(table.getParameters()).orElse(new HashMap<>()).entrySet()) {
+				parameters.add(parameter.getKey().toLowerCase());
+				parameters.add((parameter.getKey() + "=" + parameter.getValue()).toLowerCase());
+			}
+			NameMatcher include = includes.get(Scope.Parameter);
+			NameMatcher exclude = excludes.get(Scope.Parameter);
+			if (include != null && parameters.stream().noneMatch(include::matches))
+				return false;
+			if (exclude != null && parameters.stream().anyMatch(exclude::matches))
+				return false;
+		}
+		return true;
+	}
+
+	private boolean passes(Scope scope, String name) {
+		NameMatcher include = includes.get(scope);
+		NameMatcher exclude = excludes.get(scope);
+		return (include == null || include.matches(name)) && (exclude == null || !exclude.matches(name));
+	}
+
+	/**
+	 * Matches lower case names against a set of globs
+	 */
+	private static class NameMatcher {
+		private final Set<String> exactNames = new HashSet<>();
+		private final TrieNode prefixes = new TrieNode();
+		private final Set<String> qualifiedExactNames = new HashSet<>();
+		private final TrieNode qualifiedPrefixes = new TrieNode();
+		private final Pattern pattern;
+		private final Pattern qualifiedPattern;
+
+		/**
+		 * @param globs
+		 * @param qualifiedNames true if globs with a '.' match qualified names, e.g. 'database.table'
+		 */
+		private NameMatcher(List<String> globs, boolean qualifiedNames) {
+			List<String> regexes = new ArrayList<>();
+			List<String> qualifiedRegexes = new ArrayList<>();
+			for (String glob : globs) {
+				String lowerCaseGlob = glob.toLowerCase();
+				boolean qualified = qualifiedNames && lowerCaseGlob.contains(".");
+				int firstWildcard = indexOfWildcard(lowerCaseGlob);
+				if (firstWildcard < 0)
+					(qualified ? qualifiedExactNames : exactNames).add(lowerCaseGlob);
+				else if (firstWildcard == lowerCaseGlob.length() - 1 && lowerCaseGlob.endsWith("*"))
+					(qualified ? qualifiedPrefixes : prefixes).add(lowerCaseGlob.substring(0, firstWildcard));
+				else
+					(qualified ? qualifiedRegexes : regexes).add(toRegex(lowerCaseGlob));
+			}
+			this.pattern = regexes.isEmpty() ? null : Pattern.compile(String.join("|", regexes));
+			this.qualifiedPattern = qualifiedRegexes.isEmpty() ? null : Pattern.compile(String.join("|", qualifiedRegexes));
+		}
+
+		private boolean matches(String name) {
+			return exactNames.contains(name) || prefixes.matchesPrefixOf(name)
+					|| (pattern != null && pattern.matcher(name).matches());
+		}
+
+		/**
+		 * @param name matched by globs without a '.'
+		 * @param qualifiedName matched by globs with a '.'
+		 */
+		private boolean matches(String name, String qualifiedName) {
+			return matches(name) || qualifiedExactNames.contains(qualifiedName) || qualifiedPrefixes.matchesPrefixOf(qualifiedName)
+					|| (qualifiedPattern != null && qualifiedPattern.matcher(qualifiedName).matches());
+		}
+
+		private static int indexOfWildcard(String glob) {
+			int star = glob.indexOf('*');
+			int question = glob.indexOf('?');
+			return star < 0 ? question : question < 0 ? star : Math.min(star, question);
+		}
+
+		private static String toRegex(String glob) {
+			StringBuilder regex = new StringBuilder("(?:");
+			StringBuilder literal = new StringBuilder();
+			for (char c : glob.toCharArray()) {
+				if (c == '*' || c == '?') {
+					if (literal.length() > 0)
+						regex.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+					regex.append(c == '*' ? ".*" : ".");
+				} else {
+					literal.append(c);
+				}
+			}
+			if (literal.length() > 0)
+				regex.append(Pattern.quote(literal.toString()));
+			return regex.append(")").toString();
+		}
+	}
+
+	/**
+	 * A character trie of prefixes
+	 */
+	private static class TrieNode {
+		private final Map<Character, TrieNode> children = new HashMap<>();
+		private boolean terminal;
+
+		private void add(String prefix) {
+			TrieNode node = this;
+			for (char c : prefix.toCharArray())
+				node = node.children.computeIfAbsent(c, k -> new TrieNode());
+			node.terminal = true;
+		}
+
+		/**
+		 * @param name
+		 * @return true if a prefix in the trie is a prefix of the name
+		 */
+		private boolean matchesPrefixOf(String name) {
+			TrieNode node = this;
+			for (int i = 0; ; i++) {
+				if (node.terminal)
+					return true;
+				if (i == name.length())
+					return false;
+				node = node.children.get(name.charAt(i));
+				if (node == null)
+					return false;
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package org.kai.util;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class measures the replication lag of the Tables imported in an invocation, per Database and stage:
+ *
+ * - Export: source change to export
+ * - Publish: export to publish to SNS
+ * - Delivery: publish to SNS to arrival in the SQS queue of the target region
+ * - Queue: arrival in SQS to receipt by the import function
+ * - Apply: receipt to the Table being applied
+ * - EndToEnd: source change to the Table being applied
+ *
+ * publish() writes the samples as CloudWatch metrics in embedded metric format, with the Database as dimension,
+ * so CloudWatch can give p50 / p99 / max per Database, and logs the p50 / p99 / max of this invocation.
+ * Timestamps come from clocks in two regions, so negative stage times from clock skew are counted as 0.
+ *
+ */
+public class ReplicationLagTracker {
+
+	/**
+	 * Stages of replication, named as the metrics
+	 */
+	public enum Stage {
+		ExportLag,
+		PublishLag,
+		DeliveryLag,
+		QueueLag,
+		ApplyLag,
+		EndToEndLag
+	}
+
+	// Embedded metric format allows at most 100 values per metric in one record
+	final private int maxValuesPerRecord = 100;
+	private final String namespace;
+	private final Map<String, Map<Stage, List<Long>>> samples = new TreeMap<>();
+
+	/**
+	 * @param namespace CloudWatch namespace of the metrics. Null or empty only logs the lag.
+	 */
+	public ReplicationLagTracker(String namespace) {
+		this.namespace = namespace;
+	}
+
+	/**
+	 * Record the lag of one imported Table
+	 * @param tbi
+	 * @param sentTimestamp time the message arrived in SQS, 0 if unknown
+	 * @param receiveTimestamp time the message was first received from SQS, 0 if unknown
+	 * @param appliedTime
+	 * @param sourceChanged false if the import changed nothing in the target, so there was no change to measure from
+	 * @param continuation true if the message is a continuation, whose SQS timestamps are those of the re-enqueue
+	 */
+	public void recordTableImport(TableInfo tbi, long sentTimestamp, long receiveTimestamp, long appliedTime,
+			boolean sourceChanged, boolean continuation) {
+		String database = tbi.getTable().getDatabaseName();
+		if (sourceChanged && tbi.getSourceChangeTime() > 0) {
+			record(database, Stage.EndToEndLag, appliedTime - tbi.getSourceChangeTime());
+			if (tbi.getExportTime() > 0)
+				record(database, Stage.ExportLag, tbi.getExportTime() - tbi.getSourceChangeTime());
+		}
+		if (tbi.getExportTime() > 0 && tbi.getPublishTime() > 0)
+			record(database, Stage.PublishLag, tbi.getPublishTime() - tbi.getExportTime());
+		if (continuation)
+			return;
+		if (tbi.getPublishTime() > 0 && sentTimestamp > 0)
+			record(database, Stage.DeliveryLag, sentTimestamp - tbi.getPublishTime());
+		if (sentTimestamp > 0 && receiveTimestamp > 0)
+			record(database, Stage.QueueLag, receiveTimestamp - sentTimestamp);
+		if (receiveTimestamp > 0)
+			record(database, Stage.ApplyLag, appliedTime - receiveTimestamp);
+	}
+
+	public synchronized void record(String database, Stage stage, long millis) {
+		samples.computeIfAbsent(database, k -> new EnumMap<>(Stage.class))
+				.computeIfAbsent(stage, k -> new ArrayList<>()).add(Math.max(0, millis));
+	}
+
+	/**
+	 * Write the recorded samples as metrics and log their percentiles, then clear them
+	 */
+	public synchronized void publish() {
+		for (Map.Entry<String, Map<Stage, List<Long>>> entry : samples.entrySet()) {
+			String database = entry.getKey();
+			for (Map.Entry<Stage, List<Long>> stageSamples : entry.getValue().entrySet()) {
+				List<Long> values = stageSamples.getValue();
+				Collections.sort(values);
+				System.out.printf("Replication lag of database '%s', %s: count %d, p50 %d ms, p99 %d ms, max %d ms. \n", database,
+						stageSamples.getKey(), values.size(), percentile(values, 50), percentile(values, 99), values.get(values.size() - 1));
+			}
+			if (namespace != null && !namespace.isEmpty())
+				printMetrics(database, entry.getValue());
+		}
+		samples.clear();
+	}
+
+	/**
+	 * Print embedded metric format records, which CloudWatch Logs turns into metrics
+	 */
+	private void printMetrics(String database, Map<Stage, List<Long>> stages) {
+		int numberOfRecords = 0;
+		for (List<Long> values : stages.values())
+			numberOfRecords = Math.max(numberOfRecords, (values.size() + maxValuesPerRecord - 1) / maxValuesPerRecord);
+		for (int r = 0; r < numberOfRecords; r++) {
+			JsonArray metrics = new JsonArray();
+			JsonObject record = new JsonObject();
+			for (Map.Entry<Stage, List<Long>> stageSamples : stages.entrySet()) {
+				List<Long> values = stageSamples.getValue();
+				int from = r * maxValuesPerRecord;
+				if (from >= values.size())
+					continue;
+				JsonArray valueArray = new JsonArray();
+				for (Long value : values.subList(from, Math.min(values.size(), from + maxValuesPerRecord)))
+					valueArray.add(value);
+				JsonObject metric = new JsonObject();
+				metric.addProperty("Name", stageSamples.getKey().toString());
+				metric.addProperty("Unit", "Milliseconds");
+				metrics.add(metric);
+				record.add(stageSamples.getKey().toString(), valueArray);
+			}
+			JsonArray dimensionSet = new JsonArray();
+			dimensionSet.add("Database");
+			JsonArray dimensions = new JsonArray();
+			dimensions.add(dimensionSet);
+			JsonObject directive = new JsonObject();
+			directive.addProperty("Namespace", namespace);
+			directive.add("Dimensions", dimensions);
+			directive.add("Metrics", metrics);
+			JsonArray directives = new JsonArray();
+			directives.add(directive);
+			JsonObject aws = new JsonObject();
+			aws.addProperty("Timestamp", System.currentTimeMillis());
+			aws.add("CloudWatchMetrics", directives);
+			record.add("_aws", aws);
+			record.addProperty("Database", database);
+			System.out.println(record.toString());
+		}
+	}
+
+	/**
+	 * Nearest-rank percentile of sorted values
+	 * @param sortedValues
+	 * @param percentile
+	 * @return
+	 */
+	public static long percentile(List<Long> sortedValues, int percentile) {
+		if (sortedValues.isEmpty())
+			return 0;
+		int rank = (int) Math.ceil(percentile / 100.0 * sortedValues.size());
+		return sortedValues.get(Math.max(0, rank - 1));
+	}
+}
@@ -0,0 +1,200 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package org.kai.util;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class buffers replication status items during an invocation and writes them to DynamoDB
+ * with BatchWriteItem instead of one PutItem per Table or Database.
+ *
+ * - Items are flushed when the buffer reaches flushThreshold items, and when the writer is closed
+ * - A flush sends batches of 25 items concurrently. Unprocessed items are retried with exponential backoff.
+ * - An item tracked twice before a flush is written once, with its latest values
+ * - An empty DynamoDB table name disables tracking, so callers do not need to check it
+ *
+ */
+public class ReplicationStatusWriter implements AutoCloseable {
+
+	private final DDBUtil ddbUtil = new DDBUtil();
+	private final int flushThreshold;
+	private final int parallelism;
+	// Items by DynamoDB table name, then by primary key
+	private final Map<String, Map<String, WriteRequest>> bufferedItems = new LinkedHashMap<>();
+	private int numberOfBufferedItems = 0;
+	private int numberOfItemsNotWritten = 0;
+
+	/**
+	 * @param flushThreshold number of buffered items that triggers a flush
+	 * @param parallelism number of batches written at once
+	 */
+	public ReplicationStatusWriter(int flushThreshold, int parallelism) {
+		this.flushThreshold = Math.max(1, flushThreshold);
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Buffer the status of an imported Table
+	 * @param tableStatus
+	 * @param sourceGlueCatalogId
+	 * @param targetGlueCatalogId
+	 * @param importRunId
+	 * @param exportBatchId
+	 * @param ddbTblName
+	 */
+	public void trackTableImportStatus(TableReplicationStatus tableStatus, String sourceGlueCatalogId,
+			String targetGlueCatalogId, long importRunId, String exportBatchId, String ddbTblName) {
+		Item item = ddbUtil.createTableImportStatusItem(tableStatus, sourceGlueCatalogId, targetGlueCatalogId, importRunId,
+				exportBatchId);
+		add(ddbTblName, item.getString("table_id") + "|" + importRunId, item);
+	}
+
+	/**
+	 * Buffer the status of an imported Database
+	 * @param sourceGlueCatalogId
+	 * @param targetGlueCatalogId
+	 * @param ddbTblName
+	 * @param databaseName
+	 * @param importRunId
+	 * @param exportBatchId
+	 * @param isCreated
+	 */
+	public void trackDatabaseImportStatus(String sourceGlueCatalogId, String targetGlueCatalogId, String ddbTblName,
+			String databaseName, long importRunId, String exportBatchId, boolean isCreated) {
+		add(ddbTblName, databaseName + "|" + importRunId, ddbUtil.createDatabaseImportStatusItem(sourceGlueCatalogId,
+				targetGlueCatalogId, databaseName, importRunId, exportBatchId, isCreated));
+	}
+
+	/**
+	 * Buffer the status of an exported Table
+	 * @param ddbTblName
+	 * @param glueDBName
+	 * @param glueTableName
+	 * @param glueTableSchema
+	 * @param snsMsgId
+	 * @param glueCatalogId
+	 * @param exportRunId
+	 * @param exportBatchId
+	 * @param isExported
+	 * @param isLargeTable
+	 * @param bucketName
+	 * @param objectKey
+	 */
+	public void trackTableExportStatus(String ddbTblName, String glueDBName, String glueTableName, String glueTableSchema,
+			String snsMsgId, String glueCatalogId, long exportRunId, String exportBatchId, boolean isExported,
+			boolean isLargeTable, String bucketName, String objectKey) {
+		Item item = ddbUtil.createTableExportStatusItem(glueDBName, glueTableName, glueTableSchema, snsMsgId, glueCatalogId,
+				exportRunId, exportBatchId, isExported, isLargeTable, bucketName, objectKey);
+		add(ddbTblName, item.getString("table_id") + "|" + exportRunId, item);
+	}
+
+	/**
+	 * Buffer the status of an exported Database
+	 * @param ddbTblName
+	 * @param glueDBName
+	 * @param glueDBSchema
+	 * @param snsMsgId
+	 * @param glueCatalogId
+	 * @param exportRunId
+	 * @param exportBatchId
+	 * @param isExported
+	 */
+	public void trackDatabaseExportStatus(String ddbTblName, String glueDBName, String glueDBSchema, String snsMsgId,
+			String glueCatalogId, long exportRunId, String exportBatchId, boolean isExported) {
+		add(ddbTblName, glueDBName + "|" + exportRunId, ddbUtil.createDatabaseExportStatusItem(glueDBName, glueDBSchema,
+				snsMsgId, glueCatalogId, exportRunId, exportBatchId, isExported));
+	}
+
+	private synchronized void add(String ddbTblName, String itemKey, Item item) {
+		if (ddbTblName == null || ddbTblName.isEmpty())
+			return;
+		WriteRequest writeRequest = new WriteRequest().withPutRequest(new PutRequest().withItem(ItemUtils.toAttributeValues(item)));
+		if (bufferedItems.computeIfAbsent(ddbTblName, k -> new LinkedHashMap<>()).put(itemKey, writeRequest) == null)
+			numberOfBufferedItems++;
+		if (numberOfBufferedItems >= flushThreshold)
+			flush();
+	}
+
+	/**
+	 * Write all buffered items
+	 * @return number of items that could not be written in this flush
+	 */
+	public synchronized int flush() {
+		if (numberOfBufferedItems == 0)
+			return 0;
+		long startTime = System.currentTimeMillis();
+		List<String> tableNames = new ArrayList<>();
+		List<List<WriteRequest>> batches = new ArrayList<>();
+		for (Map.Entry<String, Map<String, WriteRequest>> entry : bufferedItems.entrySet()) {
+			for (List<WriteRequest> batch : Lists.partition(new ArrayList<>(entry.getValue().values()), DDBUtil.MAX_BATCH_WRITE_ITEMS)) {
+				tableNames.add(entry.getKey());
+				batches.add(batch);
+			}
+		}
+		int numberOfItems = numberOfBufferedItems;
+		bufferedItems.clear();
+		numberOfBufferedItems = 0;
+
+		int notWritten = 0;
+		if (batches.size() == 1 || parallelism == 1) {
+			for (int i = 0; i < batches.size(); i++)
+				notWritten += ddbUtil.batchWriteItems(tableNames.get(i), batches.get(i));
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, batches.size()));
+			try {
+				List<Future<Integer>> futures = new ArrayList<>();
+				for (int i = 0; i < batches.size(); i++) {
+					String tableName = tableNames.get(i);
+					List<WriteRequest> batch = batches.get(i);
+					futures.add(executor.submit(() -> ddbUtil.batchWriteItems(tableName, batch)));
+				}
+				for (int i = 0; i < futures.size(); i++) {
+					try {
+						notWritten += futures.get(i).get();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						notWritten += batches.get(i).size();
+					} catch (ExecutionException e) {
+						e.printStackTrace();
+						notWritten += batches.get(i).size();
+					}
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+		numberOfItemsNotWritten += notWritten;
+		System.out.printf("Flushed %d replication status items in %d batches in %d ms. Items not written: %d \n", numberOfItems,
+				batches.size(), System.currentTimeMillis() - startTime, notWritten);
+		return notWritten;
+	}
+
+	/**
+	 * @return number of items that could not be written since the writer was created
+	 */
+	public synchronized int getNumberOfItemsNotWritten() {
+		return numberOfItemsNotWritten;
+	}
+
+	/**
+	 * Flush the items still buffered
+	 */
+	@Override
+	public void close() {
+		flush();
+	}
+}
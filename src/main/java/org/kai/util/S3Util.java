@@ -189,6 +189,47 @@ public class S3Util {
 		System.out.println();
 	}
 	
+	/**
+	 * Read an object from S3 as a UTF-8 String.
+	 * @param region
+	 * @param bucket
+	 * @param key
+	 * @return the object content, or null if the object does not exist
+	 */
+	public String getObjectAsString(String region, String bucket, String key) {
+		AmazonS3 s3 = AmazonS3ClientBuilder.standard().withRegion(region).build();
+		String content = null;
+		try {
+			if (s3.doesObjectExist(bucket, key))
+				content = s3.getObjectAsString(bucket, key);
+		} catch (AmazonServiceException e) {
+			System.err.println(e.getErrorMessage());
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return content;
+	}
+
+	/**
+	 * Check if an object exists in S3.
+	 * @param region
+	 * @param bucket
+	 * @param key
+	 * @return
+	 */
+	public boolean objectExists(String region, String bucket, String key) {
+		AmazonS3 s3 = AmazonS3ClientBuilder.standard().withRegion(region).build();
+		boolean exists = false;
+		try {
+			exists = s3.doesObjectExist(bucket, key);
+		} catch (AmazonServiceException e) {
+			System.err.println(e.getErrorMessage());
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return exists;
+	}
+
 	public List<Partition> getPartitionsFromS3(String region, String bucket, String key) {
 
 		String contentType = "";
@@ -12,10 +12,13 @@ import com.amazonaws.services.sns.model.PublishResult;
 import com.google.gson.Gson;
 import org.kai.util.Constants.AttributeValue;
 import org.kai.util.Constants.MessageType;
+import org.kai.util.Constants.Priority;
 
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -59,13 +62,13 @@ public class SNSUtil {
 	 * @param sns
 	 * @param masterDBList
 	 * @param snsTopicArn
-	 * @param ddbUtil
+	 * @param statusWriter buffers the export statuses. The caller closes it to write them.
 	 * @param ddbTblName
 	 * @param sourceGlueCatalogId
 	 * @return
 	 */
 	public int publishDatabaseSchemasToSNS(AmazonSNS sns, List<Database> masterDBList, String snsTopicArn,
-                                           DDBUtil ddbUtil, String ddbTblName, String sourceGlueCatalogId) {
+                                           ReplicationStatusWriter statusWriter, String ddbTblName, String sourceGlueCatalogId) {
 		long exportRunId = System.currentTimeMillis();
 		String exportBatchId = Long.toString(exportRunId);
 		AtomicInteger numberOfDatabasesExported = new AtomicInteger();
@@ -90,14 +93,14 @@ public class SNSUtil {
 				numberOfDatabasesExported.getAndIncrement();
 				System.out.printf("Schema for Database '%s' published to SNS Topic. Message_Id: %s. \n",
 						db.getName(), publishResponse.getMessageId());
-				ddbUtil.trackDatabaseExportStatus(ddbTblName, db.getName(), databaseDDL, publishResponse.getMessageId(),
+				statusWriter.trackDatabaseExportStatus(ddbTblName, db.getName(), databaseDDL, publishResponse.getMessageId(),
 						sourceGlueCatalogId, exportRunId, exportBatchId, true);
 			} catch (Exception e) {
 				e.printStackTrace();
 				System.out.printf(
 						"Schema for Database '%s' could not be published to SNS Topic. It will be audited in DynamoDB table. \n",
 						db.getName());
-				ddbUtil.trackDatabaseExportStatus(ddbTblName, db.getName(), databaseDDL, "", sourceGlueCatalogId,
+				statusWriter.trackDatabaseExportStatus(ddbTblName, db.getName(), databaseDDL, "", sourceGlueCatalogId,
 						exportRunId, exportBatchId, false);
 			}
 		}
@@ -142,15 +145,67 @@ public class SNSUtil {
 	 * @return
 	 */
 	public PublishResult publishTableInfoToSNS(AmazonSNS sns, String topicArn, TableInfo tbi, String sourceGlueCatalogId, String exportBatchId) {
+		return publishTableInfoToSNS(sns, topicArn, tbi, sourceGlueCatalogId, exportBatchId, 0);
+	}
+
+	/**
+	 * This method publishes Table Schema (DDL) to SNS Topic. Payloads larger than the compression
+	 * threshold are gzip compressed and base64 encoded if that makes them smaller, and flagged with
+	 * the ContentEncoding message attribute.
+	 *
+	 * @param sns
+	 * @param topicArn
+	 * @param tbi
+	 * @param sourceGlueCatalogId
+	 * @param exportBatchId
+	 * @param compressionThresholdBytes 0 disables compression
+	 * @return
+	 */
+	public PublishResult publishTableInfoToSNS(AmazonSNS sns, String topicArn, TableInfo tbi, String sourceGlueCatalogId, String exportBatchId,
+											   int compressionThresholdBytes) {
+		return publishTableInfoToSNS(sns, topicArn, tbi, sourceGlueCatalogId, exportBatchId, compressionThresholdBytes, null);
+	}
+
+	/**
+	 * This method publishes Table Schema (DDL) to SNS Topic with the priority lane of its Database.
+	 * Target regions subscribe a queue per lane with a filter policy on the Priority message attribute.
+	 *
+	 * @param sns
+	 * @param topicArn
+	 * @param tbi
+	 * @param sourceGlueCatalogId
+	 * @param exportBatchId
+	 * @param compressionThresholdBytes 0 disables compression
+	 * @param priority null publishes the message without a Priority
+	 * @return
+	 */
+	public PublishResult publishTableInfoToSNS(AmazonSNS sns, String topicArn, TableInfo tbi, String sourceGlueCatalogId, String exportBatchId,
+											   int compressionThresholdBytes, Priority priority) {
 		PublishResult publishResponse = null;
 		Gson gson = new Gson();
 		Table table = tbi.getTable();
+		tbi.setPublishTime(System.currentTimeMillis());
 		String tableDDL = gson.toJson(tbi);
-		PublishRequest publishRequest = new PublishRequest(topicArn, tableDDL);
+		String message = tableDDL;
+		boolean compressed = false;
+		int tableDDLBytes = tableDDL.getBytes(StandardCharsets.UTF_8).length;
+		if (compressionThresholdBytes > 0 && tableDDLBytes > compressionThresholdBytes) {
+			String encoded = new CompressionUtil().compress(tableDDL);
+			if (encoded.length() < tableDDLBytes) {
+				message = encoded;
+				compressed = true;
+				System.out.printf("Table schema compressed from %d to %d bytes. \n", tableDDLBytes, encoded.length());
+			}
+		}
+		PublishRequest publishRequest = new PublishRequest(topicArn, message);
 		Map<String, MessageAttributeValue> messageAttributes = new HashMap<String, MessageAttributeValue>();
 		messageAttributes.put(AttributeValue.ExportBatchId, createStringAttribute(exportBatchId));
 		messageAttributes.put(AttributeValue.SourceGlueDataCatalogId, createStringAttribute(sourceGlueCatalogId));
 		messageAttributes.put(AttributeValue.MessageType, createStringAttribute(MessageType.TableInfo.toString()));
+		if (compressed)
+			messageAttributes.put(AttributeValue.ContentEncoding, createStringAttribute(CompressionUtil.GZIP_BASE64));
+		if (Optional.ofNullable(priority).isPresent())
+			messageAttributes.put(AttributeValue.Priority, createStringAttribute(priority.toString()));
 		publishRequest.setMessageAttributes(messageAttributes);
 		try {
 			publishResponse = sns.publish(publishRequest);
@@ -165,6 +220,36 @@ public class SNSUtil {
 		return publishResponse;
 	}
 
+	/**
+	 * This method publishes the counts of Databases and Tables enqueued for an export batch to SNS Topic,
+	 * so each target region can tell when it has applied the whole batch.
+	 *
+	 * @param sns
+	 * @param topicArn
+	 * @param progress
+	 * @param sourceGlueCatalogId
+	 * @return
+	 */
+	public PublishResult publishExportBatchProgressToSNS(AmazonSNS sns, String topicArn, ExportBatchProgress progress,
+			String sourceGlueCatalogId) {
+		PublishResult publishResponse = null;
+		PublishRequest publishRequest = new PublishRequest(topicArn, new Gson().toJson(progress));
+		Map<String, MessageAttributeValue> messageAttributes = new HashMap<String, MessageAttributeValue>();
+		messageAttributes.put(AttributeValue.ExportBatchId, createStringAttribute(progress.getExportBatchId()));
+		messageAttributes.put(AttributeValue.SourceGlueDataCatalogId, createStringAttribute(sourceGlueCatalogId));
+		messageAttributes.put(AttributeValue.MessageType, createStringAttribute(MessageType.ExportBatchProgress.toString()));
+		publishRequest.setMessageAttributes(messageAttributes);
+		try {
+			publishResponse = sns.publish(publishRequest);
+			System.out.printf("Progress of export batch %s published to SNS Topic: %d databases enqueued, %d databases exported, %d tables enqueued. \n",
+					progress.getExportBatchId(), progress.getDatabasesEnqueued(), progress.getDatabasesExported(), progress.getTablesEnqueued());
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.out.println("Progress of export batch " + progress.getExportBatchId() + " could not be published to SNS Topic.");
+		}
+		return publishResponse;
+	}
+
 	/**
 	 * This method creates MessageAttributeValue using a String value
 	 * 
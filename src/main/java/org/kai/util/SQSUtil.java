@@ -5,20 +5,31 @@ package org.kai.util;
 
 import com.amazonaws.services.glue.model.Database;
 import com.amazonaws.services.glue.model.Table;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
 import com.amazonaws.services.sqs.model.MessageAttributeValue;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
 import com.amazonaws.services.sqs.model.SendMessageResult;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 import org.kai.util.Constants.AttributeValue;
 import org.kai.util.Constants.MessageType;
+import org.kai.util.Constants.Priority;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
 public class SQSUtil {
 
+	// Continuation messages larger than this are compressed to stay below the SQS message size limit
+	final private int continuationCompressionThreshold = 64 * 1024;
+	// SQS delays messages by at most 15 minutes
+	public static final int MAX_DELAY_SECONDS = 900;
 
 	public void sendTableSchemaToDeadLetterQueue(AmazonSQS sqs, String queueUrl, TableReplicationStatus tableStatus,
 			String exportBatchId, String sourceGlueCatalogId) {
@@ -85,9 +96,24 @@ public class SQSUtil {
 	 */
 
 	public void publishDatabasesToSQS(AmazonSQS sqs, String queueUrl, List<Database> masterDBList, String sourceGlueCatalogId) {
+		publishDatabasesToSQS(sqs, queueUrl, masterDBList, sourceGlueCatalogId, Long.toString(System.currentTimeMillis()));
+	}
 
-		int statusCode = 400;
-		MessageAttributeValue exportBatchIdAV =  createStringAttribute(Long.toString(System.currentTimeMillis()));
+	/**
+	 * This method publishes all Database Schemas (DDL) to SQS with a given ExportBatchId
+	 *
+	 * @param sqs
+	 * @param queueUrl
+	 * @param masterDBList
+	 * @param sourceGlueCatalogId
+	 * @param exportBatchId
+	 * @return number of Databases sent
+	 */
+	public int publishDatabasesToSQS(AmazonSQS sqs, String queueUrl, List<Database> masterDBList, String sourceGlueCatalogId,
+			String exportBatchId) {
+
+		int numberOfDatabasesSent = 0;
+		MessageAttributeValue exportBatchIdAV =  createStringAttribute(exportBatchId);
 		MessageAttributeValue sourceGlueCatalogIdAV = createStringAttribute(sourceGlueCatalogId);
 		MessageAttributeValue messageTypeAV = createStringAttribute(MessageType.Database.toString());
 		Gson gson = new Gson();
@@ -101,6 +127,7 @@ public class SQSUtil {
 
 			SendMessageRequest req = new SendMessageRequest().withQueueUrl(queueUrl)
 					.withMessageBody(databaseDDL).withMessageAttributes(messageAttributes);
+			int statusCode = 400;
 			try {
 				SendMessageResult sendMsgRes = sqs.sendMessage(req);
 				statusCode = sendMsgRes.getSdkHttpMetadata().getHttpStatusCode();
@@ -108,9 +135,12 @@ public class SQSUtil {
 				e.printStackTrace();
 				System.out.println("Exception thrown while writing message to SQS. " + e.getLocalizedMessage());
 			}
-			if (statusCode == 200)
+			if (statusCode == 200) {
+				numberOfDatabasesSent++;
 				System.out.printf("Database '%s' sent to SQS. \n", databaseDDL);
+			}
 		}
+		return numberOfDatabasesSent;
 	}
 
 	/**
@@ -120,11 +150,27 @@ public class SQSUtil {
 	 * @param queueUrl
 	 * @param masterTableList
 	 * @param sourceGlueCatalogId
-	 * @return
+	 * @return number of Tables sent
 	 */
-	public void publishTablestoSQS(AmazonSQS sqs, String queueUrl, List<Table> masterTableList, String sourceGlueCatalogId, String exportBatchId ) {
+	public int publishTablestoSQS(AmazonSQS sqs, String queueUrl, Iterable<Table> masterTableList, String sourceGlueCatalogId, String exportBatchId ) {
+		return publishTablestoSQS(sqs, queueUrl, masterTableList, sourceGlueCatalogId, exportBatchId, null);
+	}
 
-		int statusCode = 400;
+	/**
+	 * This method publishes all Tables Schemas (DDL) to the SQS queue of a priority lane
+	 *
+	 * @param sqs
+	 * @param queueUrl
+	 * @param masterTableList
+	 * @param sourceGlueCatalogId
+	 * @param exportBatchId
+	 * @param priority null sends the messages without a Priority
+	 * @return number of Tables sent
+	 */
+	public int publishTablestoSQS(AmazonSQS sqs, String queueUrl, Iterable<Table> masterTableList, String sourceGlueCatalogId, String exportBatchId,
+			Priority priority) {
+
+		int numberOfTablesSent = 0;
 		MessageAttributeValue exportBatchIdAV =  createStringAttribute(exportBatchId);
 		MessageAttributeValue sourceGlueCatalogIdAV = createStringAttribute(sourceGlueCatalogId);
 		MessageAttributeValue schemaTypeAV = createStringAttribute(MessageType.Table.toString());
@@ -136,9 +182,12 @@ public class SQSUtil {
 			messageAttributes.put(AttributeValue.ExportBatchId, exportBatchIdAV);
 			messageAttributes.put(AttributeValue.SourceGlueDataCatalogId, sourceGlueCatalogIdAV);
 			messageAttributes.put(AttributeValue.MessageType, schemaTypeAV);
+			if (Optional.ofNullable(priority).isPresent())
+				messageAttributes.put(AttributeValue.Priority, createStringAttribute(priority.toString()));
 
 			SendMessageRequest req = new SendMessageRequest().withQueueUrl(queueUrl)
 					.withMessageBody(tableDDL).withMessageAttributes(messageAttributes);
+			int statusCode = 400;
 			try {
 				SendMessageResult sendMsgRes = sqs.sendMessage(req);
 				statusCode = sendMsgRes.getSdkHttpMetadata().getHttpStatusCode();
@@ -146,10 +195,126 @@ public class SQSUtil {
 				e.printStackTrace();
 				System.out.println("Exception thrown while writing message to SQS. " + e.getLocalizedMessage());
 			}
-			if (statusCode == 200)
+			if (statusCode == 200) {
+				numberOfTablesSent++;
 				System.out.printf("Table '%s' sent to SQS. \n", tableDDL);
+			}
+		}
+		return numberOfTablesSent;
+	}
+
+	/**
+	 * This method re-enqueues a TableInfo whose import did not finish in time. The message is wrapped in
+	 * the same envelope SNS delivers to SQS, so the import reads it like any other message.
+	 *
+	 * @param sqs
+	 * @param queueUrl
+	 * @param tableInfo TableInfo JSON as received from SNS
+	 * @param sourceGlueCatalogId
+	 * @param exportBatchId
+	 * @param continuationCount
+	 * @return true if the message was sent
+	 */
+	public boolean sendTableInfoContinuation(AmazonSQS sqs, String queueUrl, String tableInfo, String sourceGlueCatalogId,
+			String exportBatchId, int continuationCount) {
+		return sendTableInfo(sqs, queueUrl, tableInfo, sourceGlueCatalogId, exportBatchId, continuationCount, 0, 0);
+	}
+
+	/**
+	 * This method enqueues a TableInfo in the envelope SNS delivers to SQS, to continue, retry or park its import
+	 *
+	 * @param sqs
+	 * @param queueUrl
+	 * @param tableInfo TableInfo JSON
+	 * @param sourceGlueCatalogId
+	 * @param exportBatchId
+	 * @param continuationCount
+	 * @param retryCount
+	 * @param delaySeconds 0 to 900
+	 * @return true if the message was sent
+	 */
+	public boolean sendTableInfo(AmazonSQS sqs, String queueUrl, String tableInfo, String sourceGlueCatalogId,
+			String exportBatchId, int continuationCount, int retryCount, int delaySeconds) {
+		String message = tableInfo;
+		JsonObject messageAttributes = new JsonObject();
+		messageAttributes.add(AttributeValue.ExportBatchId, createEnvelopeAttribute(exportBatchId));
+		messageAttributes.add(AttributeValue.SourceGlueDataCatalogId, createEnvelopeAttribute(sourceGlueCatalogId));
+		messageAttributes.add(AttributeValue.MessageType, createEnvelopeAttribute(MessageType.TableInfo.toString()));
+		messageAttributes.add(AttributeValue.ContinuationCount, createEnvelopeAttribute(String.valueOf(continuationCount)));
+		if (retryCount > 0)
+			messageAttributes.add(AttributeValue.RetryCount, createEnvelopeAttribute(String.valueOf(retryCount)));
+		if (tableInfo.length() > continuationCompressionThreshold) {
+			message = new CompressionUtil().compress(tableInfo);
+			messageAttributes.add(AttributeValue.ContentEncoding, createEnvelopeAttribute(CompressionUtil.GZIP_BASE64));
+		}
+		JsonObject envelope = new JsonObject();
+		envelope.addProperty(AttributeValue.SnsMessageType, "Notification");
+		envelope.addProperty("Message", message);
+		envelope.add("MessageAttributes", messageAttributes);
+
+		SendMessageRequest req = new SendMessageRequest().withQueueUrl(queueUrl).withMessageBody(envelope.toString());
+		if (delaySeconds > 0)
+			req.setDelaySeconds(Math.min(MAX_DELAY_SECONDS, delaySeconds));
+		try {
+			sqs.sendMessage(req);
+			System.out.printf("Table of export batch %s sent to SQS. Continuation %d, retry %d, delay %d seconds. \n", exportBatchId,
+					continuationCount, retryCount, delaySeconds);
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.out.println("Exception thrown while writing message to SQS. " + e.getLocalizedMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * This method returns messages of an SQS Event to their queue, to be received again after a delay.
+	 * The messages must be reported as batchItemFailures, so Lambda does not delete them.
+	 *
+	 * @param sqs
+	 * @param queueUrl queue the messages were received from
+	 * @param messages
+	 * @param delaySeconds
+	 * @return ids of the messages
+	 */
+	public List<String> deferMessages(AmazonSQS sqs, String queueUrl, List<SQSEvent.SQSMessage> messages, int delaySeconds) {
+		List<String> messageIds = new ArrayList<>();
+		for (SQSEvent.SQSMessage msg : messages) {
+			try {
+				sqs.changeMessageVisibility(new ChangeMessageVisibilityRequest(queueUrl, msg.getReceiptHandle(), delaySeconds));
+			} catch (Exception e) {
+				// The message is received again when its visibility timeout expires
+				System.out.println("Could not change the visibility of message " + msg.getMessageId() + ": " + e.getMessage());
+			}
+			messageIds.add(msg.getMessageId());
 		}
-	}	/**
+		if (!messageIds.isEmpty())
+			System.out.printf("%d messages returned to SQS for %d seconds. \n", messageIds.size(), delaySeconds);
+		return messageIds;
+	}
+
+	/**
+	 * This method creates the response of a Lambda function with ReportBatchItemFailures.
+	 * Lambda deletes all messages of the SQS Event except the failed ones.
+	 *
+	 * @param failedMessageIds
+	 * @return
+	 */
+	public Map<String, Object> createBatchResponse(List<String> failedMessageIds) {
+		List<Map<String, String>> batchItemFailures = new ArrayList<>();
+		for (String messageId : failedMessageIds)
+			batchItemFailures.add(Collections.singletonMap("itemIdentifier", messageId));
+		return Collections.singletonMap("batchItemFailures", batchItemFailures);
+	}
+
+	private JsonObject createEnvelopeAttribute(String value) {
+		JsonObject attribute = new JsonObject();
+		attribute.addProperty("Type", "String");
+		attribute.addProperty("Value", value);
+		return attribute;
+	}
+
+	/**
 	 * This method creates MessageAttributeValue using a String value
 	 *
 	 * @param attributeValue
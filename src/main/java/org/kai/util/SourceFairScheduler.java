@@ -0,0 +1,230 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package org.kai.util;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.function.Function;
+
+/**
+ * This class shares the import function of a multi-primary target between its sources.
+ * A source is a source Glue Data Catalog Id and region.
+ *
+ * - Weights: the Tables of an SQS Event are imported in weighted round robin order of their sources,
+ *   so a source with a large backlog cannot push the Tables of other sources past the time budget.
+ * - Concurrency caps: a source is imported by at most its maximum number of functions at a time. A function holds
+ *   a lease per source in a DynamoDB table while it runs. Leases of functions that did not release them expire
+ *   with the function's timeout. Messages of a source at its cap are returned to SQS.
+ *
+ * Sources are configured as 'source_catalog_id|region|weight|max_concurrency', e.g.
+ * '111111111111|us-east-1|3|4,222222222222|eu-west-1|1|2'. Other sources get the default weight and cap.
+ * A max_concurrency of 0 means no cap.
+ *
+ */
+public class SourceFairScheduler {
+
+	final private int maxLeaseAttempts = 5;
+	private final Map<String, int[]> sourceSettings = new HashMap<>();
+	private final int defaultWeight;
+	private final int defaultMaxConcurrency;
+	private final String ddbTblName;
+	private final String leaseId;
+	private final long leaseExpiryTime;
+	private final Set<String> leasedSources = new LinkedHashSet<>();
+	// Sources at their cap are not asked for again in this invocation
+	private final Set<String> refusedSources = new HashSet<>();
+
+	/**
+	 * @param sourceScheduleList e.g. '111111111111|us-east-1|3|4,222222222222|eu-west-1|1|2'
+	 * @param listSeparator
+	 * @param separator
+	 * @param defaultWeight
+	 * @param defaultMaxConcurrency 0 means no cap
+	 * @param ddbTblName DynamoDB table of the leases. Null or empty disables concurrency caps.
+	 * @param leaseId id of this function invocation
+	 * @param leaseExpiryTime time the leases of this invocation expire if they are not released
+	 */
+	public SourceFairScheduler(String sourceScheduleList, String listSeparator, String separator, int defaultWeight,
+			int defaultMaxConcurrency, String ddbTblName, String leaseId, long leaseExpiryTime) {
+		StringTokenizer sources = new StringTokenizer(Optional.ofNullable(sourceScheduleList).orElse(""), listSeparator);
+		while (sources.hasMoreTokens()) {
+			String source = sources.nextToken();
+			List<String> values = new ArrayList<>();
+			StringTokenizer tokenizer = new StringTokenizer(source, separator);
+			while (tokenizer.hasMoreTokens())
+				values.add(tokenizer.nextToken().trim());
+			if (values.size() != 4) {
+				System.out.println("Error: Expected 4 values in format SourceCatalogId|Region|Weight|MaxConcurrency. Instead found: " + source);
+				continue;
+			}
+			sourceSettings.put(sourceKey(values.get(0), values.get(1)),
+					new int[] {Math.max(1, Integer.parseInt(values.get(2))), Math.max(0, Integer.parseInt(values.get(3)))});
+		}
+		this.defaultWeight = Math.max(1, defaultWeight);
+		this.defaultMaxConcurrency = Math.max(0, defaultMaxConcurrency);
+		this.ddbTblName = ddbTblName;
+		this.leaseId = leaseId;
+		this.leaseExpiryTime = leaseExpiryTime;
+		if (!isLeaseTableSet() && (this.defaultMaxConcurrency > 0 || sourceSettings.values().stream().anyMatch(s -> s[1] > 0)))
+			System.out.println("Warning: Source concurrency caps are configured without a DynamoDB table for leases. They are not enforced.");
+	}
+
+	/**
+	 * @param sourceGlueCatalogId
+	 * @param region
+	 * @return key of a source
+	 */
+	public static String sourceKey(String sourceGlueCatalogId, String region) {
+		return Optional.ofNullable(sourceGlueCatalogId).orElse("") + "|" + Optional.ofNullable(region).orElse("");
+	}
+
+	public int weightOf(String sourceKey) {
+		return Optional.ofNullable(sourceSettings.get(sourceKey)).map(s -> s[0]).orElse(defaultWeight);
+	}
+
+	public int maxConcurrencyOf(String sourceKey) {
+		return Optional.ofNullable(sourceSettings.get(sourceKey)).map(s -> s[1]).orElse(defaultMaxConcurrency);
+	}
+
+	private boolean isLeaseTableSet() {
+		return Optional.ofNullable(ddbTblName).isPresent() && !ddbTblName.isEmpty();
+	}
+
+	/**
+	 * Order items in smooth weighted round robin order of their sources. Items of a source keep their order.
+	 * @param items
+	 * @param sourceKeyOf
+	 * @return
+	 */
+	public <T> List<T> interleave(List<T> items, Function<T, String> sourceKeyOf) {
+		Map<String, List<T>> itemsBySource = new LinkedHashMap<>();
+		for (T item : items)
+			itemsBySource.computeIfAbsent(sourceKeyOf.apply(item), k -> new ArrayList<>()).add(item);
+		if (itemsBySource.size() < 2)
+			return items;
+
+		Map<String, Integer> nextIndex = new HashMap<>();
+		Map<String, Long> currentWeight = new HashMap<>();
+		List<T> ordered = new ArrayList<>(items.size());
+		while (ordered.size() < items.size()) {
+			// Every source with items left gains its weight. The source with the highest current weight goes next
+			// and gives back the total, so each source gets its weighted share without long runs of one source.
+			String next = null;
+			long totalWeight = 0;
+			for (Map.Entry<String, List<T>> entry : itemsBySource.entrySet()) {
+				String key = entry.getKey();
+				if (nextIndex.getOrDefault(key, 0) >= entry.getValue().size())
+					continue;
+				int weight = weightOf(key);
+				totalWeight += weight;
+				currentWeight.merge(key, (long) weight, Long::sum);
+				if (next == null || currentWeight.get(key) > currentWeight.get(next))
+					next = key;
+			}
+			currentWeight.merge(next, -totalWeight, Long::sum);
+			int index = nextIndex.getOrDefault(next, 0);
+			ordered.add(itemsBySource.get(next).get(index));
+			nextIndex.put(next, index + 1);
+		}
+		return ordered;
+	}
+
+	/**
+	 * Take a lease to import a source, unless the source is at its concurrency cap
+	 * @param sourceKey
+	 * @return true if this invocation may import the source
+	 */
+	public boolean acquire(String sourceKey) {
+		int maxConcurrency = maxConcurrencyOf(sourceKey);
+		if (maxConcurrency == 0 || !isLeaseTableSet() || leasedSources.contains(sourceKey))
+			return true;
+		if (refusedSources.contains(sourceKey))
+			return false;
+		Table table = new DynamoDB(DDBUtil.getClient()).getTable(ddbTblName);
+		try {
+			for (int attempt = 1; attempt <= maxLeaseAttempts; attempt++) {
+				Item item = table.getItem(new GetItemSpec().withPrimaryKey("source_key", sourceKey).withConsistentRead(true));
+				long now = System.currentTimeMillis();
+				long version = Optional.ofNullable(item).isPresent() && item.isPresent("version") ? item.getLong("version") : 0;
+				Map<String, Object> leases = new HashMap<>();
+				if (Optional.ofNullable(item).isPresent() && item.isPresent("leases")) {
+					// Leases of functions that ended without releasing them have expired
+					for (Map.Entry<String, Object> lease : item.getRawMap("leases").entrySet()) {
+						if (((Number) lease.getValue()).longValue() > now)
+							leases.put(lease.getKey(), lease.getValue());
+					}
+				}
+				if (leases.size() >= maxConcurrency) {
+					System.out.printf("Source %s is at its concurrency cap of %d. \n", sourceKey, maxConcurrency);
+					refusedSources.add(sourceKey);
+					return false;
+				}
+				leases.put(leaseId, leaseExpiryTime);
+				Item newItem = new Item().withPrimaryKey("source_key", sourceKey).withLong("version", version + 1)
+						.withMap("leases", leases).withLong("last_update_time", now);
+				PutItemSpec putItemSpec = new PutItemSpec().withItem(newItem);
+				if (version == 0)
+					putItemSpec.withConditionExpression("attribute_not_exists(source_key) or attribute_not_exists(version)");
+				else
+					putItemSpec.withConditionExpression("version = :v").withValueMap(new ValueMap().withLong(":v", version));
+				try {
+					table.putItem(putItemSpec);
+					leasedSources.add(sourceKey);
+					System.out.printf("Lease %d of %d taken on source %s. \n", leases.size(), maxConcurrency, sourceKey);
+					return true;
+				} catch (ConditionalCheckFailedException e) {
+					// Another function changed the leases. Read them again.
+				}
+			}
+			System.out.printf("Could not take a lease on source %s after %d attempts. \n", sourceKey, maxLeaseAttempts);
+			refusedSources.add(sourceKey);
+			return false;
+		} catch (Exception e) {
+			// Do not stop replication if the lease table is not available
+			e.printStackTrace();
+			System.out.println("Could not read source leases from DynamoDB table: " + ddbTblName);
+			return true;
+		}
+	}
+
+	/**
+	 * Release the leases taken by this invocation
+	 */
+	public void releaseAll() {
+		if (leasedSources.isEmpty())
+			return;
+		Table table = new DynamoDB(DDBUtil.getClient()).getTable(ddbTblName);
+		for (String sourceKey : leasedSources) {
+			try {
+				table.updateItem(new UpdateItemSpec().withPrimaryKey("source_key", sourceKey)
+						.withUpdateExpression("remove leases.#id add version :one")
+						.withNameMap(new NameMap().with("#id", leaseId))
+						.withValueMap(new ValueMap().withLong(":one", 1)));
+			} catch (Exception e) {
+				// The lease expires with the function's timeout
+				e.printStackTrace();
+				System.out.println("Could not release lease on source " + sourceKey + " in DynamoDB table: " + ddbTblName);
+			}
+		}
+		leasedSources.clear();
+	}
+}
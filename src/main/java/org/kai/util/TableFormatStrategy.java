@@ -0,0 +1,115 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package org.kai.util;
+
+import com.amazonaws.services.glue.model.Table;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * This class decides how a Table is replicated by its format, from its table type and parameters.
+ *
+ * - Iceberg and Delta tables keep their partitions in their own metadata, and tables with partition projection
+ *   compute their partitions from the table parameters. They have no Glue partitions to export or import.
+ * - The S3 pointers a format keeps in table or SerDe parameters, e.g. Iceberg's metadata_location, are mapped
+ *   to the target bucket like the table location.
+ * - Any other table is a Hive table, whose partitions are replicated.
+ *
+ * Strategies are looked up in registry order; the first one that matches the table is used.
+ *
+ */
+public class TableFormatStrategy {
+
+	public static final TableFormatStrategy ICEBERG = new TableFormatStrategy("Iceberg",
+			table -> "iceberg".equalsIgnoreCase(parameter(table.getParameters(), "table_type")),
+			false, Arrays.asList("metadata_location", "previous_metadata_location"), Collections.emptyList());
+	public static final TableFormatStrategy DELTA = new TableFormatStrategy("Delta",
+			table -> "delta".equalsIgnoreCase(parameter(table.getParameters(), "table_type"))
+					|| "delta".equalsIgnoreCase(parameter(table.getParameters(), "spark.sql.sources.provider")),
+			false, Collections.emptyList(), Collections.singletonList("path"));
+	public static final TableFormatStrategy PARTITION_PROJECTION = new TableFormatStrategy("PartitionProjection",
+			table -> "true".equalsIgnoreCase(parameter(table.getParameters(), "projection.enabled")),
+			false, Collections.singletonList("storage.location.template"), Collections.emptyList());
+	public static final TableFormatStrategy HIVE = new TableFormatStrategy("Hive",
+			table -> true, true, Collections.emptyList(), Collections.emptyList());
+
+	private static final List<TableFormatStrategy> REGISTRY = Arrays.asList(ICEBERG, DELTA, PARTITION_PROJECTION, HIVE);
+
+	private final String name;
+	private final Predicate<Table> matcher;
+	private final boolean gluePartitions;
+	private final List<String> tableLocationParameters;
+	private final List<String> serDeLocationParameters;
+
+	private TableFormatStrategy(String name, Predicate<Table> matcher, boolean gluePartitions, List<String> tableLocationParameters,
+			List<String> serDeLocationParameters) {
+		this.name = name;
+		this.matcher = matcher;
+		this.gluePartitions = gluePartitions;
+		this.tableLocationParameters = tableLocationParameters;
+		this.serDeLocationParameters = serDeLocationParameters;
+	}
+
+	/**
+	 * @param table
+	 * @return the strategy of the table's format
+	 */
+	public static TableFormatStrategy forTable(Table table) {
+		for (TableFormatStrategy strategy : REGISTRY) {
+			if (strategy.matcher.test(table))
+				return strategy;
+		}
+		return HIVE;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return false if the table has no Glue partitions, so partitions are neither exported nor imported
+	 */
+	public boolean hasGluePartitions() {
+		return gluePartitions;
+	}
+
+	/**
+	 * Map the S3 pointers the format keeps in the table's parameters
+	 * @param table
+	 * @param locationMapper gives the target location of a source location
+	 */
+	public void rewriteLocations(Table table, UnaryOperator<String> locationMapper) {
+		rewriteParameters(table.getParameters(), tableLocationParameters, locationMapper);
+		if (Optional.ofNullable(table.getStorageDescriptor()).isPresent()
+				&& Optional.ofNullable(table.getStorageDescriptor().getSerdeInfo()).isPresent())
+			rewriteParameters(table.getStorageDescriptor().getSerdeInfo().getParameters(), serDeLocationParameters, locationMapper);
+	}
+
+	private void rewriteParameters(Map<String, String> parameters, List<String> keys, UnaryOperator<String> locationMapper) {
+		if (!Optional.ofNullable(parameters).isPresent())
+			return;
+		for (String key : keys) {
+			String location = parameters.get(key);
+			if (Optional.ofNullable(location).isPresent() && !location.isEmpty()) {
+				parameters.put(key, locationMapper.apply(location));
+				System.out.printf("Replaced %s table parameter '%s': %s with %s \n", name, key, location, parameters.get(key));
+			}
+		}
+	}
+
+	private static String parameter(Map<String, String> parameters, String key) {
+		return Optional.ofNullable(parameters).map(p -> p.get(key)).orElse(null);
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
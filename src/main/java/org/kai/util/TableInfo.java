@@ -7,24 +7,28 @@ import com.amazonaws.ClientConfiguration;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.glue.AWSGlue;
 import com.amazonaws.services.glue.AWSGlueClientBuilder;
+import com.amazonaws.services.glue.model.Column;
 import com.amazonaws.services.glue.model.Partition;
+import com.amazonaws.services.glue.model.StorageDescriptor;
 import com.amazonaws.services.glue.model.Table;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.S3Object;
+import com.google.common.hash.Hashing;
 import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * This is a POJO class for Glue Database Table
@@ -32,6 +36,14 @@ import java.util.concurrent.atomic.AtomicInteger;
  * When a Table is set, the partition information is also set.
  * - If partition size is at or below the threshold, just save it in the TableInfo to be serialized to SNS
  * - If partition size is above the threshold, persist partition data into the S3
+ * - If a partition digest of the last export exists, only the added and modified partitions and the
+ *   values of removed partitions are exported, with a full snapshot at least once per snapshot interval
+ * - If partition column schema is excluded, partitions are exported without columns and get the table's
+ *   columns back when the partition list is read on import
+ * - A full partition snapshot saved to S3 is named by the hash of its partition set, so an unchanged
+ *   snapshot is not uploaded again and the target can skip re-applying it
+ * - The time of the latest source change, the export and the publish are stamped on the TableInfo,
+ *   so the target can measure replication lag per stage
  *
  */
 public class TableInfo {
@@ -39,23 +51,103 @@ public class TableInfo {
 
 	private boolean largeTable;
 	private int numberOfPartitions;
+	// Number of partitions the table has in the source, also when only a delta is exported
+	private int totalNumberOfPartitions;
 	private Table table;
 	private String s3ObjectKey;
 	private String s3BucketName;
 	private String catalogId;
 	private String region;
 	private List<Partition> partitionList;
+	private boolean partitionDelta;
+	private List<List<String>> deletedPartitionValues;
+	private boolean partitionColumnsExcluded;
+	private String partitionContentHash;
+	// Set on a partition retry, whose table and partition locations were already mapped to the target buckets
+	private boolean locationsMapped;
+	// Epoch millis of the latest change to the Table or its exported partitions, the export and the publish to SNS
+	private long sourceChangeTime;
+	private long exportTime;
+	private long publishTime;
 	final private int partitionThreshold = 5;
+	final private static String FULL_SNAPSHOT_TIME = "full_snapshot_time";
+	// StorageDescriptor.setColumns copies the list it is given. Setting the field, as Gson does, shares the table's list.
+	final private static Field STORAGE_DESCRIPTOR_COLUMNS = storageDescriptorColumnsField();
+	// Digest of the exported partitions. It is saved to S3 once the export is published.
+	private transient String partitionDigest;
+	private transient String partitionDigestBucketName;
+	// False if the partitions of a large table could not be saved to S3, so the export must not be published
+	private transient boolean partitionSnapshotStored = true;
 
 	public Table getTable() {
 		return table;
 	}
 
 	public void setTable(Table table, String catalogId, String s3BucketName, String region) {
+		setTable(table, catalogId, s3BucketName, region, 0);
+	}
+
+	/**
+	 * Set the Table and export its partitions.
+	 * @param table
+	 * @param catalogId
+	 * @param s3BucketName
+	 * @param region
+	 * @param fullSnapshotIntervalMillis maximum time between full partition snapshots. 0 disables delta export.
+	 */
+	public void setTable(Table table, String catalogId, String s3BucketName, String region, long fullSnapshotIntervalMillis) {
+		setTable(table, catalogId, s3BucketName, region, fullSnapshotIntervalMillis, false);
+	}
+
+	/**
+	 * Set the Table and export its partitions.
+	 * @param table
+	 * @param catalogId
+	 * @param s3BucketName
+	 * @param region
+	 * @param fullSnapshotIntervalMillis maximum time between full partition snapshots. 0 disables delta export.
+	 * @param excludePartitionColumnSchema export partitions without their column list
+	 */
+	public void setTable(Table table, String catalogId, String s3BucketName, String region, long fullSnapshotIntervalMillis,
+						 boolean excludePartitionColumnSchema) {
+		setTable(table, catalogId, s3BucketName, region, fullSnapshotIntervalMillis, excludePartitionColumnSchema, 0);
+	}
+
+	/**
+	 * Set the Table and export its partitions.
+	 * @param table
+	 * @param catalogId
+	 * @param s3BucketName
+	 * @param region
+	 * @param fullSnapshotIntervalMillis maximum time between full partition snapshots. 0 disables delta export.
+	 * @param excludePartitionColumnSchema export partitions without their column list
+	 * @param maxInlineMessageBytes embed partitions above the threshold when the compressed message fits. 0 disables it.
+	 */
+	public void setTable(Table table, String catalogId, String s3BucketName, String region, long fullSnapshotIntervalMillis,
+						 boolean excludePartitionColumnSchema, int maxInlineMessageBytes) {
+		setTable(table, catalogId, s3BucketName, region, fullSnapshotIntervalMillis, excludePartitionColumnSchema, maxInlineMessageBytes, null);
+	}
+
+	/**
+	 * Set the Table and export its partitions.
+	 * @param table
+	 * @param catalogId
+	 * @param s3BucketName
+	 * @param region
+	 * @param fullSnapshotIntervalMillis maximum time between full partition snapshots. 0 disables delta export.
+	 * @param excludePartitionColumnSchema export partitions without their column list
+	 * @param maxInlineMessageBytes embed partitions above the threshold when the compressed message fits. 0 disables it.
+	 * @param partitionRetention export only the partitions in the table's retention window. May be null.
+	 */
+	public void setTable(Table table, String catalogId, String s3BucketName, String region, long fullSnapshotIntervalMillis,
+						 boolean excludePartitionColumnSchema, int maxInlineMessageBytes, PartitionRetention partitionRetention) {
 		this.table = table;
 		this.catalogId = catalogId;
 		this.region = region;
-		setPartition(s3BucketName);
+		this.partitionColumnsExcluded = excludePartitionColumnSchema;
+		this.exportTime = System.currentTimeMillis();
+		setPartition(s3BucketName, fullSnapshotIntervalMillis, maxInlineMessageBytes,
+				Optional.ofNullable(partitionRetention).map(r -> r.ruleFor(table)).orElse(null));
 	}
 
 	@Override
@@ -63,12 +155,21 @@ public class TableInfo {
 		return "TableInfo{" +
 				"largeTable=" + largeTable +
 				", numberOfPartitions=" + numberOfPartitions +
+				", totalNumberOfPartitions=" + totalNumberOfPartitions +
 				", table=" + table +
 				", s3ObjectKey='" + s3ObjectKey + '\'' +
 				", s3BucketName='" + s3BucketName + '\'' +
 				", catalogId='" + catalogId + '\'' +
 				", region='" + region + '\'' +
 				", partitionList=" + partitionList +
+				", partitionDelta=" + partitionDelta +
+				", deletedPartitionValues=" + deletedPartitionValues +
+				", partitionColumnsExcluded=" + partitionColumnsExcluded +
+				", partitionContentHash='" + partitionContentHash + '\'' +
+				", locationsMapped=" + locationsMapped +
+				", sourceChangeTime=" + sourceChangeTime +
+				", exportTime=" + exportTime +
+				", publishTime=" + publishTime +
 				", partitionThreshold=" + partitionThreshold +
 				'}';
 	}
@@ -85,6 +186,9 @@ public class TableInfo {
 	public int getNumberOfPartitions() {
 		return numberOfPartitions;
 	}
+	public int getTotalNumberOfPartitions() {
+		return totalNumberOfPartitions;
+	}
 	public int getPartitionThreshold() {
 		return partitionThreshold;
 	}
@@ -96,42 +200,162 @@ public class TableInfo {
 		return largeTable;
 	}
 
+	public boolean isPartitionDelta() {
+		return partitionDelta;
+	}
+
+	public List<List<String>> getDeletedPartitionValues() {
+		return deletedPartitionValues;
+	}
+
+	public boolean isPartitionColumnsExcluded() {
+		return partitionColumnsExcluded;
+	}
+
+	/**
+	 * @return true if the S3 locations are those of the target region, so they must not be mapped again
+	 */
+	public boolean isLocationsMapped() {
+		return locationsMapped;
+	}
+
+	/**
+	 * @return the hash of the partition set of a full snapshot saved to S3, otherwise null
+	 */
+	public String getPartitionContentHash() {
+		return partitionContentHash;
+	}
+
+	public long getSourceChangeTime() {
+		return sourceChangeTime;
+	}
+
+	public long getExportTime() {
+		return exportTime;
+	}
+
+	public long getPublishTime() {
+		return publishTime;
+	}
+
+	public void setPublishTime(long publishTime) {
+		this.publishTime = publishTime;
+	}
+
+	/**
+	 * Create a partition delta of this Table with only the given partitions, to retry the ones that could not be imported.
+	 * The partitions are embedded, and keep their columns and the target locations they were given.
+	 * @param partitions partitions to add or update
+	 * @param deletedPartitionValues values of partitions to delete
+	 * @return
+	 */
+	public TableInfo createPartitionRetry(List<Partition> partitions, List<List<String>> deletedPartitionValues) {
+		TableInfo retry = new TableInfo();
+		retry.table = this.table;
+		retry.catalogId = this.catalogId;
+		retry.region = this.region;
+		retry.totalNumberOfPartitions = this.totalNumberOfPartitions;
+		retry.numberOfPartitions = partitions.size();
+		retry.partitionList = new ArrayList<>(partitions);
+		retry.partitionDelta = true;
+		retry.deletedPartitionValues = new ArrayList<>(deletedPartitionValues);
+		retry.sourceChangeTime = this.sourceChangeTime;
+		retry.exportTime = this.exportTime;
+		retry.publishTime = this.publishTime;
+		retry.locationsMapped = true;
+		return retry;
+	}
+
 	public List<Partition> getPartitionList() {
+		return getPartitionList(new PartitionSnapshotReader(0, null));
+	}
+
+	/**
+	 * Get the partitions, reading them from S3 with the given reader for a large table
+	 * @param snapshotReader
+	 * @return null if the partition snapshot could not be read
+	 */
+	public List<Partition> getPartitionList(PartitionSnapshotReader snapshotReader) {
 		if (!largeTable || partitionList != null) {  // small table, or large table but partition list already loaded
 			System.out.println("Not Large Table.  Return Partition info from embedded SNS message");
 		} else {  //  large table and partition list not yet loaded. So let's try to load it.
 			System.out.println("Large Table.  Retrieve Partition info from S3 Bucket and Object");
-			String contentType = "";
-			Gson gson = new Gson();
-			S3Object fullObject = null;
-			this.partitionList = new ArrayList<>();
-			AmazonS3 s3 = AmazonS3ClientBuilder.standard().withRegion(this.region).build();
-			try {
-				fullObject = s3.getObject(new GetObjectRequest(this.s3BucketName, this.s3ObjectKey));
-			} catch (Exception e) {
-				e.printStackTrace();
-				System.out.println("Exception thrown while reading object from S3");
+			// Share identical columns, SerDeInfo and parameter maps across partitions and with the table
+			PartitionInterner interner = new PartitionInterner(this.table);
+			Gson gson = interner.createGson();
+			this.partitionList = snapshotReader.readPartitions(this.region, this.s3BucketName, this.s3ObjectKey, gson);
+			if (this.partitionList == null) {
+				System.out.println("Error: Could not read partition info from S3 Bucket: " + this.s3BucketName + " Object Key: " + this.s3ObjectKey);
+				return null;
 			}
-			InputStream input = fullObject.getObjectContent();
-			contentType = fullObject.getObjectMetadata().getContentType();
-			System.out.println("CONTENT TYPE: " + contentType);
-			BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-			String line = null;
+			System.out.println("Number of partitions read from S3: " + partitionList.size() + ", shared metadata instances: " + interner.getPoolSize());
+		}
+		if (partitionColumnsExcluded)
+			rehydratePartitionColumns();
+		return this.partitionList;
+	}
+
+	/**
+	 * Give partitions exported without column schema the columns of the table.
+	 * A partition that carries its own columns keeps them.
+	 */
+	private void rehydratePartitionColumns() {
+		if (this.partitionList == null || table.getStorageDescriptor() == null)
+			return;
+		List<Column> tableColumns = table.getStorageDescriptor().getColumns();
+		int numRehydrated = 0;
+		for (Partition p : this.partitionList) {
+			if (rehydratePartitionColumns(p, tableColumns))
+				numRehydrated++;
+		}
+		System.out.println("Number of partitions given the table's column schema: " + numRehydrated);
+	}
+
+	private static boolean rehydratePartitionColumns(Partition p, List<Column> tableColumns) {
+		StorageDescriptor sd = p.getStorageDescriptor();
+		if (sd != null && (sd.getColumns() == null || sd.getColumns().isEmpty())) {
 			try {
-				while ((line = reader.readLine()) != null) {
-					Partition partition = gson.fromJson(line, Partition.class);
-					partitionList.add(partition);
-				}
-			} catch (JsonSyntaxException | IOException e) {
-				System.out.println("Exception occured while reading partition information from S3 object.");
-				e.printStackTrace();
+				if (STORAGE_DESCRIPTOR_COLUMNS != null)
+					STORAGE_DESCRIPTOR_COLUMNS.set(sd, tableColumns);
+				else
+					sd.setColumns(tableColumns);
+			} catch (IllegalAccessException e) {
+				sd.setColumns(tableColumns);
 			}
-			System.out.println("Number of partitions read from S3: " + partitionList.size());
+			return true;
+		}
+		return false;
+	}
+
+	private static Field storageDescriptorColumnsField() {
+		try {
+			Field field = StorageDescriptor.class.getDeclaredField("columns");
+			field.setAccessible(true);
+			return field;
+		} catch (NoSuchFieldException | RuntimeException e) {
+			System.out.println("Partitions will be given a copy of the table's column schema: " + e.getMessage());
+			return null;
 		}
-		return this.partitionList;
 	}
 
-	private void setPartition(String s3BucketName) {
+	/**
+	 * Stream the partitions of a large table from S3 without holding them in memory. Close the Stream when done.
+	 * @param snapshotReader
+	 * @return
+	 * @throws IOException if the snapshot could not be opened
+	 */
+	public Stream<Partition> streamPartitionSnapshot(PartitionSnapshotReader snapshotReader) throws IOException {
+		System.out.println("Large Table.  Stream Partition info from S3 Bucket and Object");
+		PartitionInterner interner = new PartitionInterner(this.table);
+		Stream<Partition> partitions = snapshotReader.streamPartitions(this.region, this.s3BucketName, this.s3ObjectKey, interner.createGson());
+		if (!partitionColumnsExcluded || table.getStorageDescriptor() == null)
+			return partitions;
+		List<Column> tableColumns = table.getStorageDescriptor().getColumns();
+		return partitions.peek(p -> rehydratePartitionColumns(p, tableColumns));
+	}
+
+	private void setPartition(String s3BucketName, long fullSnapshotIntervalMillis, int maxInlineMessageBytes,
+			PartitionRetention.Rule retentionRule) {
 		boolean objectCreated = false;
 
 		GlueUtil glueUtil = new GlueUtil();
@@ -142,22 +366,53 @@ public class TableInfo {
 
 		AWSGlue glue = AWSGlueClientBuilder.standard().withRegion(region).withClientConfiguration(cc).build();
 
-		List<Partition> partitionList = glueUtil.getPartitions(glue, catalogId, table.getDatabaseName(), table.getName());
+		List<Partition> partitionList;
+		TableFormatStrategy format = TableFormatStrategy.forTable(table);
+		if (format.hasGluePartitions()) {
+			// Partitions that aged out of the retention window are not exported, and not read if the window can be pushed down
+			String expression = Optional.ofNullable(retentionRule).map(PartitionRetention.Rule::getRetainedExpression).orElse(null);
+			try (Stream<Partition> partitions = glueUtil.streamPartitions(glue, catalogId, table.getDatabaseName(), table.getName(),
+					partitionColumnsExcluded, expression)) {
+				partitionList = (Optional.ofNullable(retentionRule).isPresent() ? partitions.filter(p -> !retentionRule.isExpired(p)) : partitions)
+						.collect(Collectors.toList());
+			}
+		} else {
+			System.out.printf("Table '%s' is a %s table without Glue partitions. Skipping partitions. \n", table.getName(), format);
+			partitionList = new ArrayList<>();
+		}
+		this.totalNumberOfPartitions = partitionList.size();
+		if (fullSnapshotIntervalMillis > 0 && format.hasGluePartitions())
+			partitionList = computePartitionDelta(partitionList, s3BucketName, fullSnapshotIntervalMillis);
 		this.numberOfPartitions = partitionList.size();
+		this.sourceChangeTime = computeSourceChangeTime(partitionList);
 
 		if (this.numberOfPartitions <= partitionThreshold) {
 			System.out.println("Not Large Table.  Embed partition info in SNS message.");
 			this.largeTable = false;
 			this.partitionList = partitionList;
+		} else if (fitsInline(partitionList, maxInlineMessageBytes)) {
+			System.out.println("Compressed partition info fits in SNS message.  Embed partition info in SNS message. Partition size: " + partitionList.size());
+			this.largeTable = false;
+			this.partitionList = partitionList;
 		} else {
 			System.out.println("Large Table.  Save partition info to S3 and set the S3 Bucket and Object key. Partition size: " + partitionList.size());
 
 			// set Large Table, Bucket Name and Object Key
 			this.largeTable = true;
 			this.s3BucketName = s3BucketName;
-			this.s3ObjectKey = initializeS3ObjectKey();
-
+			this.partitionSnapshotStored = false;
 			S3Util s3Util = new S3Util();
+			if (!partitionDelta) {
+				this.partitionContentHash = computePartitionContentHash(partitionList);
+				this.s3ObjectKey = initializeSnapshotObjectKey(partitionContentHash);
+				if (s3Util.objectExists(region, this.s3BucketName, this.s3ObjectKey)) {
+					System.out.println("Info: Partition snapshot already exists in S3 Bucket: " + this.s3BucketName + " Object Key: " + this.s3ObjectKey + ". Skipping upload.");
+					this.partitionSnapshotStored = true;
+					return;
+				}
+			} else {
+				this.s3ObjectKey = initializeS3ObjectKey();
+			}
 
 			StringBuilder sb = new StringBuilder();
 			AtomicInteger ai = new AtomicInteger();
@@ -172,6 +427,7 @@ public class TableInfo {
 			String partitionInfo =  sb.toString();
 			System.out.println("Partition payload: " + partitionInfo);
 			objectCreated = s3Util.createS3Object(region, this.s3BucketName, this.s3ObjectKey, partitionInfo);
+			this.partitionSnapshotStored = objectCreated;
 			if (objectCreated) {
 				System.out.println("Info: Success persisting partition info to S3 Bucket: " + this.s3BucketName + " Object Key: " + this.s3ObjectKey + " Partition Size: " + partitionList.size());
 			} else {
@@ -180,6 +436,177 @@ public class TableInfo {
 		}
 	}
 
+	/**
+	 * Get the time of the latest change in the export: the Table's update time, or the creation time of
+	 * the newest exported partition if it is later. Glue keeps no update time for partitions.
+	 * @param partitionList
+	 * @return
+	 */
+	private long computeSourceChangeTime(List<Partition> partitionList) {
+		long changeTime = 0;
+		if (Optional.ofNullable(table.getUpdateTime()).isPresent())
+			changeTime = table.getUpdateTime().getTime();
+		else if (Optional.ofNullable(table.getCreateTime()).isPresent())
+			changeTime = table.getCreateTime().getTime();
+		for (Partition p : partitionList) {
+			if (Optional.ofNullable(p.getCreationTime()).isPresent())
+				changeTime = Math.max(changeTime, p.getCreationTime().getTime());
+		}
+		return changeTime;
+	}
+
+	/**
+	 * Check if this TableInfo with the partitions embedded still fits in one SNS message once compressed.
+	 * Partition lists far above the limit are rejected from a sample, without serializing them.
+	 * @param partitionList
+	 * @param maxInlineMessageBytes
+	 * @return
+	 */
+	private boolean fitsInline(List<Partition> partitionList, int maxInlineMessageBytes) {
+		if (maxInlineMessageBytes <= 0 || partitionList.isEmpty())
+			return false;
+		Gson gson = new Gson();
+		long sampledBytes = 0;
+		int sampled = Math.min(100, partitionList.size());
+		for (int i = 0; i < sampled; i++)
+			sampledBytes += gson.toJson(partitionList.get(i)).length();
+		// Partition metadata is repetitive and compresses well, but not better than this
+		if (sampledBytes / sampled * partitionList.size() > 20L * maxInlineMessageBytes)
+			return false;
+
+		List<Partition> previousPartitionList = this.partitionList;
+		this.partitionList = partitionList;
+		String message = gson.toJson(this);
+		this.partitionList = previousPartitionList;
+		int compressedBytes = new CompressionUtil().compress(message).length();
+		System.out.printf("Message size with embedded partitions: %d bytes, compressed: %d bytes, limit: %d bytes. \n",
+				message.length(), compressedBytes, maxInlineMessageBytes);
+		return compressedBytes <= maxInlineMessageBytes;
+	}
+
+	/**
+	 * Hash the partition set, independent of the order partitions were listed in.
+	 * Partitions are compared by their values and fingerprints, as on import.
+	 * @param partitionList
+	 * @return
+	 */
+	private String computePartitionContentHash(List<Partition> partitionList) {
+		String digestBody;
+		if (partitionDigest != null) {
+			// The digest of a full snapshot already holds the sorted keys and fingerprints
+			digestBody = partitionDigest.substring(partitionDigest.indexOf('\n') + 1);
+		} else {
+			GlueUtil glueUtil = new GlueUtil();
+			Gson gson = new Gson();
+			Map<String, String> digest = new TreeMap<>();
+			for (Partition p : partitionList)
+				digest.put(gson.toJson(p.getValues()), glueUtil.computePartitionFingerprint(p));
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String, String> entry : digest.entrySet())
+				sb.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+			digestBody = sb.toString();
+		}
+		return Hashing.sha256().newHasher().putBoolean(partitionColumnsExcluded)
+				.putString(digestBody, StandardCharsets.UTF_8).hash().toString();
+	}
+
+	/**
+	 * Compare the partitions with the digest of the last export and keep only the added and modified ones.
+	 * Removed partitions are recorded by their values. A full snapshot is exported when there is no digest
+	 * or the last full snapshot is older than the interval.
+	 * @param partitionList
+	 * @param s3BucketName
+	 * @param fullSnapshotIntervalMillis
+	 * @return
+	 */
+	private List<Partition> computePartitionDelta(List<Partition> partitionList, String s3BucketName, long fullSnapshotIntervalMillis) {
+		GlueUtil glueUtil = new GlueUtil();
+		Gson gson = new Gson();
+		long now = System.currentTimeMillis();
+
+		Map<String, String> previousDigest = new HashMap<>();
+		long lastFullSnapshotTime = parsePartitionDigest(
+				new S3Util().getObjectAsString(region, s3BucketName, initializePartitionDigestKey()), previousDigest);
+		boolean fullSnapshot = lastFullSnapshotTime < 0 || now - lastFullSnapshotTime >= fullSnapshotIntervalMillis;
+
+		Map<String, String> currentDigest = new TreeMap<>();
+		List<Partition> changedPartitions = new ArrayList<>();
+		for (Partition p : partitionList) {
+			String key = gson.toJson(p.getValues());
+			String fingerprint = glueUtil.computePartitionFingerprint(p);
+			currentDigest.put(key, fingerprint);
+			if (!fingerprint.equals(previousDigest.remove(key)))
+				changedPartitions.add(p);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(FULL_SNAPSHOT_TIME).append('\t').append(fullSnapshot ? now : lastFullSnapshotTime).append('\n');
+		for (Map.Entry<String, String> entry : currentDigest.entrySet())
+			sb.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+		this.partitionDigest = sb.toString();
+		this.partitionDigestBucketName = s3BucketName;
+
+		if (fullSnapshot) {
+			System.out.println("Exporting full partition snapshot. Partition size: " + partitionList.size());
+			return partitionList;
+		}
+		this.partitionDelta = true;
+		this.deletedPartitionValues = new ArrayList<>();
+		for (String key : previousDigest.keySet())
+			this.deletedPartitionValues.add(gson.fromJson(key, new TypeToken<List<String>>() {}.getType()));
+		System.out.printf("Exporting partition delta. Total partitions: %d, added or modified: %d, removed: %d. \n",
+				partitionList.size(), changedPartitions.size(), deletedPartitionValues.size());
+		return changedPartitions;
+	}
+
+	/**
+	 * Parse a partition digest into a map of partition key to fingerprint
+	 * @param content
+	 * @param digest
+	 * @return the time of the last full snapshot, or -1 if there is no digest
+	 */
+	private long parsePartitionDigest(String content, Map<String, String> digest) {
+		if (content == null || !content.startsWith(FULL_SNAPSHOT_TIME))
+			return -1;
+		String[] lines = content.split("\n");
+		long lastFullSnapshotTime = Long.parseLong(lines[0].substring(FULL_SNAPSHOT_TIME.length() + 1).trim());
+		for (int i = 1; i < lines.length; i++) {
+			int tab = lines[i].lastIndexOf('\t');
+			if (tab > 0)
+				digest.put(lines[i].substring(0, tab), lines[i].substring(tab + 1));
+		}
+		return lastFullSnapshotTime;
+	}
+
+	/**
+	 * @return false if the partitions of a large table could not be saved to S3. The export must then be neither
+	 *         published nor its partition digest saved.
+	 */
+	public boolean isPartitionSnapshotStored() {
+		return partitionSnapshotStored;
+	}
+
+	/**
+	 * Save the partition digest of this export, so the next export can send a delta.
+	 * Call this only after the export has been published.
+	 * @return
+	 */
+	public boolean commitPartitionDigest() {
+		if (partitionDigest == null)
+			return false;
+		return new S3Util().createS3Object(region, partitionDigestBucketName, initializePartitionDigestKey(), partitionDigest);
+	}
+
+	private String initializePartitionDigestKey() {
+		return new StringBuilder("partition_digest/").append(catalogId).append("_").append(table.getDatabaseName())
+				.append("_").append(table.getName()).append(".txt").toString();
+	}
+
+	private String initializeSnapshotObjectKey(String contentHash) {
+		return new StringBuilder("partition_snapshot/").append(catalogId).append("_").append(table.getDatabaseName())
+				.append("_").append(table.getName()).append("_").append(contentHash).append(".txt").toString();
+	}
+
 	private String initializeS3ObjectKey() {
 		// Create object key
 		SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd");
@@ -3,6 +3,11 @@
 
 package org.kai.util;
 
+import com.amazonaws.services.glue.model.Partition;
+
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * 
  * This is a POJO class for Glue Database Table Replication Status
@@ -24,6 +29,15 @@ public class TableReplicationStatus {
 	private boolean partitionsReplicated;
 	private boolean error;
 	private boolean dbNotFoundError;
+	private boolean unchanged;
+	// The target table was not in the state the write expected, e.g. a cached view of it was stale
+	private transient boolean targetStale;
+	private String tableFingerprint;
+	// Partitions Glue could not write, so they can be retried without the rest of the table
+	private transient List<Partition> failedPartitions = new ArrayList<>();
+	private transient List<List<String>> failedPartitionValues = new ArrayList<>();
+	// Number of partitions the import added, updated or deleted
+	private transient long partitionsWritten;
 	
 	public boolean isDbNotFoundError() {
 		return dbNotFoundError;
@@ -31,6 +45,12 @@ public class TableReplicationStatus {
 	public void setDbNotFoundError(boolean dbNotFoundError) {
 		this.dbNotFoundError = dbNotFoundError;
 	}
+	public boolean isTargetStale() {
+		return targetStale;
+	}
+	public void setTargetStale(boolean targetStale) {
+		this.targetStale = targetStale;
+	}
 	public boolean isError() {
 		return error;
 	}
@@ -97,5 +117,35 @@ public class TableReplicationStatus {
 	public void setPartitionsReplicated(boolean partitionsReplicated) {
 		this.partitionsReplicated = partitionsReplicated;
 	}
+	public boolean isUnchanged() {
+		return unchanged;
+	}
+	public void setUnchanged(boolean unchanged) {
+		this.unchanged = unchanged;
+	}
+	public String getTableFingerprint() {
+		return tableFingerprint;
+	}
+	public void setTableFingerprint(String tableFingerprint) {
+		this.tableFingerprint = tableFingerprint;
+	}
+	public List<Partition> getFailedPartitions() {
+		return failedPartitions;
+	}
+	public void setFailedPartitions(List<Partition> failedPartitions) {
+		this.failedPartitions = failedPartitions;
+	}
+	public List<List<String>> getFailedPartitionValues() {
+		return failedPartitionValues;
+	}
+	public void setFailedPartitionValues(List<List<String>> failedPartitionValues) {
+		this.failedPartitionValues = failedPartitionValues;
+	}
+	public long getPartitionsWritten() {
+		return partitionsWritten;
+	}
+	public void setPartitionsWritten(long partitionsWritten) {
+		this.partitionsWritten = partitionsWritten;
+	}
 	
 }
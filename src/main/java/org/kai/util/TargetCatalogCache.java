@@ -0,0 +1,167 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package org.kai.util;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.glue.AWSGlue;
+import com.amazonaws.services.glue.model.EntityNotFoundException;
+import com.amazonaws.services.glue.model.Table;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * This class caches the databases and tables known to exist in the target Glue Data Catalog.
+ * It is meant to be held by a Lambda handler instance so that it lives as long as the container.
+ *
+ * - A database is loaded with a single GetTables listing on first touch
+ * - Entries expire after the configured TTL and are reloaded on the next touch
+ * - Successful writes update the cache, failed writes invalidate it
+ * - A database whose listing fails, e.g. when throttled, is not cached. Callers then look its tables up directly.
+ *
+ */
+public class TargetCatalogCache {
+
+	private final long ttlMillis;
+	private final Map<String, CachedDatabase> databases = new ConcurrentHashMap<>();
+
+	public TargetCatalogCache(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * This method loads a Database into the cache on first touch
+	 * @param glue
+	 * @param catalogId
+	 * @param databaseName
+	 * @return false if the Database could not be listed, so the cache cannot be used for it
+	 */
+	public boolean isAvailable(AWSGlue glue, String catalogId, String databaseName) {
+		return getDatabase(glue, catalogId, databaseName) != null;
+	}
+
+	/**
+	 * This method checks if a Database exist in the target Glue Data Catalog, loading it on first touch.
+	 * Call it only for a Database that isAvailable.
+	 * @param glue
+	 * @param catalogId
+	 * @param databaseName
+	 * @return
+	 */
+	public boolean databaseExists(AWSGlue glue, String catalogId, String databaseName) {
+		return getDatabase(glue, catalogId, databaseName).exists;
+	}
+
+	/**
+	 * This method gets a Table from the cache. If there is no table with the provided name then it returns null.
+	 * Call it only for a Database that isAvailable.
+	 * @param glue
+	 * @param catalogId
+	 * @param databaseName
+	 * @param tableName
+	 * @return
+	 */
+	public Table getTable(AWSGlue glue, String catalogId, String databaseName, String tableName) {
+		return getDatabase(glue, catalogId, databaseName).tables.get(tableName);
+	}
+
+	/**
+	 * Record a Database created by this utility
+	 * @param catalogId
+	 * @param databaseName
+	 */
+	public void putDatabase(String catalogId, String databaseName) {
+		CachedDatabase cachedDatabase = databases.get(cacheKey(catalogId, databaseName));
+		if (cachedDatabase != null) {
+			cachedDatabase.exists = true;
+		} else {
+			databases.put(cacheKey(catalogId, databaseName), new CachedDatabase(true));
+		}
+	}
+
+	/**
+	 * Record a Table successfully created or updated by this utility, along with the fingerprint
+	 * parameter that was written with it
+	 * @param catalogId
+	 * @param table
+	 * @param fingerprint
+	 */
+	public void putTable(String catalogId, Table table, String fingerprint) {
+		CachedDatabase cachedDatabase = databases.get(cacheKey(catalogId, table.getDatabaseName()));
+		if (cachedDatabase != null && cachedDatabase.exists) {
+			Table cachedTable = table.clone();
+			Map<String, String> parameters = new HashMap<>();
+			if (table.getParameters() != null)
+				parameters.putAll(table.getParameters());
+			if (fingerprint != null)
+				parameters.put(GlueUtil.TABLE_FINGERPRINT_PARAMETER, fingerprint);
+			cachedTable.setParameters(parameters);
+			cachedDatabase.tables.put(table.getName(), cachedTable);
+		}
+	}
+
+	/**
+	 * Drop a Database and its Tables from the cache. The next touch reloads it from Glue.
+	 * @param catalogId
+	 * @param databaseName
+	 */
+	public void invalidateDatabase(String catalogId, String databaseName) {
+		databases.remove(cacheKey(catalogId, databaseName));
+	}
+
+	private CachedDatabase getDatabase(AWSGlue glue, String catalogId, String databaseName) {
+		String key = cacheKey(catalogId, databaseName);
+		CachedDatabase cachedDatabase = databases.get(key);
+		if (cachedDatabase == null || System.currentTimeMillis() - cachedDatabase.loadTime > ttlMillis) {
+			cachedDatabase = loadDatabase(glue, catalogId, databaseName);
+			if (cachedDatabase != null)
+				databases.put(key, cachedDatabase);
+			else
+				databases.remove(key);
+		}
+		return cachedDatabase;
+	}
+
+	/**
+	 * @param glue
+	 * @param catalogId
+	 * @param databaseName
+	 * @return the loaded Database, or null if it could not be listed
+	 */
+	private CachedDatabase loadDatabase(AWSGlue glue, String catalogId, String databaseName) {
+		System.out.printf("Loading target catalog cache for Database '%s'. \n", databaseName);
+		CachedDatabase cachedDatabase;
+		try {
+			CachedDatabase loadedDatabase = new CachedDatabase(true);
+			try (Stream<Table> tables = new GlueUtil().streamTables(glue, catalogId, databaseName)) {
+				tables.forEach(table -> loadedDatabase.tables.put(table.getName(), table));
+			}
+			cachedDatabase = loadedDatabase;
+		} catch (EntityNotFoundException e) {
+			System.out.printf("Database '%s' not found in target catalog. \n", databaseName);
+			cachedDatabase = new CachedDatabase(false);
+		} catch (SdkClientException e) {
+			// Also an AmazonServiceException, e.g. throttling
+			System.out.printf("Could not load target catalog cache for Database '%s': %s \n", databaseName, e.getMessage());
+			cachedDatabase = null;
+		}
+		return cachedDatabase;
+	}
+
+	private static String cacheKey(String catalogId, String databaseName) {
+		return catalogId + "|" + databaseName;
+	}
+
+	private static class CachedDatabase {
+		private final long loadTime = System.currentTimeMillis();
+		private final Map<String, Table> tables = new ConcurrentHashMap<>();
+		private volatile boolean exists;
+
+		private CachedDatabase(boolean exists) {
+			this.exists = exists;
+		}
+	}
+}